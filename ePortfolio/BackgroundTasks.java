@@ -0,0 +1,160 @@
+import java.util.ArrayDeque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+import javax.swing.SwingUtilities;
+
+/**
+ * This class runs the portfolio operations of the GUI on a worker thread, so the
+ * event dispatch thread never waits for the portfolio.
+ *
+ * Tasks run one at a time on a single daemon thread, in the order they were
+ * submitted, so a sale submitted after a purchase still sees it. The result of a
+ * task, or the exception it threw, is handed to its callback on the event
+ * dispatch thread. Cancelling skips the cancellable tasks which have not started
+ * and drops the result of the one running. A running task is not interrupted,
+ * since an interrupt would close the file channels of the journal or of a save.
+ * Every method must be called on the event dispatch thread, which also owns all
+ * the bookkeeping, so none of it needs a lock.
+ */
+public class BackgroundTasks {
+
+    /**
+     * This interface is told which task is running, so the GUI can show its
+     * progress.
+     */
+    public interface ProgressListener {
+
+        /**
+         * Called on the event dispatch thread whenever a task starts waiting or
+         * ends.
+         *
+         * @param description the description of the oldest unfinished task, or null if there is none
+         * @param cancellable true if that task can be cancelled
+         * @param waiting the number of unfinished tasks, including that one
+         */
+        void progressChanged(String description, boolean cancellable, int waiting);
+    }
+
+    /**
+     * This class tracks one submitted task until its callback is called.
+     */
+    private static final class Task {
+        private final String description;
+        private final boolean cancellable;
+        private Future<?> future;
+
+        /**
+         * Constructs a new Task with the given description.
+         *
+         * @param description the description shown while the task is unfinished
+         * @param cancellable true if the task can be cancelled
+         */
+        private Task(String description, boolean cancellable) {
+            this.description = description;
+            this.cancellable = cancellable;
+        }
+    }
+
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "ePortfolio-worker");
+        thread.setDaemon(true);  //Letting the application exit while a task is running
+        return thread;
+    });
+    private final ArrayDeque<Task> unfinished = new ArrayDeque<>();  //Tasks whose callback was not called yet, in order
+    private ProgressListener listener = null;
+
+    /**
+     * Sets the listener told about the running task.
+     *
+     * @param listener the listener, or null for none
+     */
+    public void setProgressListener(ProgressListener listener) {
+        this.listener = listener;
+        fireProgress();
+    }
+
+    /**
+     * Submits a task to the worker thread.
+     *
+     * @param description the description shown while the task is unfinished
+     * @param cancellable true if cancel may skip the task or drop its result;
+     *                    tasks which change the portfolio should not be cancellable
+     * @param work the work to run on the worker thread
+     * @param onSuccess the callback receiving the result on the event dispatch thread
+     * @param onFailure the callback receiving the exception thrown by the work on the event dispatch thread;
+     *                  an error thrown by the work is received wrapped in an ExecutionException
+     * @param <T> the type of the result
+     */
+    public <T> void submit(String description, boolean cancellable, Callable<T> work, Consumer<T> onSuccess, Consumer<Exception> onFailure) {
+        Task task = new Task(description, cancellable);
+        unfinished.add(task);
+        task.future = executor.submit(() -> {
+            try {
+                T result = work.call();
+                SwingUtilities.invokeLater(() -> {
+                    if (finish(task)) {
+                        onSuccess.accept(result);
+                    }
+                });
+            } catch (Throwable t) {
+                //Finishing the task after an error as well, or it would stay unfinished for good
+                Exception failure = t instanceof Exception ? (Exception) t : new ExecutionException(t);
+                SwingUtilities.invokeLater(() -> {
+                    if (finish(task)) {
+                        onFailure.accept(failure);
+                    }
+                });
+            }
+        });
+        fireProgress();
+    }
+
+    /**
+     * Cancels every unfinished task which is cancellable. Their callbacks are
+     * never called.
+     */
+    public void cancel() {
+        unfinished.removeIf(task -> {
+            if (task.cancellable) {
+                task.future.cancel(false);  //Skipping the task if it has not started yet
+            }
+            return task.cancellable;
+        });
+        fireProgress();
+    }
+
+    /**
+     * Returns whether any task is unfinished.
+     *
+     * @return true if a task is waiting or running
+     */
+    public boolean isBusy() {
+        return unfinished.isEmpty() == false;
+    }
+
+    /**
+     * Marks a task as finished once its work is done.
+     *
+     * @param task the task which is done
+     * @return true if its callback should be called, false if it was cancelled
+     */
+    private boolean finish(Task task) {
+        boolean found = unfinished.remove(task);
+        fireProgress();
+        return found;
+    }
+
+    /**
+     * Tells the listener about the oldest unfinished task.
+     */
+    private void fireProgress() {
+        if (listener != null) {
+            Task first = unfinished.peek();
+            listener.progressChanged(first == null ? null : first.description, first != null && first.cancellable, unfinished.size());
+        }
+    }
+}
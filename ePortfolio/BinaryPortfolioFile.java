@@ -0,0 +1,282 @@
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * This class reads and writes portfolios in a compact binary format.
+ *
+ * The file starts with a header holding a magic number, the format version, the
+ * number of investments, the number of strings and the sequence number of the
+ * last journal entry included in the file. It is followed by one column
+ * per field, each holding the value of every investment in order: the types, the
+ * quantities, the prices, the previous prices, the book values and the ids of the
+ * symbols and names in the string table. The string table comes last and stores
+ * every distinct symbol and name once as UTF-8 bytes.
+ *
+ * Files are loaded through a memory-mapped FileChannel, so the columns are read
+ * straight from the page cache without going through a stream.
+ */
+public class BinaryPortfolioFile {
+
+    /**
+     * The magic number at the start of every binary portfolio file ("EPFB").
+     */
+    public static final int MAGIC = 0x45504642;
+
+    /**
+     * The version of the binary format written by this class.
+     */
+    public static final int VERSION = 2;
+
+    private static final int HEADER_SIZE = 24;  //Magic, version, investment count, string count and journal sequence
+    private static final int VERSION_1_HEADER_SIZE = 16;  //Version 1 files have no journal sequence
+    private static final byte STOCK = 0;  //Type column value for stocks
+    private static final byte MUTUAL_FUND = 1;  //Type column value for mutual funds
+
+    private List<Investment> investments = new ArrayList<>();  //Investments read by the last call to read
+    private long journalSequence = 0;  //Journal sequence number of the file read
+
+    /**
+     * Writes the given investments to the given stream in the binary format.
+     * Symbols and names are stored once in the string table no matter how many
+     * investments share them. The stream is flushed but not closed.
+     *
+     * @param stream the stream to write to
+     * @param investments the investments to write
+     * @param journalSequence the sequence number of the last journal entry included, or 0
+     * @throws IOException if the stream cannot be written
+     */
+    public static void write(OutputStream stream, List<Investment> investments, long journalSequence) throws IOException {
+        int count = investments.size();
+        HashMap<String, Integer> stringIds = new HashMap<>();
+        List<String> strings = new ArrayList<>();
+        int[] symbolIds = new int[count];
+        int[] nameIds = new int[count];
+
+        //Building the string table
+        for (int i = 0; i < count; i++) {
+            symbolIds[i] = getStringId(investments.get(i).getSymbol(), stringIds, strings);
+            nameIds[i] = getStringId(investments.get(i).getName(), stringIds, strings);
+        }
+
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream, 1 << 16));
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(count);
+        out.writeInt(strings.size());
+        out.writeLong(journalSequence);
+
+        //Writing the columns one after another
+        for (int i = 0; i < count; i++) {
+            out.writeByte(investments.get(i).isStock() ? STOCK : MUTUAL_FUND);
+        }
+        for (int i = 0; i < count; i++) {
+            out.writeInt(investments.get(i).getQuantity());
+        }
+        for (int i = 0; i < count; i++) {
+            out.writeDouble(investments.get(i).getPrice());
+        }
+        for (int i = 0; i < count; i++) {
+            out.writeDouble(investments.get(i).getPreviousPrice());
+        }
+        for (int i = 0; i < count; i++) {
+            out.writeDouble(investments.get(i).getBookValue());
+        }
+        for (int i = 0; i < count; i++) {
+            out.writeInt(symbolIds[i]);
+        }
+        for (int i = 0; i < count; i++) {
+            out.writeInt(nameIds[i]);
+        }
+
+        //Writing the string table as the end offset of every string followed by the bytes
+        byte[][] encoded = new byte[strings.size()][];
+        int offset = 0;
+        for (int i = 0; i < strings.size(); i++) {
+            encoded[i] = strings.get(i).getBytes(StandardCharsets.UTF_8);
+            offset += encoded[i].length;
+            out.writeInt(offset);
+        }
+        for (int i = 0; i < encoded.length; i++) {
+            out.write(encoded[i]);
+        }
+        out.flush();
+    }
+
+    /**
+     * Returns the investments read by the last call to read, in their saved order.
+     *
+     * @return the investments read from the file
+     */
+    public List<Investment> getInvestments() {
+        return investments;
+    }
+
+    /**
+     * Returns the sequence number of the last journal entry included in the file
+     * read, or 0 if the file does not have one.
+     *
+     * @return the journal sequence number of the file
+     */
+    public long getJournalSequence() {
+        return journalSequence;
+    }
+
+    /**
+     * Reads the investments stored in the given binary portfolio file. The file
+     * is mapped into memory and every column is read with a single bulk copy.
+     * Files written in version 1 of the format are read as well.
+     *
+     * @param file the file to read from
+     * @throws IOException if the file cannot be read or is not a valid binary portfolio file
+     */
+    public void read(File file) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r"); FileChannel channel = raf.getChannel()) {
+
+            if (channel.size() < VERSION_1_HEADER_SIZE || channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("Invalid binary portfolio file size: " + channel.size());
+            }
+
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+
+            if (buffer.getInt() != MAGIC) {
+                throw new IOException("Not a binary portfolio file: " + file);
+            }
+            int version = buffer.getInt();
+            if (version != 1 && version != VERSION) {
+                throw new IOException("Unsupported binary portfolio version: " + version);
+            }
+
+            int count = buffer.getInt();
+            int stringCount = buffer.getInt();
+            int headerSize = VERSION_1_HEADER_SIZE;
+            journalSequence = 0;
+            if (version >= 2) {
+                if (buffer.remaining() < 8) {
+                    throw new IOException("Truncated binary portfolio file: " + file);
+                }
+                journalSequence = buffer.getLong();
+                headerSize = HEADER_SIZE;
+            }
+
+            long expectedSize = headerSize + count * (1L + 4 + 8 + 8 + 8 + 4 + 4) + stringCount * 4L;
+            if (count < 0 || stringCount < 0 || expectedSize > buffer.limit()) {
+                throw new IOException("Truncated binary portfolio file: " + file);
+            }
+
+            //Reading every column with a bulk copy
+            byte[] types = new byte[count];
+            buffer.get(types);
+
+            int[] quantities = new int[count];
+            buffer.asIntBuffer().get(quantities);
+            buffer.position(buffer.position() + count * 4);
+
+            double[] prices = new double[count];
+            buffer.asDoubleBuffer().get(prices);
+            buffer.position(buffer.position() + count * 8);
+
+            double[] previousPrices = new double[count];
+            buffer.asDoubleBuffer().get(previousPrices);
+            buffer.position(buffer.position() + count * 8);
+
+            double[] bookValues = new double[count];
+            buffer.asDoubleBuffer().get(bookValues);
+            buffer.position(buffer.position() + count * 8);
+
+            int[] symbolIds = new int[count];
+            buffer.asIntBuffer().get(symbolIds);
+            buffer.position(buffer.position() + count * 4);
+
+            int[] nameIds = new int[count];
+            buffer.asIntBuffer().get(nameIds);
+            buffer.position(buffer.position() + count * 4);
+
+            String[] strings = readStrings(buffer, stringCount);
+
+            //Creating the investments from the columns
+            investments = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                if (symbolIds[i] < 0 || symbolIds[i] >= stringCount || nameIds[i] < 0 || nameIds[i] >= stringCount) {
+                    throw new IOException("Invalid string id for investment " + i + " in " + file);
+                }
+
+                Investment investment;
+                try {
+                    if (types[i] == STOCK) {
+                        investment = new Stock(strings[symbolIds[i]], strings[nameIds[i]], quantities[i], prices[i], bookValues[i]);
+                    } else if (types[i] == MUTUAL_FUND) {
+                        investment = new MutualFund(strings[symbolIds[i]], strings[nameIds[i]], quantities[i], prices[i], bookValues[i]);
+                    } else {
+                        throw new IOException("Invalid investment type " + types[i] + " for investment " + i + " in " + file);
+                    }
+                    investment.setPreviousPrice(Money.fromDouble(previousPrices[i]));
+                } catch (ArithmeticException e) {
+                    throw new IOException("Invalid amounts for investment " + i + " in " + file, e);
+                }
+                investments.add(investment);
+            }
+        }
+    }
+
+    /**
+     * Reads the string table at the current position of the buffer.
+     *
+     * @param buffer the buffer positioned at the start of the string table
+     * @param stringCount the number of strings in the table
+     * @return the decoded strings, indexed by their id
+     * @throws IOException if the table does not fit in the buffer
+     */
+    private static String[] readStrings(MappedByteBuffer buffer, int stringCount) throws IOException {
+        int[] endOffsets = new int[stringCount];
+        buffer.asIntBuffer().get(endOffsets);
+        buffer.position(buffer.position() + stringCount * 4);
+
+        int totalLength = stringCount == 0 ? 0 : endOffsets[stringCount - 1];
+        if (totalLength < 0 || totalLength > buffer.remaining()) {
+            throw new IOException("Truncated string table");
+        }
+
+        byte[] bytes = new byte[totalLength];
+        buffer.get(bytes);
+
+        String[] strings = new String[stringCount];
+        int start = 0;
+        for (int i = 0; i < stringCount; i++) {
+            if (endOffsets[i] < start || endOffsets[i] > totalLength) {
+                throw new IOException("Invalid string table offset for string " + i);
+            }
+            strings[i] = new String(bytes, start, endOffsets[i] - start, StandardCharsets.UTF_8);
+            start = endOffsets[i];
+        }
+        return strings;
+    }
+
+    /**
+     * Returns the id of the given string in the string table, adding it to the
+     * table if it is not there yet.
+     *
+     * @param value the string to look up
+     * @param stringIds the ids of the strings already in the table
+     * @param strings the strings of the table in id order
+     * @return the id of the string
+     */
+    private static int getStringId(String value, HashMap<String, Integer> stringIds, List<String> strings) {
+        Integer id = stringIds.get(value);
+        if (id == null) {
+            id = strings.size();
+            stringIds.put(value, id);
+            strings.add(value);
+        }
+        return id;
+    }
+}
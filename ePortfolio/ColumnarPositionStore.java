@@ -0,0 +1,370 @@
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.function.IntFunction;
+
+/**
+ * This class stores positions as parallel arrays of primitives.
+ *
+ * Every field has its own array indexed by slot: the types, the quantities, the
+ * prices, the previous prices, the book values and the ids of the symbols and
+ * names. Symbols and names are interned in a string table, so each distinct
+ * string is kept once, and counted, so a string is dropped and its id reused
+ * once no slot uses it. A scan such as the total gain walks the arrays in order
+ * instead of following a reference to every Investment object. Reading a
+ * number or a string allocates nothing, while getState builds a new
+ * PositionState.
+ *
+ * Changes are made while holding the monitor of the store and are published
+ * through a SequenceLock, so the getters read the columns and the string table
+ * without locking and only retry when a change was made meanwhile, including
+ * a change which replaced the columns by larger ones.
+ */
+public class ColumnarPositionStore implements PositionStore {
+
+    private static final byte FREE = -1;  //Type of a slot which holds no position
+    private static final byte STOCK = 0;
+    private static final byte MUTUAL_FUND = 1;
+    private static final int OPTIMISTIC_READS = 8;  //Attempts of a read before it waits for the writer
+    private static final int QUANTITY = 0;  //Columns read by readNumber
+    private static final int PRICE = 1;
+    private static final int PREVIOUS_PRICE = 2;
+    private static final int BOOK_VALUE = 3;
+
+    private byte[] types;
+    private int[] quantities;
+    private long[] prices;  //Amounts in micro-units
+    private long[] previousPrices;
+    private long[] bookValues;
+    private int[] symbolIds;
+    private int[] nameIds;
+    private int size = 0;  //Number of slots handed out so far, including freed ones
+
+    private int[] freeSlots = new int[16];  //Freed slots waiting to be handed out again
+    private int freeCount = 0;
+
+    private String[] strings = new String[16];  //Interned strings by id, null for a free id
+    private int[] stringUses = new int[16];  //Number of symbols and names using each id
+    private int stringCount = 0;  //Number of ids handed out so far, including freed ones
+    private int[] freeStrings = new int[16];  //Freed ids waiting to be handed out again
+    private int freeStringCount = 0;
+    private final HashMap<String, Integer> stringIds = new HashMap<>();
+
+    private final SequenceLock sequence = new SequenceLock();
+
+    private final IntFunction<PositionState> stateReader = this::readState;  //Kept in a field so a read creates no lambda
+
+    /**
+     * Constructs a new empty ColumnarPositionStore.
+     */
+    public ColumnarPositionStore() {
+        this(1024);
+    }
+
+    /**
+     * Constructs a new empty ColumnarPositionStore with room for the given number
+     * of positions before the arrays have to grow.
+     *
+     * @param capacity the initial number of slots
+     */
+    public ColumnarPositionStore(int capacity) {
+        capacity = Math.max(capacity, 16);
+        types = new byte[capacity];
+        quantities = new int[capacity];
+        prices = new long[capacity];
+        previousPrices = new long[capacity];
+        bookValues = new long[capacity];
+        symbolIds = new int[capacity];
+        nameIds = new int[capacity];
+    }
+
+    @Override
+    public synchronized int allocate(boolean stock, String symbol, String name, PositionState state) {
+        sequence.beginWrite();
+        try {
+            int slot;
+            if (freeCount > 0) {  //Case where a freed slot can be reused
+                slot = freeSlots[--freeCount];
+            } else {
+                if (size == types.length) {
+                    grow();
+                }
+                slot = size++;
+            }
+
+            types[slot] = stock ? STOCK : MUTUAL_FUND;
+            symbolIds[slot] = intern(symbol);
+            nameIds[slot] = intern(name);
+            writeState(slot, state);
+            return slot;
+        } finally {
+            sequence.endWrite();
+        }
+    }
+
+    @Override
+    public synchronized void free(int slot) {
+        sequence.beginWrite();
+        try {
+            types[slot] = FREE;
+            release(symbolIds[slot]);
+            release(nameIds[slot]);
+            if (freeCount == freeSlots.length) {
+                freeSlots = Arrays.copyOf(freeSlots, freeCount * 2);
+            }
+            freeSlots[freeCount++] = slot;
+        } finally {
+            sequence.endWrite();
+        }
+    }
+
+    @Override
+    public String getSymbol(int slot) {
+        return readString(slot, true);
+    }
+
+    @Override
+    public String getName(int slot) {
+        return readString(slot, false);
+    }
+
+    @Override
+    public int getQuantity(int slot) {
+        return (int) readNumber(slot, QUANTITY);
+    }
+
+    @Override
+    public long getPrice(int slot) {
+        return readNumber(slot, PRICE);
+    }
+
+    @Override
+    public long getPreviousPrice(int slot) {
+        return readNumber(slot, PREVIOUS_PRICE);
+    }
+
+    @Override
+    public long getBookValue(int slot) {
+        return readNumber(slot, BOOK_VALUE);
+    }
+
+    @Override
+    public PositionState getState(int slot) {
+        return read(slot, stateReader);
+    }
+
+    @Override
+    public synchronized boolean compareAndSetState(int slot, PositionState expected, PositionState state) {
+        if (readState(slot).equals(expected) == false) {
+            return false;
+        }
+
+        sequence.beginWrite();
+        try {
+            writeState(slot, state);
+        } finally {
+            sequence.endWrite();
+        }
+        return true;
+    }
+
+    @Override
+    public synchronized long calculateTotalGain() {
+        long sum = 0;
+
+        //Walking the columns in slot order and skipping the freed slots
+        for (int slot = 0; slot < size; slot++) {
+            if (types[slot] == STOCK) {
+                sum += Stock.calculateGain(quantities[slot], prices[slot], previousPrices[slot]);
+            } else if (types[slot] == MUTUAL_FUND) {
+                sum += MutualFund.calculateGain(quantities[slot], prices[slot], previousPrices[slot]);
+            }
+        }
+        return sum;
+    }
+
+    /**
+     * Reads the state of the given slot without locking, and retries if a change
+     * was made while it was read. A read which keeps failing waits for the
+     * writer instead.
+     *
+     * @param <T> the type of the value
+     * @param slot the slot to read
+     * @param reader the function reading the value from the columns
+     * @return the value read
+     */
+    private <T> T read(int slot, IntFunction<T> reader) {
+        for (int attempt = 0; attempt < OPTIMISTIC_READS; attempt++) {
+            long stamp = sequence.beginRead();
+            try {
+                T value = reader.apply(slot);
+                if (sequence.validate(stamp)) {
+                    return value;
+                }
+            } catch (IndexOutOfBoundsException e) {
+                //Case where the columns or the string table grew while being read
+            }
+            Thread.onSpinWait();
+        }
+
+        synchronized (this) {  //Case where the columns keep changing, so the writer is waited for
+            return reader.apply(slot);
+        }
+    }
+
+    /**
+     * Reads a number of the given slot as read does, without boxing it.
+     *
+     * @param slot the slot to read
+     * @param column the column to read, such as PRICE
+     * @return the value of the column, widened to a long for the quantity
+     */
+    private long readNumber(int slot, int column) {
+        for (int attempt = 0; attempt < OPTIMISTIC_READS; attempt++) {
+            long stamp = sequence.beginRead();
+            try {
+                long value = getNumber(slot, column);
+                if (sequence.validate(stamp)) {
+                    return value;
+                }
+            } catch (IndexOutOfBoundsException e) {
+                //Case where the columns grew while being read
+            }
+            Thread.onSpinWait();
+        }
+
+        synchronized (this) {  //Case where the columns keep changing, so the writer is waited for
+            return getNumber(slot, column);
+        }
+    }
+
+    /**
+     * Reads a number of the given slot from its column.
+     *
+     * @param slot the slot to read
+     * @param column the column to read, such as PRICE
+     * @return the value of the column, widened to a long for the quantity
+     */
+    private long getNumber(int slot, int column) {
+        switch (column) {
+            case QUANTITY:
+                return quantities[slot];
+            case PRICE:
+                return prices[slot];
+            case PREVIOUS_PRICE:
+                return previousPrices[slot];
+            default:
+                return bookValues[slot];
+        }
+    }
+
+    /**
+     * Reads the symbol or the name of the given slot as read does. A string
+     * read while its id was freed and handed out again fails the validation,
+     * so it is never returned.
+     *
+     * @param slot the slot to read
+     * @param symbol true to read the symbol, false to read the name
+     * @return the string read
+     */
+    private String readString(int slot, boolean symbol) {
+        for (int attempt = 0; attempt < OPTIMISTIC_READS; attempt++) {
+            long stamp = sequence.beginRead();
+            try {
+                String value = strings[symbol ? symbolIds[slot] : nameIds[slot]];
+                if (sequence.validate(stamp)) {
+                    return value;
+                }
+            } catch (IndexOutOfBoundsException e) {
+                //Case where the columns or the string table grew while being read
+            }
+            Thread.onSpinWait();
+        }
+
+        synchronized (this) {  //Case where the columns keep changing, so the writer is waited for
+            return strings[symbol ? symbolIds[slot] : nameIds[slot]];
+        }
+    }
+
+    /**
+     * Reads the values of the given slot from the columns.
+     *
+     * @param slot the slot to read
+     * @return the values of the slot
+     */
+    private PositionState readState(int slot) {
+        return new PositionState(quantities[slot], prices[slot], previousPrices[slot], bookValues[slot]);
+    }
+
+    /**
+     * Writes the given values to the columns of the given slot.
+     *
+     * @param slot the slot to write
+     * @param state the values to write
+     */
+    private void writeState(int slot, PositionState state) {
+        quantities[slot] = state.getQuantity();
+        prices[slot] = state.getPrice();
+        previousPrices[slot] = state.getPreviousPrice();
+        bookValues[slot] = state.getBookValue();
+    }
+
+    /**
+     * Doubles the length of every column.
+     */
+    private void grow() {
+        int capacity = types.length * 2;
+        types = Arrays.copyOf(types, capacity);
+        quantities = Arrays.copyOf(quantities, capacity);
+        prices = Arrays.copyOf(prices, capacity);
+        previousPrices = Arrays.copyOf(previousPrices, capacity);
+        bookValues = Arrays.copyOf(bookValues, capacity);
+        symbolIds = Arrays.copyOf(symbolIds, capacity);
+        nameIds = Arrays.copyOf(nameIds, capacity);
+    }
+
+    /**
+     * Returns the id of the given string in the string table, adding it if it is
+     * not there yet, and counts one more use of it. A freed id is reused before
+     * the table grows.
+     *
+     * @param value the string to look up
+     * @return the id of the string
+     */
+    private int intern(String value) {
+        Integer id = stringIds.get(value);
+        if (id == null) {
+            if (freeStringCount > 0) {  //Case where the id of a dropped string can be reused
+                id = freeStrings[--freeStringCount];
+            } else {
+                if (stringCount == strings.length) {
+                    strings = Arrays.copyOf(strings, stringCount * 2);
+                    stringUses = Arrays.copyOf(stringUses, stringCount * 2);
+                }
+                id = stringCount++;
+            }
+            strings[id] = value;
+            stringIds.put(value, id);
+        }
+        stringUses[id]++;
+        return id;
+    }
+
+    /**
+     * Counts one less use of the string with the given id, and drops the string
+     * from the table once no slot uses it, so its id can be handed out again.
+     *
+     * @param id the id of the string
+     */
+    private void release(int id) {
+        if (--stringUses[id] > 0) {
+            return;
+        }
+
+        stringIds.remove(strings[id]);
+        strings[id] = null;
+        if (freeStringCount == freeStrings.length) {
+            freeStrings = Arrays.copyOf(freeStrings, freeStringCount * 2);
+        }
+        freeStrings[freeStringCount++] = id;
+    }
+}
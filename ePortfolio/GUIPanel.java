@@ -1,5 +1,14 @@
 import javax.swing.*;
 import java.awt.*;
+import java.io.File;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
+import javax.swing.table.DefaultTableCellRenderer;
 
 /**
  * This class represents a GUI Panel.
@@ -43,7 +52,14 @@ public class GUIPanel {
         this.fileName = fileName;
     }
 
+    private static final int TYPING_DELAY = 250;  //Milliseconds without a key press before the search runs
+    private static final int TYPING_RESULTS = 200;  //Matches shown while typing, until Search is pressed
+
     private JFrame ePortfolioFrame = new JFrame("ePortfolio");
+    private BackgroundTasks tasks = new BackgroundTasks();  //Runs the portfolio operations off the event dispatch thread
+    private JLabel taskLabel = new JLabel();
+    private JProgressBar taskProgress = new JProgressBar();
+    private JButton cancelButton = new JButton("Cancel");
     private JMenuBar optionsBar = addOptionsToBar();
     private int Index = 0;
 
@@ -61,6 +77,8 @@ public class GUIPanel {
         sellingInvestment.addActionListener(e -> sellExistingInvestment());
         JMenuItem updatingInvestment = new JMenuItem("Updating investments");
         updatingInvestment.addActionListener(e -> updateInvestments());
+        JMenuItem importingPrices = new JMenuItem("Importing prices");
+        importingPrices.addActionListener(e -> importPrices());
         JMenuItem totalGain = new JMenuItem("Getting total gain");
         totalGain.addActionListener(e -> getTotalGain());
         JMenuItem searchingInvestments = new JMenuItem("Searching Investments");
@@ -71,14 +89,64 @@ public class GUIPanel {
         optionsMenu.add(buyingInvestment);
         optionsMenu.add(sellingInvestment);
         optionsMenu.add(updatingInvestment);
+        optionsMenu.add(importingPrices);
         optionsMenu.add(totalGain);
         optionsMenu.add(searchingInvestments);
         optionsMenu.add(quit);
         optionsBar.add(optionsMenu);
 
+        //Progress of the running operation on the right of the menu bar, hidden while nothing runs
+        taskProgress.setIndeterminate(true);
+        cancelButton.addActionListener(e -> tasks.cancel());
+        optionsBar.add(Box.createHorizontalGlue());
+        optionsBar.add(taskLabel);
+        optionsBar.add(taskProgress);
+        optionsBar.add(cancelButton);
+        showProgress(null, false, 0);
+        tasks.setProgressListener(this::showProgress);
+
         return optionsBar;
     }
 
+    /**
+     * Shows the operation running in the background in the menu bar, with a
+     * cancel button if it can be cancelled.
+     *
+     * @param description the description of the running operation, or null if nothing runs
+     * @param cancellable true if the operation can be cancelled
+     * @param waiting the number of operations waiting or running
+     */
+    private void showProgress(String description, boolean cancellable, int waiting) {
+        taskLabel.setText(description == null ? "" : waiting > 1 ? description + " (" + (waiting - 1) + " more) " : description + " ");
+        taskLabel.setVisible(description != null);
+        taskProgress.setVisible(description != null);
+        cancelButton.setVisible(description != null && cancellable);
+    }
+
+    /**
+     * Creates a table showing the investments of the given model. Clicking a
+     * column header sorts the rows by that column, and the amounts are shown
+     * in dollars, aligned to the right.
+     *
+     * @param model the model holding the investments
+     * @return the table
+     */
+    private JTable createInvestmentTable(InvestmentTableModel model) {
+        JTable table = new JTable(model);
+        table.setAutoCreateRowSorter(true);
+        table.setFillsViewportHeight(true);
+
+        DefaultTableCellRenderer moneyRenderer = new DefaultTableCellRenderer() {
+            @Override
+            protected void setValue(Object value) {
+                setText(value == null ? "" : "$" + Money.toString((Long) value));
+            }
+        };
+        moneyRenderer.setHorizontalAlignment(SwingConstants.RIGHT);
+        table.setDefaultRenderer(Long.class, moneyRenderer);
+        return table;
+    }
+
 /**
  * Displays a GUI form for buying a new investment. The form allows the user to 
  * input the type of investment (Stock or MutualFund), along with details such 
@@ -230,8 +298,9 @@ public class GUIPanel {
                         return;
                     }
 
-                    String message = portfolio.buy(type, symbol, name, quantity, price);
-                    registerMessages.append(message + "\n");
+                    tasks.submit("Buying " + symbol, false, () -> TradeMessages.format(portfolio.buy(type, symbol, name, quantity, price)),
+                            message -> registerMessages.append(message + "\n"),
+                            ex -> registerMessages.append(ex.getMessage() + "\n"));
 
                 } catch (IllegalArgumentException ex) {
                     registerMessages.append("Input Error: " + ex.getMessage() + "\n");
@@ -372,8 +441,9 @@ public class GUIPanel {
                         return;
                     }
 
-                    String message = portfolio.sell(symbol, quantity, price);
-                    registerMessages.append(message + "\n");
+                    tasks.submit("Selling " + symbol, false, () -> TradeMessages.format(portfolio.sell(symbol, quantity, price)),
+                            message -> registerMessages.append(message + "\n"),
+                            ex -> registerMessages.append(ex.getMessage() + "\n"));
                 } catch (IllegalArgumentException ex) {
                     registerMessages.append("Input Error: " + ex.getMessage() + "\n");
                 } catch (Exception ex) {
@@ -540,8 +610,9 @@ public class GUIPanel {
                     }
                     
 
-                    String result = portfolio.update(symbol, price, name);
-                    registerMessages.append(result + "\n");
+                    tasks.submit("Updating " + symbol, false, () -> TradeMessages.formatUpdate(portfolio.update(symbol, price, name)),
+                            result -> registerMessages.append(result + "\n"),
+                            ex -> registerMessages.append(ex.getMessage() + "\n"));
                 } catch (IllegalArgumentException ex) {
                     registerMessages.append("Error: " + ex.getMessage() + "\n");
                 }catch (Exception ex) {
@@ -593,21 +664,22 @@ public class GUIPanel {
             JTextField totalGain = new JTextField(15);
             totalGain.setEditable(false); 
             form.add(totalGain, constraints);
-            totalGain.setText(portfolio.calculateGain());
+            totalGain.setText("Calculating...");
 
             //Panel for individual gains with a label on top
             JPanel messagesPanel = new JPanel(new BorderLayout());
             JLabel messagesLabel = new JLabel("Individual gains:");
             messagesPanel.add(messagesLabel, BorderLayout.NORTH);
 
-            JTextArea registerMessages = new JTextArea(20, 20);
-            registerMessages.setEditable(false);
-            String[] individualGains = portfolio.calculateIndividualInvestmentGain();
-            //Loop to display individual gains
-            for (int i = 0; i < individualGains.length; i++) {
-                registerMessages.append(individualGains[i] + "\n");
-            }
-            messagesPanel.add(new JScrollPane(registerMessages), BorderLayout.CENTER);
+            //Table of individual gains, which only reads the rows it shows
+            InvestmentTableModel gainsModel = new InvestmentTableModel(portfolio::getVersion);
+            JTable gainsTable = createInvestmentTable(gainsModel);
+            gainsTable.setPreferredScrollableViewportSize(new Dimension(800, 320));
+
+            //Calculating the gains in the background and showing them once they are ready
+            tasks.submit("Calculating gains", true, portfolio::calculateGain, totalGain::setText, ex -> totalGain.setText(ex.getMessage()));
+            listInvestments("Listing investments", gainsModel, messagesLabel, portfolio::getInvestments, () -> true, Integer.MAX_VALUE, investments -> null);
+            messagesPanel.add(new JScrollPane(gainsTable), BorderLayout.CENTER);
             registerPanel.add(messagesPanel, BorderLayout.SOUTH);
 
             //Update the main frame
@@ -618,12 +690,90 @@ public class GUIPanel {
         });
     }
 
+    /**
+     * Asks the user for a price file and updates the prices of the investments
+     * from it in the background. The outcome is displayed by displayImportResult
+     * once the import is done, and so is the error if the import failed.
+     */
+    private void importPrices() {
+        SwingUtilities.invokeLater(() -> {
+            JFileChooser chooser = new JFileChooser(new File("."));
+            if (chooser.showOpenDialog(ePortfolioFrame) != JFileChooser.APPROVE_OPTION) {
+                return;
+            }
+            File file = chooser.getSelectedFile();
+            tasks.submit("Importing " + file.getName(), false, () -> portfolio.importPrices(file, true),
+                    result -> displayImportResult(file, result),
+                    ex -> displayImportResult(file, new PriceImportResult(0, List.of(), List.of("Error: " + ex.getMessage()))));
+        });
+    }
+
+    /**
+     * Displays the outcome of a price import: how many prices were updated,
+     * followed by the symbols of the file which are not held and the records
+     * which could not be read. The form is updated within the main application
+     * frame.
+     *
+     * @param file the price file which was imported
+     * @param result the outcome of the import
+     */
+    private void displayImportResult(File file, PriceImportResult result) {
+        JPanel registerPanel = new JPanel(new BorderLayout());
+
+        JPanel form = new JPanel(new GridBagLayout());
+        GridBagConstraints constraints = new GridBagConstraints();
+        registerPanel.add(form, BorderLayout.CENTER);
+
+        //Constraints for components
+        constraints.fill = GridBagConstraints.HORIZONTAL;
+        constraints.anchor = GridBagConstraints.NORTH;
+        constraints.insets = new Insets(5, 5, 5, 5);
+
+        constraints.gridx = 0;
+        constraints.gridy = 0;
+        constraints.gridwidth = 2;
+        form.add(new JLabel("Importing prices from " + file.getName()), constraints);
+
+        constraints.gridx = 0;
+        constraints.gridy = 1;
+        form.add(new JLabel(result.toString()), constraints);
+
+        //Panel for the unmatched symbols and errors with a label on top
+        JPanel messagesPanel = new JPanel(new BorderLayout());
+        JLabel messagesLabel = new JLabel("Symbols not held and invalid records:");
+        messagesPanel.add(messagesLabel, BorderLayout.NORTH);
+
+        JTextArea registerMessages = new JTextArea(20, 20);
+        registerMessages.setEditable(false);
+        StringBuilder messages = new StringBuilder();  //Building the text at once, since a file can list many symbols
+        for (String symbol : result.getUnmatched()) {
+            messages.append("Not held: ").append(symbol).append('\n');
+        }
+        for (String error : result.getErrors()) {
+            messages.append(error).append('\n');
+        }
+        registerMessages.setText(messages.toString());
+        messagesPanel.add(new JScrollPane(registerMessages), BorderLayout.CENTER);
+        registerPanel.add(messagesPanel, BorderLayout.SOUTH);
+
+        //Update the main frame
+        ePortfolioFrame.getContentPane().removeAll();
+        ePortfolioFrame.getContentPane().add(registerPanel);
+        ePortfolioFrame.revalidate();
+        ePortfolioFrame.repaint();
+    }
+
         /**
          * Displays a GUI form for searching investments in the portfolio. The form
          * includes text fields for symbol, name keywords, low price, and high price.
          * The user can enter any of these fields to search for the relevant
-         * investments. The search results are displayed in a text area with a label
-         * on top. The form is updated within the main application frame.
+         * investments. While the user types, the search runs once no key was
+         * pressed for a moment, with the symbol and keywords matching the start of
+         * words, and only the first matches are shown. The Search button runs the
+         * search of searchOperation, where the symbol and keywords match whole
+         * symbols and words, and shows every match. The search results are
+         * displayed in a table with a label on top. The form is updated within the
+         * main application frame.
          */
     private void searchInvestments() {
         SwingUtilities.invokeLater(() -> {
@@ -700,18 +850,77 @@ public class GUIPanel {
             JLabel messagesLabel = new JLabel("Search results:");
             messagesPanel.add(messagesLabel, BorderLayout.NORTH);
 
-            JTextArea registerMessages = new JTextArea(10, 20);
-            registerMessages.setEditable(false);
-            messagesPanel.add(new JScrollPane(registerMessages), BorderLayout.CENTER);
+            //Table of matching investments, which only reads the rows it shows
+            InvestmentTableModel resultsModel = new InvestmentTableModel(portfolio::getVersion);
+            JTable resultsTable = createInvestmentTable(resultsModel);
+            resultsTable.setPreferredScrollableViewportSize(new Dimension(800, 160));
+            messagesPanel.add(new JScrollPane(resultsTable), BorderLayout.CENTER);
             registerPanel.add(messagesPanel, BorderLayout.SOUTH);
 
+            //Number of the latest query, so the results of older ones are dropped
+            AtomicInteger latestQuery = new AtomicInteger();
+
+            //Search started by typing, once no key was pressed for TYPING_DELAY milliseconds
+            Timer typingTimer = new Timer(TYPING_DELAY, e -> {
+                String symbol = symbolInput.getText().trim();
+                String nameKeywords = nameKeywordsInput.getText().trim();
+                String lowPrice = lowPriceInput.getText().trim();
+                String highPrice = highPriceInput.getText().trim();
+                int query = latestQuery.incrementAndGet();
+
+                if (symbol.isEmpty() && nameKeywords.isEmpty() && lowPrice.isEmpty() && highPrice.isEmpty()) {
+                    messagesLabel.setText("Search results:");
+                    resultsModel.clear();
+                    return;
+                }
+
+                try {
+                    checkSearchPrices(lowPrice, highPrice);
+                } catch (IllegalArgumentException ex) {
+                    messagesLabel.setText("Error: " + ex.getMessage());
+                    return;
+                }
+
+                //Reading one more match than shown tells whether there are more; a newer query replaces this one if the user kept typing
+                listInvestments("Searching", resultsModel, messagesLabel, () -> portfolio.searchPrefix(symbol, lowPrice, highPrice, nameKeywords, TYPING_RESULTS + 1),
+                        () -> latestQuery.get() == query, TYPING_RESULTS, results -> results.size() > TYPING_RESULTS
+                                ? "Search results: first " + TYPING_RESULTS + " investments starting with the given text, press Search for the exact matches"
+                                : searchOutcome(results));
+            });
+            typingTimer.setRepeats(false);
+
+            //Restarting the delay on every change of the fields
+            DocumentListener typingListener = new DocumentListener() {
+                @Override
+                public void insertUpdate(DocumentEvent e) {
+                    typingTimer.restart();
+                }
+
+                @Override
+                public void removeUpdate(DocumentEvent e) {
+                    typingTimer.restart();
+                }
+
+                @Override
+                public void changedUpdate(DocumentEvent e) {
+                    typingTimer.restart();
+                }
+            };
+            symbolInput.getDocument().addDocumentListener(typingListener);
+            nameKeywordsInput.getDocument().addDocumentListener(typingListener);
+            lowPriceInput.getDocument().addDocumentListener(typingListener);
+            highPriceInput.getDocument().addDocumentListener(typingListener);
+
             //Reset button action
             resetButton.addActionListener(e -> {
                 symbolInput.setText("");
                 nameKeywordsInput.setText("");
                 lowPriceInput.setText("");
                 highPriceInput.setText("");
-                registerMessages.setText("");
+                typingTimer.stop();
+                latestQuery.incrementAndGet();
+                messagesLabel.setText("Search results:");
+                resultsModel.clear();
             });
 
             //Search button action
@@ -725,37 +934,19 @@ public class GUIPanel {
                     String lowPrice = lowPriceInput.getText().trim();
                     String highPrice = highPriceInput.getText().trim();
 
-                    if(!lowPrice.isEmpty()){
-                        try {
-                            double lPrice = Double.parseDouble(lowPriceInput.getText().trim());
-                            if (lPrice <= 0) {
-                                throw new IllegalArgumentException("Lower price must be positive.");
-                            }
-                        } catch (NumberFormatException ex) {
-                            throw new IllegalArgumentException("Invalid lower price: Must be a valid number.");
-                        }
-                    }
+                    checkSearchPrices(lowPrice, highPrice);
 
-                    if(!highPrice.isEmpty()){
-                        try {
-                            double hPrice = Double.parseDouble(highPriceInput.getText().trim());
-                            if (hPrice <= 0) {
-                                throw new IllegalArgumentException("Higher price must be positive.");
-                            }
-                        } catch (NumberFormatException ex) {
-                            throw new IllegalArgumentException("Invalid higher price: Must be a valid number.");
-                        }
-                    }
-                    
-                    
-                    String[] results = portfolio.searchOperation(symbol, lowPrice, highPrice, nameKeywords);
-                    for (String result : results){
-                        registerMessages.append(result + "\n");
-                    }
+                    //Replacing any search started by typing
+                    typingTimer.stop();
+                    int query = latestQuery.incrementAndGet();
+
+                    //Matching whole symbols and words like searchOperation, unlike the search started by typing
+                    listInvestments("Searching", resultsModel, messagesLabel, () -> portfolio.searchInvestments(symbol, lowPrice, highPrice, nameKeywords),
+                            () -> latestQuery.get() == query, Integer.MAX_VALUE, this::searchOutcome);
                 }catch (IllegalArgumentException ex) {
-                    registerMessages.append("Error: " + ex.getMessage() + "\n");
+                    messagesLabel.setText("Error: " + ex.getMessage());
                 }catch (Exception ex) {
-                    registerMessages.append(ex.getMessage() + "\n");
+                    messagesLabel.setText(ex.getMessage());
                 }   
                 
             });
@@ -768,20 +959,106 @@ public class GUIPanel {
         });
     }
 
+    /**
+     * Checks the price range of a search, where each price is either empty or
+     * a positive number.
+     *
+     * @param lowPrice the text of the lower price
+     * @param highPrice the text of the higher price
+     * @throws IllegalArgumentException if a price is not valid
+     */
+    private void checkSearchPrices(String lowPrice, String highPrice) {
+        if(!lowPrice.isEmpty()){
+            try {
+                double lPrice = Double.parseDouble(lowPrice);
+                if (lPrice <= 0) {
+                    throw new IllegalArgumentException("Lower price must be positive.");
+                }
+            } catch (NumberFormatException ex) {
+                throw new IllegalArgumentException("Invalid lower price: Must be a valid number.");
+            }
+        }
+
+        if(!highPrice.isEmpty()){
+            try {
+                double hPrice = Double.parseDouble(highPrice);
+                if (hPrice <= 0) {
+                    throw new IllegalArgumentException("Higher price must be positive.");
+                }
+            } catch (NumberFormatException ex) {
+                throw new IllegalArgumentException("Invalid higher price: Must be a valid number.");
+            }
+        }
+    }
+
+    /**
+     * Returns the text of the label above the search results, giving their number.
+     *
+     * @param results the matching investments
+     * @return the text of the label
+     */
+    private String searchOutcome(List<Investment> results) {
+        return results.isEmpty() ? "No investments found matching the given criteria." : "Search results: " + results.size() + " investments";
+    }
+
+    /**
+     * Lists investments into a table in the background, unless the listing is
+     * no longer wanted by the time it runs or finishes. The table reads the
+     * investments as it shows them, and runs the same listing again once it
+     * finds that the portfolio changed since.
+     *
+     * @param description the description of the task, shown while it runs
+     * @param model the model of the table
+     * @param messagesLabel the label above the table
+     * @param source the source of the investments, run in the background
+     * @param wanted tells whether the listing is still wanted, as a newer search replaces an older one
+     * @param limit the largest number of investments shown
+     * @param outcome the text of the label for the investments listed, or null to leave the label
+     */
+    private void listInvestments(String description, InvestmentTableModel model, JLabel messagesLabel, Supplier<List<Investment>> source,
+            BooleanSupplier wanted, int limit, Function<List<Investment>, String> outcome) {
+        tasks.submit(description, true, () -> wanted.getAsBoolean() ? model.list(source) : null, listing -> {
+            if (listing == null || wanted.getAsBoolean() == false) {
+                return;  //Case where a newer listing replaces this one
+            }
+            List<Investment> investments = listing.getInvestments();
+            model.setInvestments(investments.size() > limit ? investments.subList(0, limit) : investments, listing.getVersion(),
+                    () -> listInvestments(description, model, messagesLabel, source, wanted, limit, outcome));
+            String text = outcome.apply(investments);
+            if (text != null) {
+                messagesLabel.setText(text);
+            }
+        }, ex -> messagesLabel.setText(ex.getMessage()));
+    }
+
 /**
  * Exits the application after saving the current state of the portfolio to a file.
  * If a specific file name is provided, the portfolio is saved with that name.
  * Otherwise, it is saved with a default file name "cis2430".
+ * The save runs in the background after the operations already submitted, and
+ * cancelling it keeps the application open. If the file could not be saved, an
+ * error is shown and the application stays open, so no change is lost.
  */
     private void quitCommand() {
-        if (fileName != null) {
-            portfolio.saveInvestments(fileName);  //Case when filename is provided
+        String saveName = fileName != null ? fileName : "cis2430";  //Using the default name when no filename is provided
+        tasks.submit("Saving " + saveName, true, () -> portfolio.saveInvestments(saveName), saved -> {
+            if (saved) {
+                System.exit(0);
+            }
+            showSaveError(saveName, "The file could not be written.");
+        }, ex -> showSaveError(saveName, ex.getMessage()));
+    }
 
-        }
-        else{
-            portfolio.saveInvestments("cis2430");  //Case when filename is not provided
-        }
-        System.exit(0);
+/**
+ * Tells the user that the portfolio could not be saved on quitting, so the
+ * application stays open.
+ *
+ * @param saveName the name of the file which could not be saved
+ * @param reason the reason the save failed
+ */
+    private void showSaveError(String saveName, String reason) {
+        JOptionPane.showMessageDialog(ePortfolioFrame, "The portfolio could not be saved to " + saveName + ": " + reason
+                + "\nThe application stays open, so the investments are not lost.", "Error", JOptionPane.ERROR_MESSAGE);
     }
 
 /**
@@ -0,0 +1,321 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * This class runs portfolio commands read from a script, without any GUI.
+ *
+ * Each line of the script holds a command followed by its arguments, separated
+ * by spaces. An argument containing spaces, such as a name, is written in double
+ * quotes. Blank lines and lines starting with '#' are skipped. The commands are:
+ * <pre>
+ * buy TYPE SYMBOL NAME QUANTITY PRICE
+ * sell SYMBOL QUANTITY PRICE
+ * update SYMBOL NAME PRICE
+ * import FILE
+ * gain
+ * search [symbol=SYMBOL] [keywords=WORDS] [low=PRICE] [high=PRICE] [offset=N] [limit=N]
+ * cache
+ * save
+ * </pre>
+ * The result of every command is written to the output with the same messages
+ * as the GUI. A malformed command is reported on System.err with its line number
+ * and skipped. This class only uses java.base, so running a script never starts
+ * Swing or AWT.
+ */
+public class HeadlessRunner {
+
+    private static final int PAGE_SIZE = 256;  //Search results formatted at a time
+
+    private final Portfolio portfolio;
+    private final String fileName;
+    private final PrintStream out;
+
+    /**
+     * Constructs a new HeadlessRunner for the given portfolio.
+     *
+     * @param portfolio the portfolio the commands are applied to
+     * @param fileName the file name the save command saves the portfolio to
+     * @param out the stream the results are written to
+     */
+    public HeadlessRunner(Portfolio portfolio, String fileName, PrintStream out) {
+        this.portfolio = portfolio;
+        this.fileName = fileName;
+        this.out = out;
+    }
+
+    /**
+     * Runs every command of the script in order, until the end of the script.
+     *
+     * @param script the reader of the script
+     * @return the number of lines which could not be run
+     * @throws IOException if the script cannot be read
+     */
+    public int run(BufferedReader script) throws IOException {
+        int failures = 0;
+        int lineNumber = 0;
+        String line;
+        while ((line = script.readLine()) != null) {
+            lineNumber++;
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#")) {  //Skipping blank lines and comments
+                continue;
+            }
+
+            try {
+                runCommand(tokenize(line));
+            } catch (IllegalArgumentException e) {
+                System.err.println("Line " + lineNumber + ": " + e.getMessage());
+                failures++;
+            }
+        }
+        out.flush();
+        return failures;
+    }
+
+    /**
+     * Runs a single command.
+     *
+     * @param words the command followed by its arguments
+     * @throws IllegalArgumentException if the command or its arguments are not valid
+     */
+    private void runCommand(List<String> words) {
+        String command = words.get(0).toLowerCase();
+
+        if (command.equals("buy")) {
+            expectArguments(words, 5, "buy TYPE SYMBOL NAME QUANTITY PRICE");
+            String type = words.get(1);
+            if (type.equalsIgnoreCase("Stock") == false && type.equalsIgnoreCase("MutualFund") == false) {
+                throw new IllegalArgumentException("Type must be Stock or MutualFund.");
+            }
+            if (words.get(2).isEmpty() || words.get(3).isEmpty()) {
+                throw new IllegalArgumentException("Symbol and Name cannot be empty.");
+            }
+            out.println(TradeMessages.format(portfolio.buy(type, words.get(2), words.get(3), parseQuantity(words.get(4)), parsePrice(words.get(5)))));
+
+        } else if (command.equals("sell")) {
+            expectArguments(words, 3, "sell SYMBOL QUANTITY PRICE");
+            if (words.get(1).isEmpty()) {
+                throw new IllegalArgumentException("Symbol cannot be empty.");
+            }
+            out.println(TradeMessages.format(portfolio.sell(words.get(1), parseQuantity(words.get(2)), parsePrice(words.get(3)))));
+
+        } else if (command.equals("update")) {
+            expectArguments(words, 3, "update SYMBOL NAME PRICE");
+            out.println(TradeMessages.format(portfolio.update(words.get(1), parsePrice(words.get(3)), words.get(2))));
+
+        } else if (command.equals("import")) {
+            expectArguments(words, 1, "import FILE");
+            PriceImportResult result = portfolio.importPrices(new File(words.get(1)), true);
+            out.println(result);
+            for (String symbol : result.getUnmatched()) {
+                out.println("Not held: " + symbol);
+            }
+            for (String error : result.getErrors()) {
+                out.println(error);
+            }
+
+        } else if (command.equals("gain")) {
+            expectArguments(words, 0, "gain");
+            out.println("Total gain: " + portfolio.calculateGain());
+            for (String gain : portfolio.calculateIndividualInvestmentGain()) {
+                out.println(gain);
+            }
+
+        } else if (command.equals("search")) {
+            String symbol = "";
+            String keywords = "";
+            String lowPrice = "";
+            String highPrice = "";
+            int offset = 0;
+            int limit = Integer.MAX_VALUE;
+            for (int i = 1; i < words.size(); i++) {
+                String word = words.get(i);
+                int equals = word.indexOf('=');
+                String key = equals < 0 ? "" : word.substring(0, equals).toLowerCase();
+                String value = word.substring(equals + 1);
+                if (key.equals("symbol")) {
+                    symbol = value;
+                } else if (key.equals("keywords")) {
+                    keywords = value;
+                } else if (key.equals("low")) {
+                    parsePrice(value);
+                    lowPrice = value;
+                } else if (key.equals("high")) {
+                    parsePrice(value);
+                    highPrice = value;
+                } else if (key.equals("offset")) {
+                    offset = parseCount(value, "offset", 0);
+                } else if (key.equals("limit")) {
+                    limit = parseCount(value, "limit", 1);
+                } else {
+                    throw new IllegalArgumentException("Unknown search field \"" + word + "\". Use symbol=, keywords=, low=, high=, offset= or limit=.");
+                }
+            }
+
+            //Answering a whole search from the search cache when it was run before
+            if (offset == 0 && limit == Integer.MAX_VALUE) {
+                for (String result : portfolio.searchOperation(symbol, lowPrice, highPrice, keywords)) {
+                    out.println(result);
+                }
+                return;
+            }
+
+            //Formatting the results a page at a time, so only the printed ones are formatted
+            SearchCursor cursor = portfolio.openSearch(symbol, lowPrice, highPrice, keywords);
+            int skipped = cursor.skip(offset);
+            int printed = 0;
+            while (printed < limit) {
+                String[] page = cursor.nextDetails(Math.min(limit - printed, PAGE_SIZE));
+                if (page.length == 0) {
+                    break;
+                }
+                for (String result : page) {
+                    out.println(result);
+                }
+                printed += page.length;
+            }
+            if (skipped == 0 && printed == 0) {
+                out.println("No investments found matching the given criteria.");
+            } else if (printed == 0) {  //Case where the offset is past the last match
+                out.println("Only " + skipped + " investments match the given criteria.");
+            }
+
+        } else if (command.equals("cache")) {
+            expectArguments(words, 0, "cache");
+            out.println("Search cache: " + portfolio.getSearchCache());
+
+        } else if (command.equals("save")) {
+            expectArguments(words, 0, "save");
+            if (portfolio.saveInvestments(fileName)) {
+                out.println("Portfolio saved to file: " + fileName);
+            } else {
+                throw new IllegalArgumentException("Could not save the portfolio to file: " + fileName);
+            }
+
+        } else {
+            throw new IllegalArgumentException("Unknown command \"" + words.get(0) + "\"");
+        }
+    }
+
+    /**
+     * Checks that a command has the given number of arguments.
+     *
+     * @param words the command followed by its arguments
+     * @param count the number of arguments expected
+     * @param usage the usage of the command, shown when the count is wrong
+     * @throws IllegalArgumentException if the number of arguments is wrong
+     */
+    private static void expectArguments(List<String> words, int count, String usage) {
+        if (words.size() - 1 != count) {
+            throw new IllegalArgumentException("Expected \"" + usage + "\"");
+        }
+    }
+
+    /**
+     * Parses a quantity, which must be a positive whole number.
+     *
+     * @param value the text of the quantity
+     * @return the quantity
+     * @throws IllegalArgumentException if the quantity is not valid
+     */
+    private static int parseQuantity(String value) {
+        int quantity;
+        try {
+            quantity = Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid quantity: Must be a valid number.");
+        }
+        if (quantity <= 0) {
+            throw new IllegalArgumentException("Quantity must be positive.");
+        }
+        return quantity;
+    }
+
+    /**
+     * Parses the offset or limit of a search, which must be a whole number
+     * no smaller than the given minimum.
+     *
+     * @param value the text of the number
+     * @param field the name of the field, shown in the error message
+     * @param minimum the smallest number allowed, 0 or 1
+     * @return the number
+     * @throws IllegalArgumentException if the number is not valid
+     */
+    private static int parseCount(String value, String field, int minimum) {
+        int count;
+        try {
+            count = Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid " + field + ": Must be a valid number.");
+        }
+        if (count < minimum) {
+            throw new IllegalArgumentException(minimum == 0 ? "The " + field + " cannot be negative." : "The " + field + " must be at least " + minimum + ".");
+        }
+        return count;
+    }
+
+    /**
+     * Parses a price, which must be a positive number.
+     *
+     * @param value the text of the price
+     * @return the price
+     * @throws IllegalArgumentException if the price is not valid
+     */
+    private static double parsePrice(String value) {
+        double price;
+        try {
+            price = Double.parseDouble(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid price: Must be a valid number.");
+        }
+        if (price <= 0 || Double.isFinite(price) == false) {
+            throw new IllegalArgumentException("Price must be positive.");
+        }
+        return price;
+    }
+
+    /**
+     * Splits a line into words separated by spaces. Text in double quotes is
+     * kept as one word without the quotes, and a quote may start in the middle
+     * of a word, as in keywords="two words".
+     *
+     * @param line the line to split
+     * @return the words of the line
+     * @throws IllegalArgumentException if a quote is not closed
+     */
+    private static List<String> tokenize(String line) {
+        List<String> words = new ArrayList<>();
+        StringBuilder word = new StringBuilder();
+        boolean inWord = false;
+        boolean quoted = false;
+
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (c == '"') {
+                quoted = !quoted;
+                inWord = true;  //Keeping "" as an empty word
+            } else if (Character.isWhitespace(c) && quoted == false) {
+                if (inWord) {
+                    words.add(word.toString());
+                    word.setLength(0);
+                    inWord = false;
+                }
+            } else {
+                word.append(c);
+                inWord = true;
+            }
+        }
+
+        if (quoted) {
+            throw new IllegalArgumentException("Missing closing quote");
+        }
+        if (inWord) {
+            words.add(word.toString());
+        }
+        return words;
+    }
+}
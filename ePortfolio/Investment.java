@@ -1,7 +1,15 @@
 import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+import java.util.function.UnaryOperator;
 
 /**
  * An abstract class Investment which contains the common attributes of stock and mutual fund investments.
+ *
+ * The quantity, prices and book value are kept together in an immutable
+ * PositionState. A change builds a new state and swaps it in with a
+ * compare-and-set, retrying if another thread swapped in a state first, so
+ * readers never lock and never see a price without the quantity or book value
+ * that goes with it.
  */
 public abstract class Investment {
     /**
@@ -13,24 +21,56 @@ public abstract class Investment {
      * The name of the investment.
      */
     protected String name; 
+
+    /**
+     * The quantity, price, previous price and book value of the investment.
+     * The book value is the total value of the investment at the time of
+     * purchase, and all amounts are in micro-units (see Money).
+     */
+    protected volatile PositionState state;
+
     /**
-     * The quantity of the investment.
+     * The updater swapping the state of an investment atomically.
      */
-    protected int quantity;  
+    private static final AtomicReferenceFieldUpdater<Investment, PositionState> STATE =
+            AtomicReferenceFieldUpdater.newUpdater(Investment.class, PositionState.class, "state");
+
     /**
-     * The price per unit of the investment.
+     * The identifier given to the investment by the portfolio holding it.
+     * Identifiers increase in the order the investments are added, and stay -1
+     * while the investment is not part of a portfolio.
      */
-    protected double price;  
+    protected int id = -1;
+
     /**
-     * The book value of the investment, which is the total value of the
-     * investment at the time of purchase.
+     * The id of the symbol in the symbol dictionary of the portfolio holding the
+     * investment, or -1 while the investment is not part of a portfolio.
      */
-    protected double bookValue;  
+    protected int symbolId = -1;
 
     /**
-     * The previous price of the investment.
+     * The symbol dictionary which gave the investment its symbol id, or null
+     * while the investment is not part of a portfolio.
      */
-    protected double previousPrice;
+    protected SymbolDictionary symbols = null;
+
+    /**
+     * Whether the investment changed since it was last saved. New investments
+     * start dirty, and every change of the quantity or price marks them dirty again.
+     */
+    protected boolean dirty = true;
+
+    /**
+     * The store holding the values of the investment, or null if they are kept
+     * in the fields of this object. While a store is attached, the fields are not
+     * used and the object is only a view over its slot in the store.
+     */
+    protected PositionStore store = null;
+
+    /**
+     * The slot of the investment in its store, or -1 if no store is attached.
+     */
+    protected int slot = -1;
 
     /**
      * Constructs a new Investment object with specified details.
@@ -43,9 +83,8 @@ public abstract class Investment {
     public Investment(String symbol, String name, int quantity, double price) {
         this.symbol = symbol;
         this.name = name;
-        this.quantity = quantity;
-        this.price = price;
-        this.previousPrice = price;
+        long priceMicros = Money.fromDouble(price);
+        this.state = new PositionState(quantity, priceMicros, priceMicros, 0);
     }
 
     /**
@@ -53,7 +92,38 @@ public abstract class Investment {
      * @return the symbol of the investment
      */
     public String getSymbol() {
-        return symbol;
+        return store != null ? store.getSymbol(slot) : symbol;
+    }
+
+    /**
+     * Returns the identifier given to the investment by its portfolio.
+     * @return the identifier of the investment, or -1 if it is not in a portfolio
+     */
+    public int getId() {
+        return id;
+    }
+
+    /**
+     * Returns the id of the symbol of the investment in its portfolio's symbol dictionary.
+     * @return the symbol id of the investment, or -1 if it is not in a portfolio
+     */
+    public int getSymbolId() {
+        return symbolId;
+    }
+
+    /**
+     * Returns whether the investment changed since it was last saved.
+     * @return true if the investment has unsaved changes
+     */
+    public boolean isDirty() {
+        return dirty;
+    }
+
+    /**
+     * Marks the investment as saved in its current state.
+     */
+    public void markClean() {
+        this.dirty = false;
     }
 
     /**
@@ -61,7 +131,7 @@ public abstract class Investment {
      * @return the name of the investment
      */
     public String getName() {
-        return name;
+        return store != null ? store.getName(slot) : name;
     }
 
 /**
@@ -69,7 +139,8 @@ public abstract class Investment {
  * @return the quantity of the investment
  */
     public int getQuantity() {
-        return quantity;
+        PositionState current = state;  //Reading the state first, since attach clears it only after setting the store
+        return current != null ? current.getQuantity() : store.getQuantity(slot);
     }
 
     /**
@@ -77,7 +148,16 @@ public abstract class Investment {
      * @return the price of the investment
      */
     public double getPrice() {
-        return price;
+        return Money.toDouble(getPriceMicros());
+    }
+
+    /**
+     * Returns the price of the investment in micro-units.
+     * @return the price of the investment in micro-units
+     */
+    public long getPriceMicros() {
+        PositionState current = state;
+        return current != null ? current.getPrice() : store.getPrice(slot);
     }
 
     /**
@@ -86,7 +166,16 @@ public abstract class Investment {
      * @return the previous price of the investment
      */
     public double getPreviousPrice() {
-        return previousPrice;
+        return Money.toDouble(getPreviousPriceMicros());
+    }
+
+    /**
+     * Returns the previous price of the investment in micro-units.
+     * @return the previous price of the investment in micro-units
+     */
+    public long getPreviousPriceMicros() {
+        PositionState current = state;
+        return current != null ? current.getPreviousPrice() : store.getPreviousPrice(slot);
     }
 
     /**
@@ -95,7 +184,121 @@ public abstract class Investment {
      * @return the book value of the investment
      */
     public double getBookValue() {
-        return bookValue;
+        return Money.toDouble(getBookValueMicros());
+    }
+
+    /**
+     * Returns the book value of the investment in micro-units.
+     * @return the book value of the investment in micro-units
+     */
+    public long getBookValueMicros() {
+        PositionState current = state;
+        return current != null ? current.getBookValue() : store.getBookValue(slot);
+    }
+
+    /**
+     * Returns the quantity, prices and book value of the investment, all taken
+     * at the same moment.
+     * @return the current state of the investment
+     */
+    public PositionState getState() {
+        PositionState current = state;
+        return current != null ? current : store.getState(slot);
+    }
+
+    /**
+     * Replaces the state of the investment, but only if it is still the expected
+     * one. Callers read the state with getState, build the new state from it and
+     * start over if this method returns false.
+     * @param expected the state the new state was built from
+     * @param newState the new state
+     * @return true if the state was replaced, false if another change came first
+     */
+    protected boolean compareAndSetState(PositionState expected, PositionState newState) {
+        if (store != null) {
+            return store.compareAndSetState(slot, expected, newState);
+        }
+        return STATE.compareAndSet(this, expected, newState);
+    }
+
+    /**
+     * Replaces the state of the investment, whatever it currently is.
+     * @param newState the new state
+     */
+    protected void setState(PositionState newState) {
+        updateState(current -> newState);
+    }
+
+    /**
+     * Applies the given change to the state of the investment atomically,
+     * retrying it on the latest state until no other change came in between.
+     * The change may therefore run more than once and must not have side effects.
+     * @param change the function building the new state from the current one
+     * @return the new state
+     */
+    protected PositionState updateState(UnaryOperator<PositionState> change) {
+        while (true) {
+            PositionState current = getState();
+            PositionState updated = change.apply(current);
+            if (compareAndSetState(current, updated)) {
+                return updated;
+            }
+        }
+    }
+
+    /**
+     * Sets the previous price of the investment.
+     * @param previousPrice the new previous price in micro-units
+     */
+    protected void setPreviousPrice(long previousPrice) {
+        updateState(current -> current.withPreviousPrice(previousPrice));
+    }
+
+    /**
+     * Sets the book value of the investment.
+     * @param bookValue the new book value in micro-units
+     */
+    protected void setBookValue(long bookValue) {
+        updateState(current -> current.withBookValue(bookValue));
+    }
+
+    /**
+     * Moves the values of the investment into a new slot of the given store. From
+     * then on the object reads and writes its values through the store, and keeps
+     * no strings or state of its own. Nothing is done if a store is already attached.
+     * @param store the store to move the values into
+     */
+    public void attach(PositionStore store) {
+        if (this.store != null) {
+            return;
+        }
+
+        int newSlot = store.allocate(this.isStock(), symbol, name, state);
+
+        this.store = store;
+        this.slot = newSlot;
+        this.symbol = null;  //The store holds the strings and values now
+        this.name = null;
+        this.state = null;
+    }
+
+    /**
+     * Copies the values of the investment back into its fields and frees its slot
+     * in the store, so the object stays valid after it leaves the portfolio.
+     * Nothing is done if no store is attached.
+     */
+    public void detach() {
+        if (store == null) {
+            return;
+        }
+
+        symbol = store.getSymbol(slot);
+        name = store.getName(slot);
+        state = store.getState(slot);
+
+        store.free(slot);
+        store = null;
+        slot = -1;
     }
   
 /**
@@ -110,9 +313,9 @@ public abstract class Investment {
      * 
      * @param quantity the number of units to buy
      * @param price the price at which to buy
-     * @return a string indicating the result of the transaction
+     * @return the result of the transaction
      */
-    public abstract String buy(int quantity, double price);
+    public abstract TradeResult buy(int quantity, double price);
 
     /**
      * Initiates a sell transaction.
@@ -121,16 +324,58 @@ public abstract class Investment {
      * @param Symbol the symbol of the investment to sell
      * @param quantity the number of units to sell
      * @param price the price at which to sell
-     * @return a string indicating the result of the transaction
+     * @return the result of the transaction
      */
-    public abstract String sell(ArrayList<Investment> investments, String Symbol, int quantity, double price);
+    public abstract TradeResult sell(ArrayList<Investment> investments, String Symbol, int quantity, double price);
+
+    /**
+     * Returns the state of the investment after buying the given quantity at the
+     * given price. The state of the investment itself is not changed.
+     *
+     * @param current the state before the purchase
+     * @param quantity the number of units to buy
+     * @param price the price per unit in micro-units
+     * @return the state after the purchase
+     */
+    protected abstract PositionState buyState(PositionState current, int quantity, long price);
+
+    /**
+     * Returns the state of the investment after selling the given quantity at
+     * the given price. The state of the investment itself is not changed.
+     *
+     * @param current the state before the sale
+     * @param quantity the number of units to sell
+     * @param price the price per unit in micro-units
+     * @return the state after the sale
+     */
+    protected abstract PositionState sellState(PositionState current, int quantity, long price);
+
+    /**
+     * Returns the payment received for selling the given quantity at the given
+     * price, after fees.
+     *
+     * @param current the state before the sale
+     * @param quantity the number of units to sell
+     * @param price the price per unit in micro-units
+     * @return the payment in micro-units
+     */
+    protected abstract long sellPayment(PositionState current, int quantity, long price);
 
     /**
      * Calculates the gain or loss of the investment.
      *
      * @return the calculated gain or loss by amount
      */
-    public abstract double calculateGain();
+    public double calculateGain() {
+        return Money.toDouble(calculateGainMicros());
+    }
+
+    /**
+     * Calculates the gain or loss of the investment exactly, in micro-units.
+     *
+     * @return the calculated gain or loss in micro-units
+     */
+    public abstract long calculateGainMicros();
     
     /**
      * Returns a string containing the details of the investment.
@@ -140,7 +385,8 @@ public abstract class Investment {
      * @return a formatted string containing the investment details
      */
     public String printDetails(){
-        return"Symbol: " + this.symbol + "\nName: " + this.name + "\nPrice: " + this.price + "\nQuantity: " + this.quantity + "\nBookValue: " + this.bookValue + "\n";
+        PositionState current = this.getState();
+        return"Symbol: " + this.getSymbol() + "\nName: " + this.getName() + "\nPrice: " + Money.toDouble(current.getPrice()) + "\nQuantity: " + current.getQuantity() + "\nBookValue: " + Money.toDouble(current.getBookValue()) + "\n";
     }
     /**
      * Updates the price of the investment to the specified value.
@@ -149,9 +395,18 @@ public abstract class Investment {
      * @param updatedPrice the new price to set for the investment
      */
     public void updatePrice(double updatedPrice){
-        this.previousPrice = this.price;
-        this.price = updatedPrice;  //Updating the price based on given updated price
-        
+        updatePriceMicros(Money.fromDouble(updatedPrice));
+    }
+
+    /**
+     * Updates the price of the investment to the specified amount in micro-units,
+     * as updatePrice does.
+     *
+     * @param priceMicros the new price in micro-units
+     */
+    public void updatePriceMicros(long priceMicros){
+        this.dirty = true;  //Buy and sell update the price first, so this covers their changes as well
+        updateState(current -> current.withPrice(priceMicros));  //Moving the price to the previous price in the same step
     }
 
    /**
@@ -162,7 +417,30 @@ public abstract class Investment {
      * @param updatedQuantity the amount to add to the current quantity
      */
     public void updateQuantity(int updatedQuantity){
-        this.quantity += updatedQuantity;  //Updating the quantity based on given updated quantity
+        this.dirty = true;
+        updateState(current -> current.withQuantity(current.getQuantity() + updatedQuantity));  //Updating the quantity based on given updated quantity
+    }
+
+    /**
+     * Returns a copy of the investment holding the same values and id. Changes
+     * made to the investment afterwards do not affect the copy, which keeps its
+     * values in its own fields even if the investment is attached to a store.
+     * 
+     * @return a copy of the investment
+     */
+    public Investment copy() {
+        PositionState current = this.getState();
+        Investment copy;
+        if (this.isStock()) {
+            copy = new Stock(this.getSymbol(), this.getName(), current.getQuantity(), 0.0, 0.0);
+        } else {
+            copy = new MutualFund(this.getSymbol(), this.getName(), current.getQuantity(), 0.0, 0.0);
+        }
+        copy.state = current;  //Sharing the exact amounts, which never change, rather than their double values
+        copy.id = this.id;
+        copy.symbolId = this.symbolId;
+        copy.symbols = this.symbols;
+        return copy;
     }
 
     /**
@@ -174,13 +452,15 @@ public abstract class Investment {
      */
     @Override
     public String toString() {
-        return "Symbol: " + this.symbol + "\nName: " + this.name + "\nQuantity: " + this.quantity + "\nPrice: " + this.price + "\nBookValue: " + this.bookValue + "\n";
+        PositionState current = this.getState();
+        return "Symbol: " + this.getSymbol() + "\nName: " + this.getName() + "\nQuantity: " + current.getQuantity() + "\nPrice: " + Money.toDouble(current.getPrice()) + "\nBookValue: " + Money.toDouble(current.getBookValue()) + "\n";
     }
 
 /**
  * Compares this investment with the specified object for equality.
  * Returns true if the specified object is also an Investment and has
- * the same symbol as this investment.
+ * the same symbol as this investment, ignoring case. When both symbol ids come
+ * from the same dictionary, the ids are compared instead of the strings.
  *
  * @param o the object to compare with this investment
  * @return true if the specified object is equal to this investment; false otherwise
@@ -189,8 +469,22 @@ public abstract class Investment {
     public boolean equals(Object o) {
         if (o instanceof Investment) {
             Investment other = (Investment) o;
-            return this.symbol.equals(other.symbol);
+            if (this.symbols != null && this.symbols == other.symbols) {  //Case where both symbols are in the same dictionary
+                return this.symbolId == other.symbolId;
+            }
+            return this.getSymbol().toLowerCase().equals(other.getSymbol().toLowerCase());  //Lower casing like hashCode and the dictionary
         }
         return false;
     }
+
+    /**
+     * Returns a hash code for the investment, based on its symbol ignoring case
+     * like equals.
+     *
+     * @return the hash code of the investment
+     */
+    @Override
+    public int hashCode() {
+        return this.getSymbol().toLowerCase().hashCode();
+    }
 }
@@ -0,0 +1,232 @@
+import java.util.Collections;
+import java.util.List;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+import javax.swing.SwingUtilities;
+import javax.swing.table.AbstractTableModel;
+
+/**
+ * This class shows a list of investments in a JTable.
+ *
+ * The model only holds the list of investments. A cell is read from its
+ * investment when the table asks for it, which a JTable only does for the rows
+ * it paints, so a list of millions of investments is shown without building a
+ * string per investment. The amounts are returned as Long micro-units so that
+ * a TableRowSorter orders them exactly; the table formats them with
+ * Money.toString.
+ *
+ * The rows are the live investments of the portfolio, as getInvestments,
+ * searchInvestments and searchPrefix return them, so listing them copies no
+ * investment. The values of a row are read the first time the table asks for
+ * them and kept, as the state of the investment, until the list is set again:
+ * a sorter needs the values of a row to stay put while it sorts, even if the
+ * portfolio changes them meanwhile. A row which was never shown costs nothing
+ * but its reference.
+ *
+ * The list is set along with the version of the portfolio read before it was
+ * made, which list reads in the background. When a row is first read after the version moved on, the investments
+ * may have changed or been sold since they were listed, so the model asks for
+ * a new list by running the reload action given with the list.
+ */
+public class InvestmentTableModel extends AbstractTableModel {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * This class holds investments listed for the table, along with the
+     * version of the portfolio read before they were listed.
+     */
+    public static final class Listing {
+        private final List<Investment> investments;
+        private final long version;
+
+        /**
+         * Constructs a new Listing with the given values.
+         *
+         * @param investments the investments listed
+         * @param version the version of the portfolio read before they were listed
+         */
+        private Listing(List<Investment> investments, long version) {
+            this.investments = investments;
+            this.version = version;
+        }
+
+        /**
+         * Returns the investments listed.
+         *
+         * @return the investments, in a list which must not be changed
+         */
+        public List<Investment> getInvestments() {
+            return investments;
+        }
+
+        /**
+         * Returns the version of the portfolio read before the investments were listed.
+         *
+         * @return the version of the portfolio
+         */
+        public long getVersion() {
+            return version;
+        }
+    }
+
+    /**
+     * The index of the symbol column.
+     */
+    public static final int SYMBOL = 0;
+
+    /**
+     * The index of the name column.
+     */
+    public static final int NAME = 1;
+
+    /**
+     * The index of the quantity column.
+     */
+    public static final int QUANTITY = 2;
+
+    /**
+     * The index of the price column.
+     */
+    public static final int PRICE = 3;
+
+    /**
+     * The index of the book value column.
+     */
+    public static final int BOOK_VALUE = 4;
+
+    /**
+     * The index of the gain column.
+     */
+    public static final int GAIN = 5;
+
+    private static final String[] COLUMN_NAMES = { "Symbol", "Name", "Quantity", "Price", "Book value", "Gain" };
+    private static final Class<?>[] COLUMN_CLASSES = { String.class, String.class, Integer.class, Long.class, Long.class, Long.class };
+
+    private final LongSupplier versions;
+    private List<Investment> investments = Collections.emptyList();
+    private PositionState[] states = new PositionState[0];  //Values of the rows read so far, by row
+    private long listedVersion = 0;
+    private Runnable reload = null;  //Action listing the investments again, or null once it was asked for
+
+    /**
+     * Constructs a new empty InvestmentTableModel.
+     *
+     * @param versions the source of the version of the portfolio, such as Portfolio.getVersion
+     */
+    public InvestmentTableModel(LongSupplier versions) {
+        this.versions = versions;
+    }
+
+    /**
+     * Lists investments for the table, reading the version of the portfolio
+     * first. It does not touch the model, so it can run on any thread.
+     *
+     * @param source the source of the investments, such as Portfolio.getInvestments
+     * @return the investments along with the version of the portfolio
+     */
+    public Listing list(Supplier<List<Investment>> source) {
+        long version = versions.getAsLong();
+        return new Listing(source.get(), version);
+    }
+
+    /**
+     * Replaces the investments shown by the table. The list is kept as it is
+     * and must not change afterwards.
+     *
+     * @param investments the investments to show
+     * @param version the version of the portfolio read before the list was made
+     * @param reload the action listing the investments again once the portfolio changed, run on the event thread
+     */
+    public void setInvestments(List<Investment> investments, long version, Runnable reload) {
+        this.investments = investments;
+        this.states = new PositionState[investments.size()];
+        this.listedVersion = version;
+        this.reload = reload;
+        fireTableDataChanged();
+    }
+
+    /**
+     * Removes every row of the table.
+     */
+    public void clear() {
+        setInvestments(Collections.emptyList(), 0, null);
+    }
+
+    /**
+     * Returns the investment shown in the given row of the model. Its values
+     * may have changed since the row was read.
+     *
+     * @param row the row in the model, which differs from the row in the view once sorted
+     * @return the investment of the row
+     */
+    public Investment getInvestment(int row) {
+        return investments.get(row);
+    }
+
+    @Override
+    public int getRowCount() {
+        return investments.size();
+    }
+
+    @Override
+    public int getColumnCount() {
+        return COLUMN_NAMES.length;
+    }
+
+    @Override
+    public String getColumnName(int column) {
+        return COLUMN_NAMES[column];
+    }
+
+    @Override
+    public Class<?> getColumnClass(int column) {
+        return COLUMN_CLASSES[column];
+    }
+
+    @Override
+    public Object getValueAt(int row, int column) {
+        Investment investment = investments.get(row);
+        switch (column) {
+            case SYMBOL:
+                return investment.getSymbol();
+            case NAME:
+                return investment.getName();
+            case QUANTITY:
+                return getState(row).getQuantity();
+            case PRICE:
+                return getState(row).getPrice();
+            case BOOK_VALUE:
+                return getState(row).getBookValue();
+            case GAIN:
+                PositionState state = getState(row);
+                if (investment.isStock()) {
+                    return Stock.calculateGain(state.getQuantity(), state.getPrice(), state.getPreviousPrice());
+                }
+                return MutualFund.calculateGain(state.getQuantity(), state.getPrice(), state.getPreviousPrice());
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Returns the values of the given row, reading them from its investment the
+     * first time. Reading a row after the portfolio changed asks once for a new
+     * list.
+     *
+     * @param row the row in the model
+     * @return the values of the row
+     */
+    private PositionState getState(int row) {
+        PositionState state = states[row];
+        if (state == null) {
+            state = investments.get(row).getState();
+            states[row] = state;
+            if (reload != null && versions.getAsLong() != listedVersion) {  //Case where the listed investments may be out of date
+                SwingUtilities.invokeLater(reload);
+                reload = null;
+            }
+        }
+        return state;
+    }
+}
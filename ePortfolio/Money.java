@@ -0,0 +1,86 @@
+/**
+ * This class does money arithmetic on amounts stored as longs.
+ *
+ * An amount is a whole number of micro-units, millionths of a dollar, so prices
+ * with up to six decimals and every sum of them are exact. Adding amounts never
+ * rounds, which keeps totals over millions of trades reproducible, and nothing is
+ * allocated since the amounts are primitives. Values coming from the GUI or from
+ * files are converted once with fromDouble.
+ */
+public final class Money {
+
+    /**
+     * The number of micro-units in one dollar.
+     */
+    public static final long UNIT = 1_000_000L;
+
+    /**
+     * Prevents instances, since all the methods are static.
+     */
+    private Money() {
+    }
+
+    /**
+     * Converts an amount in dollars to micro-units, rounding to the nearest micro-unit.
+     *
+     * @param dollars the amount in dollars
+     * @return the amount in micro-units
+     * @throws ArithmeticException if the amount is not a number or does not fit in a long
+     */
+    public static long fromDouble(double dollars) {
+        double micros = dollars * UNIT;
+        if (Double.isNaN(micros) || Math.abs(micros) >= 0x1p63) {  //Rejecting the amounts which Math.round would clamp
+            throw new ArithmeticException("Amount out of range: " + dollars);
+        }
+        return Math.round(micros);
+    }
+
+    /**
+     * Converts an amount in micro-units to dollars.
+     *
+     * @param micros the amount in micro-units
+     * @return the amount in dollars
+     */
+    public static double toDouble(long micros) {
+        return (double) micros / UNIT;
+    }
+
+    /**
+     * Multiplies a price by a quantity.
+     *
+     * @param micros the price per unit in micro-units
+     * @param quantity the number of units
+     * @return the total amount in micro-units
+     * @throws ArithmeticException if the total does not fit in a long
+     */
+    public static long multiply(long micros, int quantity) {
+        return Math.multiplyExact(micros, (long) quantity);
+    }
+
+    /**
+     * Returns the exact decimal form of an amount, with at least two decimals and
+     * without trailing zeros beyond them, such as "1089.99" or "0.125".
+     *
+     * @param micros the amount in micro-units
+     * @return the amount in dollars as a string
+     */
+    public static String toString(long micros) {
+        StringBuilder builder = new StringBuilder(24);
+        long whole = micros / UNIT;
+        long fraction = Math.abs(micros % UNIT);
+
+        if (micros < 0 && whole == 0) {  //Case where the sign is not carried by the whole part
+            builder.append('-');
+        }
+        builder.append(whole).append('.');
+
+        //Writing the six decimals and dropping the trailing zeros after the second
+        String decimals = Long.toString(fraction + UNIT).substring(1);
+        int length = decimals.length();
+        while (length > 2 && decimals.charAt(length - 1) == '0') {
+            length--;
+        }
+        builder.append(decimals, 0, length);
+        return builder.toString();
+    }
+}
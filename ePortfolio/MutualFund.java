@@ -6,7 +6,7 @@ import java.util.ArrayList;
  */
 public class MutualFund extends Investment{
 
-    private static final double redemptionFee = 45.00;  //Fixed redemption fee for mutual funds
+    private static final long redemptionFee = Money.fromDouble(45.00);  //Fixed redemption fee for mutual funds, in micro-units
 
     /**
      * Constructs a new MutualFund object with specified details.
@@ -19,7 +19,7 @@ public class MutualFund extends Investment{
      */
     public MutualFund(String symbol, String name, int quantity, double price, double bookValue){
         super(symbol, name, quantity, price);
-        this.bookValue = bookValue;
+        this.setBookValue(Money.fromDouble(bookValue));
     }
     
     /**
@@ -33,7 +33,7 @@ public class MutualFund extends Investment{
      */
     public MutualFund(String symbol, String name, int quantity, double price){
         super(symbol, name, quantity, price);
-        this.bookValue = (quantity * price);  //Initializing the book value for the initial purchase
+        this.setBookValue(Money.multiply(Money.fromDouble(price), quantity));  //Initializing the book value for the initial purchase
     }
 
     /**
@@ -62,40 +62,26 @@ public class MutualFund extends Investment{
      * the book value is incremented by the new purchase cost.
      * If the price changes, updates the price and adds the new purchase cost to the book value.
      * Finally, increments the mutual fund's quantity by the purchased amount.
+     * The price, quantity and book value are published as one new state.
      * 
      * @param quantity the number of shares to purchase
      * @param price the price per share to use for the purchase
-     * @return a string indicating the success of the purchase and the updated details of the mutual fund
+     * @return the result of the purchase, holding the updated details of the mutual fund
      */
     @Override
-    public String buy(int quantity, double price) {
-        this.updatePrice(price); //Updating the price first
-        this.updateQuantity(quantity);  //Updating the quantity
+    public TradeResult buy(int quantity, double price) {
+        this.dirty = true;
+        long priceMicros = Money.fromDouble(price);
 
-        if(this.quantity == 0){  //Case when buying the first mutual fund
-            this.bookValue = quantity * price;
-        }else{
-            if(this.price == price){  //Case when updated price is same as before
-                this.bookValue = this.bookValue + quantity * price;
-                return "Same price! Adding to the book value for the following mutual fund:" + "\n\n" +
-                        "Symbol: " + this.getSymbol() + "\n" +
-                        "Name: " + this.getName() + "\n" +
-                        "Quantity: " + this.getQuantity() + "\n" +
-                        "Price: " + this.getPrice() + "\n" +
-                        "Book Value: " + this.getBookValue();
-            }else{  //Case when updated price is new
-                this.bookValue = this.bookValue + quantity * price;
-                this.price = price;
-                return "New price! Updating the price and adjusting book value for the following mutual fund:" + "\n\n" +
-                        "Symbol: " + this.getSymbol() + "\n" +
-                        "Name: " + this.getName() + "\n" +
-                        "Quantity: " + this.getQuantity() + "\n" +
-                        "Price: " + this.getPrice() + "\n" +
-                        "Book Value: " + this.getBookValue();
-            }
-        }
-        this.quantity = this.quantity + quantity;  //Updating the quantity according to the purchase amount
-        return "Purchased successfully!";
+        //Updating the price, quantity and book value as one change, starting over if another thread changed the fund first
+        PositionState current;
+        PositionState bought;
+        do{
+            current = this.getState();
+            bought = this.buyState(current, quantity, priceMicros);
+        }while(this.compareAndSetState(current, bought) == false);
+
+        return new TradeResult(TradeResult.Status.BOUGHT, false, this.getSymbol(), this.getName(), quantity, bought.getQuantity(), bought.getPrice(), bought.getBookValue(), 0);
     }
 
 
@@ -103,63 +89,124 @@ public class MutualFund extends Investment{
      * Sells a portion of the investment.
      * 
      * This method updates the price of the investment, calculates the payment, and removes the investment from the list if the entire quantity is sold.
+     * The new price and the remaining quantity and book value are published as one new state.
      * 
      * @param investments the list of investments to remove from if the entire quantity is sold
      * @param Symbol the symbol of the investment to sell
      * @param quantity the number of shares to sell
      * @param price the price at which to sell
-     * @return a string indicating the result of the sale, including the payment received and the updated investment details
+     * @return the result of the sale, holding the payment received and the updated investment details
      */
     @Override
-    public String sell(ArrayList<Investment> investments, String Symbol, int quantity, double price){
+    public TradeResult sell(ArrayList<Investment> investments, String Symbol, int quantity, double price){
+        this.dirty = true;
+        long priceMicros = Money.fromDouble(price);
 
-        this.updatePrice(price);  //Updating the price
+        //Updating the price, and the quantity and book value of a partial sale, as one change
+        PositionState current;
+        PositionState sold;
+        do{
+            current = this.getState();
+            sold = this.sellState(current, quantity, priceMicros);
+        }while(this.compareAndSetState(current, sold) == false);
 
-        if(this.getQuantity() == quantity){  //Case when updated price is same as before
-            double payment = (this.getPrice() * this.getQuantity()) - redemptionFee;  //Calculating the payment using the given formula
+        long payment = this.sellPayment(current, quantity, priceMicros);
+        if(current.getQuantity() == quantity){  //Case when the whole quantity is sold
 
             investments.remove(this);  //Removing the stock from the list if user choose to sell total
-            return "Payment received: " + payment + "\n" +
-            "This mutual fund is sold and removed from our list!" + "\n" +
-            "Symbol: " + Symbol + "\n" +
-            "Name: " + this.getName() + "\n" +
-            "Quantity: " + this.getQuantity() + "\n" +
-            "Price: " + this.getPrice() + "\n" +
-            "Book Value: " + this.getBookValue();
-        }else if(this.getQuantity() > quantity){
-
-            double bookValueNew = (quantity * this.getPrice()); //Calculating the new book value using the given formula
-            double payment = bookValueNew - redemptionFee;  //Calculating the payment using the given formula
-            
-            int remainingQuantity = this.quantity - quantity;  //Calculating the remaining quantity
-            double bookValueRemaining = ((this.getQuantity() * this.getPrice())) - bookValueNew;
-        
-            //Updating the stock's quantity and book value
-            this.quantity = remainingQuantity;
-            this.bookValue = bookValueRemaining;
-
-            return "Payment received for selling " + quantity + " shares: " + payment + "\n" + "For the following Mutual Fund:" + "\n" +
-            "Symbol: " + Symbol + "\n" +
-            "Name: " + this.getName() + "\n" +
-            "Remaining quantity: " + this.getQuantity() + "\n" +
-            "Remaining book value: " + this.getBookValue();
+            return new TradeResult(TradeResult.Status.CLOSED, false, Symbol, this.getName(), quantity, sold.getQuantity(), sold.getPrice(), sold.getBookValue(), payment);
+        }else if(current.getQuantity() > quantity){
+
+            return new TradeResult(TradeResult.Status.SOLD, false, Symbol, this.getName(), quantity, sold.getQuantity(), sold.getPrice(), sold.getBookValue(), payment);
         }else{
-            return "Opps! You don't have enough shares to sell!";
+            return new TradeResult(TradeResult.Status.INSUFFICIENT_QUANTITY, false, Symbol, this.getName(), quantity, sold.getQuantity(), sold.getPrice(), sold.getBookValue(), 0);
         }
     }
 
 
+    /**
+     * Returns the state of the mutual fund after buying the given quantity at the
+     * given price. The price becomes the new price, the quantity grows, and the
+     * cost of the purchase is added to the book value.
+     * 
+     * @param current the state before the purchase
+     * @param quantity the number of shares to buy
+     * @param price the price per share in micro-units
+     * @return the state after the purchase
+     * @throws ArithmeticException if the quantity or the book value after the purchase does not fit
+     */
+    @Override
+    protected PositionState buyState(PositionState current, int quantity, long price) {
+        long cost = Money.multiply(price, quantity);
+        int newQuantity = Math.addExact(current.getQuantity(), quantity);
+
+        if(newQuantity == 0){  //Case when buying the first mutual fund
+            return current.withPrice(price).withHolding(newQuantity + quantity, cost);
+        }
+        return current.withPrice(price).withHolding(newQuantity, Math.addExact(current.getBookValue(), cost));
+    }
+
+    /**
+     * Returns the state of the mutual fund after selling the given quantity at
+     * the given price. The price always becomes the new price, while the quantity
+     * and book value only change when fewer shares are sold than held.
+     * 
+     * @param current the state before the sale
+     * @param quantity the number of shares to sell
+     * @param price the price per share in micro-units
+     * @return the state after the sale
+     * @throws ArithmeticException if the book value after the sale does not fit in a long
+     */
+    @Override
+    protected PositionState sellState(PositionState current, int quantity, long price) {
+        PositionState sold = current.withPrice(price);
+        if(current.getQuantity() > quantity){
+            long bookValueNew = Money.multiply(price, quantity); //Calculating the new book value using the given formula
+            int remainingQuantity = current.getQuantity() - quantity;  //Calculating the remaining quantity
+            long bookValueRemaining = Money.multiply(price, current.getQuantity()) - bookValueNew;
+            sold = sold.withHolding(remainingQuantity, bookValueRemaining);
+        }
+        return sold;
+    }
+
+    /**
+     * Returns the payment received for selling the given quantity at the given
+     * price, after the redemption fee.
+     * 
+     * @param current the state before the sale
+     * @param quantity the number of shares to sell
+     * @param price the price per share in micro-units
+     * @return the payment in micro-units
+     */
+    @Override
+    protected long sellPayment(PositionState current, int quantity, long price) {
+        return Money.multiply(price, quantity) - redemptionFee;  //Calculating the payment using the given formula
+    }
+
     /**
      * Calculates the gain for the mutual fund and returns it. The gain is the
      * difference between the current value of the mutual fund and its book value
      * minus the redemption fee. The current value of the mutual fund is the product
      * of its price and quantity. The book value is the product of the price at the
      * time of purchase and the quantity.
-     * @return the gain for the mutual fund
+     * @return the gain for the mutual fund in micro-units
      */
     @Override
-    public double calculateGain() {
-        double gain = ((this.getPrice() * this.quantity)) - ((this.getPreviousPrice() * this.quantity)) - redemptionFee;  //Calculating the gain using the given formula
+    public long calculateGainMicros() {
+        PositionState current = this.getState();  //Reading the values together so they belong to the same moment
+        return calculateGain(current.getQuantity(), current.getPrice(), current.getPreviousPrice());
+    }
+
+    /**
+     * Calculates the gain of a mutual fund position from its values, without
+     * needing a MutualFund object. Position stores use this to scan their columns directly.
+     * @param quantity the number of shares held
+     * @param price the current price per share in micro-units
+     * @param previousPrice the previous price per share in micro-units
+     * @return the gain for the mutual fund in micro-units
+     */
+    public static long calculateGain(int quantity, long price, long previousPrice) {
+        long gain = Money.multiply(price, quantity) - Money.multiply(previousPrice, quantity) - redemptionFee;  //Calculating the gain using the given formula
         return gain;
     }
     
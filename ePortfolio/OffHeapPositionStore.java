@@ -0,0 +1,370 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.function.IntFunction;
+
+/**
+ * This class stores positions in memory outside of the Java heap.
+ *
+ * Every position is a fixed-width record in a direct ByteBuffer, found by its
+ * slot number, with the prices and book value stored as micro-units. Symbols
+ * and names are kept as UTF-8 bytes in a second direct buffer, the string
+ * arena, and each record holds the offsets and lengths of its strings. The
+ * garbage collector therefore sees a few buffers no matter how many positions
+ * are stored. The numbers are read without allocating anything, while strings
+ * are decoded again on every read and getState builds a new PositionState.
+ *
+ * Changes are made while holding the monitor of the store and are published
+ * through a SequenceLock, so the getters read a record and its strings without
+ * locking and only retry when a change was made meanwhile, including a change
+ * which moved the records or the arena to a new buffer.
+ */
+public class OffHeapPositionStore implements PositionStore {
+
+    private static final int RECORD_SIZE = 48;  //Bytes per position
+    private static final int TYPE = 0;  //Offsets of the fields within a record
+    private static final int QUANTITY = 4;
+    private static final int PRICE = 8;
+    private static final int PREVIOUS_PRICE = 16;
+    private static final int BOOK_VALUE = 24;
+    private static final int SYMBOL_OFFSET = 32;
+    private static final int SYMBOL_LENGTH = 36;
+    private static final int NAME_OFFSET = 40;
+    private static final int NAME_LENGTH = 44;
+
+    private static final byte FREE = -1;  //Type of a slot which holds no position
+    private static final byte STOCK = 0;
+    private static final byte MUTUAL_FUND = 1;
+    private static final int MIN_COMPACT_SIZE = 1 << 20;  //Smallest amount of unused arena bytes worth compacting
+    private static final int OPTIMISTIC_READS = 8;  //Attempts of a read before it waits for the writer
+
+    private ByteBuffer records;
+    private ByteBuffer arena;
+    private int size = 0;  //Number of slots handed out so far, including freed ones
+    private int arenaUsed = 0;  //Bytes of the arena written so far
+    private int arenaGarbage = 0;  //Bytes of the arena belonging to freed slots
+
+    private int[] freeSlots = new int[16];  //Freed slots waiting to be handed out again
+    private int freeCount = 0;
+
+    private final SequenceLock sequence = new SequenceLock();
+
+    private final IntFunction<String> symbolReader = base -> getString(base + SYMBOL_OFFSET);  //Kept in fields so a read creates no lambda
+    private final IntFunction<String> nameReader = base -> getString(base + NAME_OFFSET);
+    private final IntFunction<PositionState> stateReader = this::readState;
+
+    /**
+     * Constructs a new empty OffHeapPositionStore.
+     */
+    public OffHeapPositionStore() {
+        this(1024);
+    }
+
+    /**
+     * Constructs a new empty OffHeapPositionStore with room for the given number
+     * of positions before the buffers have to grow.
+     *
+     * @param capacity the initial number of slots
+     */
+    public OffHeapPositionStore(int capacity) {
+        capacity = Math.max(capacity, 16);
+        records = ByteBuffer.allocateDirect(capacity * RECORD_SIZE);
+        arena = ByteBuffer.allocateDirect(capacity * 32);
+    }
+
+    @Override
+    public synchronized int allocate(boolean stock, String symbol, String name, PositionState state) {
+        sequence.beginWrite();
+        try {
+            int slot;
+            if (freeCount > 0) {  //Case where a freed slot can be reused
+                slot = freeSlots[--freeCount];
+            } else {
+                if ((size + 1L) * RECORD_SIZE > records.capacity()) {
+                    records = grow(records, (size + 1L) * RECORD_SIZE, records.capacity());
+                }
+                slot = size++;
+            }
+
+            int base = slot * RECORD_SIZE;
+            records.put(base + TYPE, stock ? STOCK : MUTUAL_FUND);
+            writeState(base, state);
+            putString(base + SYMBOL_OFFSET, symbol);
+            putString(base + NAME_OFFSET, name);
+            return slot;
+        } finally {
+            sequence.endWrite();
+        }
+    }
+
+    @Override
+    public synchronized void free(int slot) {
+        sequence.beginWrite();
+        try {
+            int base = slot * RECORD_SIZE;
+            records.put(base + TYPE, FREE);
+            arenaGarbage += records.getInt(base + SYMBOL_LENGTH) + records.getInt(base + NAME_LENGTH);
+
+            if (freeCount == freeSlots.length) {
+                freeSlots = Arrays.copyOf(freeSlots, freeCount * 2);
+            }
+            freeSlots[freeCount++] = slot;
+        } finally {
+            sequence.endWrite();
+        }
+    }
+
+    @Override
+    public String getSymbol(int slot) {
+        return read(slot, symbolReader);
+    }
+
+    @Override
+    public String getName(int slot) {
+        return read(slot, nameReader);
+    }
+
+    @Override
+    public int getQuantity(int slot) {
+        return (int) readNumber(slot, QUANTITY);
+    }
+
+    @Override
+    public long getPrice(int slot) {
+        return readNumber(slot, PRICE);
+    }
+
+    @Override
+    public long getPreviousPrice(int slot) {
+        return readNumber(slot, PREVIOUS_PRICE);
+    }
+
+    @Override
+    public long getBookValue(int slot) {
+        return readNumber(slot, BOOK_VALUE);
+    }
+
+    @Override
+    public PositionState getState(int slot) {
+        return read(slot, stateReader);
+    }
+
+    @Override
+    public synchronized boolean compareAndSetState(int slot, PositionState expected, PositionState state) {
+        int base = slot * RECORD_SIZE;
+        if (readState(base).equals(expected) == false) {
+            return false;
+        }
+
+        sequence.beginWrite();
+        try {
+            writeState(base, state);
+        } finally {
+            sequence.endWrite();
+        }
+        return true;
+    }
+
+    @Override
+    public synchronized long calculateTotalGain() {
+        long sum = 0;
+
+        //Walking the records in slot order and skipping the freed slots
+        for (int base = 0; base < size * RECORD_SIZE; base += RECORD_SIZE) {
+            byte type = records.get(base + TYPE);
+            if (type == STOCK) {
+                sum += Stock.calculateGain(records.getInt(base + QUANTITY), records.getLong(base + PRICE), records.getLong(base + PREVIOUS_PRICE));
+            } else if (type == MUTUAL_FUND) {
+                sum += MutualFund.calculateGain(records.getInt(base + QUANTITY), records.getLong(base + PRICE), records.getLong(base + PREVIOUS_PRICE));
+            }
+        }
+        return sum;
+    }
+
+    /**
+     * Reads a string or the state of the record of the given slot without
+     * locking, and retries if a change was made while it was read. A read which
+     * keeps failing waits for the writer instead.
+     *
+     * @param <T> the type of the value
+     * @param slot the slot to read
+     * @param reader the function reading the value from the position of the record
+     * @return the value read
+     */
+    private <T> T read(int slot, IntFunction<T> reader) {
+        int base = slot * RECORD_SIZE;
+        for (int attempt = 0; attempt < OPTIMISTIC_READS; attempt++) {
+            long stamp = sequence.beginRead();
+            try {
+                T value = reader.apply(base);
+                if (sequence.validate(stamp)) {
+                    return value;
+                }
+            } catch (IndexOutOfBoundsException e) {
+                //Case where the records or the arena were moved to a larger buffer while being read
+            }
+            Thread.onSpinWait();
+        }
+
+        synchronized (this) {  //Case where the records keep changing, so the writer is waited for
+            return reader.apply(base);
+        }
+    }
+
+    /**
+     * Reads a number of the record of the given slot as read does, without
+     * boxing it.
+     *
+     * @param slot the slot to read
+     * @param field the offset of the field within the record
+     * @return the value of the field, widened to a long for the quantity
+     */
+    private long readNumber(int slot, int field) {
+        int base = slot * RECORD_SIZE;
+        for (int attempt = 0; attempt < OPTIMISTIC_READS; attempt++) {
+            long stamp = sequence.beginRead();
+            try {
+                long value = getNumber(base, field);
+                if (sequence.validate(stamp)) {
+                    return value;
+                }
+            } catch (IndexOutOfBoundsException e) {
+                //Case where the records were moved to a larger buffer while being read
+            }
+            Thread.onSpinWait();
+        }
+
+        synchronized (this) {  //Case where the records keep changing, so the writer is waited for
+            return getNumber(base, field);
+        }
+    }
+
+    /**
+     * Reads a number of the record starting at the given position.
+     *
+     * @param base the position of the record
+     * @param field the offset of the field within the record
+     * @return the value of the field, widened to a long for the quantity
+     */
+    private long getNumber(int base, int field) {
+        return field == QUANTITY ? records.getInt(base + QUANTITY) : records.getLong(base + field);
+    }
+
+    /**
+     * Reads the values of the record starting at the given position.
+     *
+     * @param base the position of the record
+     * @return the values of the record
+     */
+    private PositionState readState(int base) {
+        return new PositionState(records.getInt(base + QUANTITY), records.getLong(base + PRICE), records.getLong(base + PREVIOUS_PRICE), records.getLong(base + BOOK_VALUE));
+    }
+
+    /**
+     * Writes the given values to the record starting at the given position.
+     *
+     * @param base the position of the record
+     * @param state the values to write
+     */
+    private void writeState(int base, PositionState state) {
+        records.putInt(base + QUANTITY, state.getQuantity());
+        records.putLong(base + PRICE, state.getPrice());
+        records.putLong(base + PREVIOUS_PRICE, state.getPreviousPrice());
+        records.putLong(base + BOOK_VALUE, state.getBookValue());
+    }
+
+    /**
+     * Writes the given string at the end of the arena and stores its offset and
+     * length in the record fields starting at the given position.
+     *
+     * @param field the position of the offset field, followed by the length field
+     * @param value the string to write
+     */
+    private void putString(int field, String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+
+        if ((long) arenaUsed + bytes.length > arena.capacity()) {
+            if (arenaGarbage >= MIN_COMPACT_SIZE && arenaGarbage > arenaUsed / 2) {  //Case where most of the arena belongs to freed slots
+                compactArena();
+            }
+            if ((long) arenaUsed + bytes.length > arena.capacity()) {
+                arena = grow(arena, (long) arenaUsed + bytes.length, arenaUsed);
+            }
+        }
+
+        arena.put(arenaUsed, bytes);
+        records.putInt(field, arenaUsed);
+        records.putInt(field + 4, bytes.length);
+        arenaUsed += bytes.length;
+    }
+
+    /**
+     * Reads the string whose offset and length are stored in the record fields
+     * starting at the given position. The offset and length are checked before
+     * anything is allocated, since a read racing a change may see them torn.
+     *
+     * @param field the position of the offset field, followed by the length field
+     * @return the decoded string
+     * @throws IndexOutOfBoundsException if the string does not lie within the arena
+     */
+    private String getString(int field) {
+        ByteBuffer strings = arena;
+        int offset = records.getInt(field);
+        int length = records.getInt(field + 4);
+        if (offset < 0 || length < 0 || length > strings.capacity() - offset) {
+            throw new IndexOutOfBoundsException("String out of the arena: " + offset + "+" + length);
+        }
+
+        byte[] bytes = new byte[length];
+        strings.get(offset, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Copies the strings of the live slots to a new arena, dropping the bytes of
+     * the freed slots.
+     */
+    private void compactArena() {
+        ByteBuffer compacted = ByteBuffer.allocateDirect(arena.capacity());
+        int used = 0;
+
+        for (int base = 0; base < size * RECORD_SIZE; base += RECORD_SIZE) {
+            if (records.get(base + TYPE) == FREE) {
+                continue;
+            }
+            for (int field = base + SYMBOL_OFFSET; field <= base + NAME_OFFSET; field += 8) {
+                int length = records.getInt(field + 4);
+                compacted.put(used, arena, records.getInt(field), length);
+                records.putInt(field, used);
+                used += length;
+            }
+        }
+
+        arena = compacted;
+        arenaUsed = used;
+        arenaGarbage = 0;
+    }
+
+    /**
+     * Returns a larger direct buffer holding the first bytes of the given one.
+     * The capacity doubles until it holds the requested size.
+     *
+     * @param buffer the buffer to grow
+     * @param required the smallest capacity needed
+     * @param used the number of bytes to copy
+     * @return the new buffer
+     */
+    private static ByteBuffer grow(ByteBuffer buffer, long required, int used) {
+        if (required > Integer.MAX_VALUE) {
+            throw new IllegalStateException("Off-heap position store is full");
+        }
+
+        long capacity = Math.max(buffer.capacity(), 16);
+        while (capacity < required) {
+            capacity *= 2;
+        }
+        ByteBuffer grown = ByteBuffer.allocateDirect((int) Math.min(capacity, Integer.MAX_VALUE));
+        grown.put(0, buffer, 0, used);
+        return grown;
+    }
+}
@@ -0,0 +1,247 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * This class loads large portfolio files in the text format on several threads.
+ *
+ * The file is split into chunks which each start at a "Type" line, so that every
+ * record lies in a single chunk. The chunks are memory-mapped and parsed by
+ * separate PortfolioTextParser objects on a ForkJoinPool, and the results are
+ * joined back in the order of the file. Small files are read on the calling
+ * thread, since splitting them costs more than it saves.
+ */
+public class ParallelPortfolioLoader {
+
+    private static final long MIN_PARALLEL_SIZE = 4L << 20;  //Files smaller than this are read on one thread
+    private static final long MIN_CHUNK_SIZE = 1L << 20;  //Smallest chunk worth handing to another thread
+    private static final long MAX_CHUNK_SIZE = 1L << 30;  //Largest chunk, which keeps every mapping below 2 GB
+    private static final int SCAN_SIZE = 1 << 16;  //Bytes read at a time while looking for a chunk boundary
+
+    private final ForkJoinPool pool;
+    private List<Investment> investments = new ArrayList<>();  //Investments of every chunk in file order
+    private List<String> errors = new ArrayList<>();  //Error messages of every chunk in file order
+    private long journalSequence = 0;  //Journal sequence number from the header of the file
+
+    /**
+     * Constructs a loader which parses the chunks on the common ForkJoinPool.
+     */
+    public ParallelPortfolioLoader() {
+        this(ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Constructs a loader which parses the chunks on the given pool.
+     *
+     * @param pool the pool to parse the chunks on
+     */
+    public ParallelPortfolioLoader(ForkJoinPool pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * Returns the investments loaded from the file, in the order of the file.
+     *
+     * @return the loaded investments
+     */
+    public List<Investment> getInvestments() {
+        return investments;
+    }
+
+    /**
+     * Returns a message for every malformed record in the file, in the order of
+     * the file. Each message starts with the line number of the problem.
+     *
+     * @return the error messages
+     */
+    public List<String> getErrors() {
+        return errors;
+    }
+
+    /**
+     * Returns the sequence number of the last journal entry included in the file,
+     * or 0 if the file has no journal header.
+     *
+     * @return the journal sequence number of the file
+     */
+    public long getJournalSequence() {
+        return journalSequence;
+    }
+
+    /**
+     * Reads and parses the whole file, splitting it into chunks parsed in parallel.
+     *
+     * @param file the file to read
+     * @throws IOException if the file cannot be read
+     */
+    public void read(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long size = channel.size();
+
+            if (size < MIN_PARALLEL_SIZE || pool.getParallelism() < 2) {  //Case where the file is too small to split
+                PortfolioTextParser parser = new PortfolioTextParser();
+                parser.read(file);
+                investments = parser.getInvestments();
+                errors = parser.getErrors();
+                journalSequence = parser.getJournalSequence();
+                return;
+            }
+
+            long[] boundaries = findBoundaries(channel, size);
+            int chunks = boundaries.length - 1;
+
+            //Counting the lines of every chunk so that each parser knows its first line number
+            List<ForkJoinTask<Integer>> counts = new ArrayList<>();
+            for (int i = 0; i < chunks; i++) {
+                long start = boundaries[i];
+                long end = boundaries[i + 1];
+                counts.add(pool.submit(() -> countLines(channel.map(FileChannel.MapMode.READ_ONLY, start, end - start))));
+            }
+
+            //Parsing every chunk in parallel
+            List<ForkJoinTask<PortfolioTextParser>> parsers = new ArrayList<>();
+            int firstLine = 0;
+            for (int i = 0; i < chunks; i++) {
+                long start = boundaries[i];
+                long end = boundaries[i + 1];
+                int lineNumber = firstLine;
+
+                parsers.add(pool.submit(() -> {
+                    MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, start, end - start);
+                    PortfolioTextParser parser = new PortfolioTextParser();
+                    parser.setLineNumber(lineNumber);
+                    parser.parse(buffer, 0, buffer.limit());
+                    parser.finish();
+                    return parser;
+                }));
+                firstLine += join(counts.get(i));
+            }
+
+            //Joining the results in file order
+            investments = new ArrayList<>();
+            errors = new ArrayList<>();
+            for (ForkJoinTask<PortfolioTextParser> task : parsers) {
+                PortfolioTextParser parser = join(task);
+                investments.addAll(parser.getInvestments());
+                errors.addAll(parser.getErrors());
+                journalSequence = Math.max(journalSequence, parser.getJournalSequence());
+            }
+        }
+    }
+
+    /**
+     * Splits the file into chunks which each start at the beginning of a "Type"
+     * line, aiming for a few chunks per thread of the pool.
+     *
+     * @param channel the channel of the file
+     * @param size the size of the file
+     * @return the start of every chunk followed by the size of the file
+     * @throws IOException if the file cannot be read
+     */
+    private long[] findBoundaries(FileChannel channel, long size) throws IOException {
+        long chunkCount = Math.min(pool.getParallelism() * 4L, size / MIN_CHUNK_SIZE);
+        chunkCount = Math.max(chunkCount, (size + MAX_CHUNK_SIZE - 1) / MAX_CHUNK_SIZE);
+
+        List<Long> boundaries = new ArrayList<>();
+        boundaries.add(0L);
+        for (long i = 1; i < chunkCount; i++) {
+            long boundary = findRecordStart(channel, i * size / chunkCount, size);
+            if (boundary > boundaries.get(boundaries.size() - 1) && boundary < size) {
+                boundaries.add(boundary);
+            }
+        }
+        boundaries.add(size);
+
+        //Making sure every chunk can be mapped at once, which only fails for a single record over 2 GB
+        long[] result = new long[boundaries.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = boundaries.get(i);
+            if (i > 0 && result[i] - result[i - 1] > Integer.MAX_VALUE) {
+                throw new IOException("Record too large to map near offset " + result[i - 1]);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns the offset of the first line starting with "Type" at or after the
+     * given offset.
+     *
+     * @param channel the channel of the file
+     * @param from the offset to start looking from
+     * @param size the size of the file
+     * @return the offset of the line, or the size of the file if there is none
+     * @throws IOException if the file cannot be read
+     */
+    private long findRecordStart(FileChannel channel, long from, long size) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(SCAN_SIZE);
+        long position = from - 1;  //Including the byte before, so a line starting exactly at the offset is found
+
+        while (position < size) {
+            buffer.clear();
+            int read = channel.read(buffer, Math.max(position, 0));
+            if (read <= 0) {
+                break;
+            }
+
+            for (int i = 0; i + 4 < read; i++) {
+                if (buffer.get(i) == '\n' && buffer.get(i + 1) == 'T' && buffer.get(i + 2) == 'y'
+                        && buffer.get(i + 3) == 'p' && buffer.get(i + 4) == 'e') {
+                    return Math.max(position, 0) + i + 1;
+                }
+            }
+            if (Math.max(position, 0) + read >= size) {  //Case where the scan reached the end of the file
+                break;
+            }
+            position = Math.max(position, 0) + read - 4;  //Overlapping the reads so a line split between them is found
+        }
+        return size;
+    }
+
+    /**
+     * Counts the line breaks in the given buffer.
+     *
+     * @param buffer the buffer to count
+     * @return the number of line breaks
+     */
+    private static int countLines(ByteBuffer buffer) {
+        int lines = 0;
+        for (int i = 0; i < buffer.limit(); i++) {
+            if (buffer.get(i) == '\n') {
+                lines++;
+            }
+        }
+        return lines;
+    }
+
+    /**
+     * Waits for the given task and returns its result, passing on an IOException
+     * thrown by the task.
+     *
+     * @param task the task to wait for
+     * @param <T> the type of the result
+     * @return the result of the task
+     * @throws IOException if the task failed to read the file
+     */
+    private static <T> T join(ForkJoinTask<T> task) throws IOException {
+        try {
+            return task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while loading", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        }
+    }
+}
@@ -1,16 +1,44 @@
-import java.util.Scanner;
-import java.util.Set;
+import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.PrintWriter;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.PriorityQueue;
+import java.util.TreeMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
 
 /**
  * This class holds the attributes which are only applicable to stocks and
  * mutual funds. It extends the abstract class Investment.
+ *
+ * A portfolio can be used by several threads at once. Buy, sell and update lock
+ * the stripe of their symbol, so operations on the same symbol are journaled and
+ * applied in the same order while operations on other symbols go on in parallel,
+ * and then change the lists and indexes in a short write section of a
+ * StampedLock. Reads such as calculateGain and searchOperation first run without
+ * any lock and only take the read lock when a writer got in the way.
  */
 public class Portfolio {
 
@@ -20,384 +48,1812 @@ public class Portfolio {
      * This field stores all the investments in the portfolio.
      */
     protected ArrayList<Investment> investments = new ArrayList<>();
-    private HashMap<String, List<Integer>> myHashMap = new HashMap<>(); 
+
+    /**
+     * The keyword index used by the search operation.
+     * 
+     * Every lower case word of an investment's symbol and name maps to the list of
+     * investments containing it. The lists are kept sorted by investment id and are
+     * updated whenever an investment is added or removed.
+     */
+    private HashMap<String, List<Investment>> myHashMap = new HashMap<>(); 
+
+    /**
+     * The sorted keyword index used by prefix searches.
+     * 
+     * Holds the same words and lists as myHashMap in alphabetical order, so that
+     * every word starting with a prefix is found in a single range of the map.
+     */
+    private TreeMap<String, List<Investment>> keywordPrefixes = new TreeMap<>();
+
+    /**
+     * The price index used by the search operation.
+     * 
+     * Maps every price to the investments currently at that price, sorted by
+     * investment id, so that a price range can be read without checking every
+     * investment. Entries are moved whenever an operation changes a price.
+     */
+    private TreeMap<Double, List<Investment>> priceIndex = new TreeMap<>();
+
+    /**
+     * The number of times the price index changed.
+     * 
+     * Changed under the write lock of the structure lock, so a search cursor can
+     * tell whether the range it sorted is still the one in the index.
+     */
+    private long priceIndexChanges = 0;
+
+    /**
+     * The id given to the next investment added to the portfolio.
+     */
+    private int nextId = 0;
+
+    /**
+     * The dictionary giving every symbol ever held by the portfolio a dense int id.
+     * It is saved next to the portfolio file so the ids stay the same between runs.
+     */
+    private SymbolDictionary symbols = new SymbolDictionary();
+
+    /**
+     * The number of symbols in the dictionary when it was last saved.
+     */
+    private int savedSymbolCount = 0;
+
+    /**
+     * The name of the file the dictionary was last saved with or loaded from.
+     */
+    private String symbolsName = null;
+
+    /**
+     * The investments indexed by their symbol id, with null for symbols not held.
+     * 
+     * This list always holds the same investments as the investments list, so that
+     * buy, sell and update can find a symbol without walking the whole list.
+     */
+    private ArrayList<Investment> symbolIndex = new ArrayList<>();
+
+    /**
+     * Whether the portfolio is saved and loaded in the binary format.
+     * 
+     * When set, saveInvestments writes "portfolio/[name].portfolio.bin" and
+     * loadInvestments reads it, falling back to importing the text file when no
+     * binary file exists yet.
+     */
+    private boolean binaryFormat = false;
+
+    /**
+     * Whether the portfolio is saved and loaded as a directory of segments.
+     * 
+     * When set, saveInvestments only rewrites the segments of
+     * "portfolio/[name].segments" holding an investment changed since the last save.
+     */
+    private boolean segmentedFormat = false;
+
+    /**
+     * The store holding the values of every investment, or null if the investments
+     * keep their values in their own fields.
+     */
+    private PositionStore positionStore = null;
+
+    /**
+     * The segment store the portfolio was last loaded from or saved to, or null.
+     */
+    private SegmentedPortfolioStore segmentStore = null;
+
+    /**
+     * The name of the file the segment store belongs to.
+     */
+    private String segmentStoreName = null;
+
+    /**
+     * The segments which the next segmented save must write even if none of their
+     * investments is dirty, because an investment was removed from them or their
+     * last save failed.
+     */
+    private HashSet<Integer> pendingSegments = new HashSet<>();
+
+    /**
+     * The time between two background saves when write-behind is enabled, in milliseconds.
+     */
+    private static final long WRITE_BEHIND_MILLIS = 5000;
+
+    /**
+     * The total gain of all the investments, updated whenever an investment is
+     * added or changed instead of being summed on every request, in micro-units.
+     */
+    private long totalGain = 0;
+
+    /**
+     * The number of changes made to the total gain since it was last recomputed.
+     */
+    private volatile int changesSinceRecompute = 0;
+
+    /**
+     * The number of changes after which the total gain is recomputed, or 0 to never recompute it.
+     */
+    private volatile int gainRecomputeInterval = 100000;
+
+    /**
+     * The number of buy, sell and update operations performed so far.
+     */
+    private final AtomicLong version = new AtomicLong();
+
+    /**
+     * The generation of the investments and indexes, which moves on every time an
+     * investment is added, changed or removed. A change of the values of an
+     * investment moves it both before the values change and once the indexes
+     * follow, so a search which saw the same generation before and after it ran
+     * saw no change at all.
+     */
+    private final AtomicLong generation = new AtomicLong();
+
+    /**
+     * The results of the latest calls of searchOperation, by normalized query.
+     */
+    private final SearchResultCache<String[]> searchCache = new SearchResultCache<>(SearchResultCache.DEFAULT_CAPACITY, SearchResultCache.DEFAULT_MAX_MATCHES, result -> result.length);
+
+    /**
+     * The results of the latest calls of searchInvestments and searchPrefix, by
+     * normalized query and number of matches.
+     */
+    private final SearchResultCache<List<Investment>> investmentSearchCache = new SearchResultCache<>(SearchResultCache.DEFAULT_CAPACITY, SearchResultCache.DEFAULT_MAX_MATCHES, List::size);
+
+    /**
+     * The number of symbol locks. Symbols are spread over the locks by their hash.
+     */
+    private static final int LOCK_STRIPES = 64;
+
+    /**
+     * The locks held by buy, sell and update for their symbol, so that two
+     * operations on the same symbol are recorded and applied in the same order.
+     */
+    private final ReentrantLock[] symbolLocks = createLocks(LOCK_STRIPES);
+
+    /**
+     * The lock guarding the investments list, the indexes and the running total.
+     * Operations change the values of an investment while holding only the lock
+     * of its symbol, and take the write lock only while they add or remove an
+     * investment or move it in the price index. Searches and other scans hold
+     * the read lock.
+     */
+    private final StampedLock structureLock = new StampedLock();
+
+    /**
+     * The time between two checks of the journal size, in milliseconds.
+     */
+    private static final long COMPACTION_MILLIS = 30000;
+
+    /**
+     * The journal size above which a snapshot is saved to compact the journal, in bytes.
+     */
+    private static final long COMPACTION_BYTES = 4L << 20;
+
+    /**
+     * The journal recording every buy, sell and update, or null if journaling is off.
+     */
+    private volatile TransactionJournal journal = null;
+
+    /**
+     * The name of the file the journal belongs to.
+     */
+    private String journalName = null;
+
+    /**
+     * The sequence number of the last journal entry included in the loaded file.
+     */
+    private long checkpointSequence = 0;
+
+    /**
+     * The lock held while a save writes its file.
+     */
+    private final Object saveLock = new Object();
+
+    /**
+     * Whether text files are loaded in parallel chunks by a ParallelPortfolioLoader.
+     */
+    private boolean parallelLoading = false;
+
+    /**
+     * The problems found in the records of the last text file loaded.
+     */
+    private List<String> loadErrors = new ArrayList<>();
 
     /**
      * The main method of the program. It creates a new portfolio, loads from a file if provided, and then starts the GUI.
      * If no filename is provided, it starts with a blank portfolio and saves it to "cis2430.portfolio".
-     * @param args the command line arguments, of which the first argument is the filename to load the portfolio from
+     * The "--binary" option saves and loads the portfolio in the binary format, the
+     * "--segmented" option saves only the changed segments of the portfolio, the
+     * "--columnar" option keeps the values of the investments in a ColumnarPositionStore, the
+     * "--off-heap" option keeps them outside of the heap in an OffHeapPositionStore, and the
+     * "--parallel" option loads text files on several threads. The "--write-behind" option
+     * saves changes in the background every few seconds, and the "--journal" option records
+     * every operation in a journal which is replayed on the next start. The "--headless"
+     * option runs the commands described in HeadlessRunner from standard input instead of
+     * starting the GUI, and saves the portfolio when they are done; "--script=FILE" does the
+     * same with the commands of a file. Swing is never loaded in this mode.
+     * @param args the command line arguments, of which the first argument other than an option is the filename to load the portfolio from
      */
     public static void main(String[] args) {
 
         //Creating an object of Portfolio class
         Portfolio obj = new Portfolio();
 
+        String filename = null;
+        boolean writeBehind = false;
+        boolean journal = false;
+        boolean headless = false;
+        String script = null;
+        for (String arg : args) {
+            if (arg.equals("--headless")) {
+                headless = true;
+            } else if (arg.startsWith("--script=")) {
+                headless = true;
+                script = arg.substring("--script=".length());
+            } else if (arg.equals("--write-behind")) {
+                writeBehind = true;
+            } else if (arg.equals("--journal")) {
+                journal = true;
+            } else if (arg.equals("--binary")) {
+                obj.setBinaryFormat(true);
+            } else if (arg.equals("--segmented")) {
+                obj.setSegmentedFormat(true);
+            } else if (arg.equals("--columnar")) {
+                obj.setPositionStore(new ColumnarPositionStore());
+            } else if (arg.equals("--off-heap")) {
+                obj.setPositionStore(new OffHeapPositionStore());
+            } else if (arg.equals("--parallel")) {
+                obj.setParallelLoading(true);
+            } else if (filename == null) {
+                filename = arg;
+            }
+        }
 
-        if (args.length > 0) {
-
-            String filename = args[0];
+        if (filename != null) {
 
             if (obj.loadInvestments(filename) == true) {
                 System.out.println("Portfolio loaded successfully from file: " + filename);
-                GUIPanel gui = new GUIPanel(obj, filename);  //Creating an object of GUIPanel
-                gui.displayGUI();  //Displaying the GUI
             } else {
                 System.out.println("Failed to load Portfolio from file. Starting with a blank portfolio.");
                 obj.saveInvestments(filename);
-                GUIPanel gui = new GUIPanel(obj, filename);
-                gui.displayGUI();
             }
 
         } else {
             System.out.println("No file provided. Starting with a blank Portfolio.");
-            obj.saveInvestments("cis2430");
-            GUIPanel gui = new GUIPanel(obj, "cis2430");
-            gui.displayGUI();
+            filename = "cis2430";
+            obj.saveInvestments(filename);
+        }
+
+        //Recovering the operations made since the last save before the GUI can make new ones
+        if (journal) {
+            obj.openJournal(filename);
+        }
+
+        //Running the commands of the script and saving, without starting the GUI
+        if (headless) {
+            System.exit(runHeadless(obj, filename, script));
+        }
+
+        //Saving changes in the background so the GUI does not have to wait for the disk
+        if (writeBehind) {
+            new WriteBehindSaver(obj, filename, WRITE_BEHIND_MILLIS).start();
+        }
+
+        GUIPanel gui = new GUIPanel(obj, filename);  //Creating an object of GUIPanel
+        gui.displayGUI();  //Displaying the GUI
+
+    }
+
+    /**
+     * Runs the commands of a script on the portfolio with a HeadlessRunner and
+     * saves the portfolio afterwards.
+     *
+     * @param portfolio the portfolio to run the commands on
+     * @param filename the name of the file the portfolio is saved to
+     * @param script the name of the script file, or null to read standard input
+     * @return the exit status, which is 0 if every command could be run
+     */
+    private static int runHeadless(Portfolio portfolio, String filename, String script) {
+        int failures;
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+                script == null ? System.in : new FileInputStream(script), StandardCharsets.UTF_8))) {
+            failures = new HeadlessRunner(portfolio, filename, System.out).run(reader);
+        } catch (IOException e) {
+            System.err.println("Could not read script: " + e.getMessage());
+            return 2;
+        }
+
+        if (portfolio.saveInvestments(filename) == false) {
+            System.err.println("Could not save the portfolio to file: " + filename);
+            return 2;
         }
+        return failures == 0 ? 0 : 1;
+    }
+
+    /**
+     * Sets whether the portfolio is saved and loaded in the binary format.
+     * 
+     * @param binaryFormat true to use the binary format, false to use the text format
+     */
+    public void setBinaryFormat(boolean binaryFormat) {
+        this.binaryFormat = binaryFormat;
+    }
+
+    /**
+     * Sets whether the portfolio is saved and loaded as a directory of segments,
+     * of which a save only rewrites the ones that changed.
+     * 
+     * @param segmentedFormat true to use the segmented layout
+     */
+    public void setSegmentedFormat(boolean segmentedFormat) {
+        this.segmentedFormat = segmentedFormat;
+    }
 
+    /**
+     * Sets the store holding the values of the investments. The investments
+     * already in the portfolio are moved into the new store, and the ones added
+     * later are attached to it as well. A null store keeps the values in the
+     * Investment objects again.
+     * 
+     * @param positionStore the store to use, or null
+     */
+    public void setPositionStore(PositionStore positionStore) {
+        lockAllSymbols();  //Moving values which no operation is changing
+        long stamp = structureLock.writeLock();
+        try {
+            for (Investment investment : investments) {
+                investment.detach();
+                if (positionStore != null) {
+                    investment.attach(positionStore);
+                }
+            }
+            this.positionStore = positionStore;
+        } finally {
+            structureLock.unlockWrite(stamp);
+            unlockAllSymbols();
+        }
+    }
 
+    /**
+     * Sets whether text files are loaded in parallel. Large files are then split
+     * into chunks of records which are parsed on a ForkJoinPool.
+     * 
+     * @param parallelLoading true to load text files in parallel
+     */
+    public void setParallelLoading(boolean parallelLoading) {
+        this.parallelLoading = parallelLoading;
     }
 
     /**
      * Saves the current state of the portfolio to a file with the given name in the
      * "portfolio" directory.
      * The file is written in a format that can be read by the loadInvestments
-     * method.
+     * method, which is the binary format if it was selected and the text format otherwise.
+     * The investments are copied first, so that other threads can keep trading
+     * while the copy is written. The copy is written to a temporary file which is
+     * synced to disk and then renamed over the old file, so a crash during the save
+     * leaves the previous file intact. When the file belongs to the journal, the
+     * entries included in the saved file are then removed from the journal.
+     * In the segmented layout, only the segments that changed are written.
      * 
      * @param filename the name of the file to write to
+     * @return true if the file was saved, false otherwise
      */
-    public void saveInvestments(String filename) {
-
+    public boolean saveInvestments(String filename) {
         // Checking if the directory exist otherwise create it
-        if (!new File("portfolio").exists()) {
-            new File("portfolio").mkdir();
+        File directory = new File("portfolio");
+        if (!directory.exists()) {
+            directory.mkdir();
         }
 
-        File file = new File("portfolio/" + filename + ".portfolio"); //Creating the file object
+        if (segmentedFormat) {
+            return saveSegments(directory, filename);
+        }
 
-        try {
-            PrintWriter writer = new PrintWriter(file); //Creating the PrintWriter object for writing data in the file
+        File file = new File(directory, filename + (binaryFormat ? ".portfolio.bin" : ".portfolio")); //Creating the file object
+        File temporaryFile = new File(directory, file.getName() + ".tmp");
+
+        synchronized (saveLock) {  //Making sure only one save writes the temporary file at a time
+            List<Investment> snapshot;
+            long journalSequence = checkpointSequence;
+            long journalMark = 0;
+            TransactionJournal savedJournal = null;
+
+            //Copying the investments together with the position of the journal they match
+            lockAllSymbols();
+            try {
+                snapshot = snapshotInvestments();
+                if (journal != null && filename.equals(journalName)) {
+                    savedJournal = journal;
+                    journalSequence = savedJournal.getLastSequence();
+                    journalMark = savedJournal.size();
+                }
+            } finally {
+                unlockAllSymbols();
+            }
 
-            //Loop to iterate through whole investments arraylist
-            for (int i = 0; i < investments.size(); i++) {
+            try {
+                try (FileOutputStream output = new FileOutputStream(temporaryFile)) {
+                    if (binaryFormat) {
+                        BinaryPortfolioFile.write(output, snapshot, journalSequence);
+                    } else {
+                        PortfolioTextWriter.write(output, snapshot, journalSequence);
+                    }
+                    output.getFD().sync(); //Making sure the data is on disk before it replaces the old file
+                }
 
-                if (investments.get(i).isStock()) { //Writing data of stocks in the file
-                    writer.printf(
-                            "Type = \"Stock\"\nSymbol = \"%s\"\nName = \"%s\"\nQuantity = %d\nPrice = %.2f\nBookValue = %.2f\n\n",
-                            investments.get(i).getSymbol(), investments.get(i).getName(),
-                            investments.get(i).getQuantity(),
-                            investments.get(i).getPrice(), investments.get(i).getBookValue());
-                } else { //Writing data of mutual funds in the file
-                    writer.printf(
-                            "Type = \"MutualFund\"\nSymbol = \"%s\"\nName = \"%s\"\nQuantity = %d\nPrice = %.2f\nBookValue = %.2f\n\n",
-                            investments.get(i).getSymbol(), investments.get(i).getName(),
-                            investments.get(i).getQuantity(),
-                            investments.get(i).getPrice(), investments.get(i).getBookValue());
+                try {
+                    Files.move(temporaryFile.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                } catch (AtomicMoveNotSupportedException e) {
+                    Files.move(temporaryFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                }
+                syncDirectory(directory);
+                saveSymbols(directory, filename);
 
+                //Dropping the journal entries which are now part of the saved file
+                if (savedJournal != null) {
+                    savedJournal.compact(journalMark);
                 }
-            }
-            writer.close(); //Closing the PrintWriter
+                return true;
 
-        } catch (Exception e) {
-            e.printStackTrace();
+            } catch (IOException e) {
+                e.printStackTrace();
+                return false;
+            }
         }
     }
 
     /**
-     * Loads investment data from a specified file in the "portfolio" directory. The
-     * file should be
-     * formatted in a specific way that aligns with the saveInvestments method's
-     * output. The method
-     * reads each investment's type, symbol, name, quantity, price, and book value,
-     * then creates and
-     * adds the corresponding Stock or MutualFund object to the investments list.
-     * Returns true if the
-     * file exists and is successfully read; otherwise, returns false.
+     * Saves the portfolio to "[name].segments" in the given directory, writing only
+     * the segments holding an investment changed since the last save. Saving to
+     * another store than the last one writes every segment.
      * 
-     * @param filename the name of the file (without extension) to load the
-     *                 investments from
-     * @return boolean indicating whether the investments were successfully loaded
+     * @param directory the directory holding the portfolio files
+     * @param filename the name of the file to write to
+     * @return true if the segments were saved, false otherwise
      */
-    public boolean loadInvestments(String filename) {
-        //Creating the file object
-        File file = new File("portfolio", filename + ".portfolio");
-
-        if (file.exists()) {
-
-            try (Scanner reader = new Scanner(file)) {
-
-                while (reader.hasNextLine()) { //Reading data from the file line by line
-
-                    if (reader.hasNextLine() == false) { //Exiting the loop when the file ends
-                        break;
+    private boolean saveSegments(File directory, String filename) {
+        synchronized (saveLock) {
+            SegmentedPortfolioStore store;
+            boolean full;
+            TreeMap<Integer, List<Investment>> changed = new TreeMap<>();
+            long journalSequence = checkpointSequence;
+            long journalMark = 0;
+            TransactionJournal savedJournal = null;
+
+            //Copying the changed segments and marking their investments as saved
+            lockAllSymbols();
+            long stamp = structureLock.writeLock();
+            try {
+                full = segmentStore == null || filename.equals(segmentStoreName) == false;
+                store = full ? new SegmentedPortfolioStore(new File(directory, filename + ".segments")) : segmentStore;
+
+                for (int segment : pendingSegments) {
+                    changed.put(segment, new ArrayList<>());
+                }
+                for (Investment investment : investments) {
+                    if (full || investment.isDirty()) {
+                        changed.putIfAbsent(SegmentedPortfolioStore.getSegment(investment), new ArrayList<>());
                     }
-
-                    String typeLine = getNextLine(reader);
-                    if (typeLine.contains("=") == false) { //Skip when the line does not contain "="
-                        continue;
+                }
+                for (Investment investment : investments) {
+                    List<Investment> segment = changed.get(SegmentedPortfolioStore.getSegment(investment));
+                    if (segment != null) {
+                        segment.add(investment.copy());
+                        investment.markClean();
                     }
+                }
+                pendingSegments.clear();
 
-                    String type = performSplit(typeLine, "\"", 1); //Getting the investment type from the file
+                if (journal != null && filename.equals(journalName)) {
+                    savedJournal = journal;
+                    journalSequence = savedJournal.getLastSequence();
+                    journalMark = savedJournal.size();
+                }
+            } finally {
+                structureLock.unlockWrite(stamp);
+                unlockAllSymbols();
+            }
 
-                    String symbolLine = getNextLine(reader);
-                    String symbol = performSplit(symbolLine, "\"", 1); //Getting the investment symbol from the file
+            try {
+                store.write(changed, full, journalSequence);
+                saveSymbols(directory, filename);
+
+                segmentStore = store;
+                segmentStoreName = filename;
+                if (savedJournal != null) {  //Dropping the journal entries which are now part of the segments
+                    savedJournal.compact(journalMark);
+                }
+                return true;
 
-                    String nameLine = getNextLine(reader);
-                    String name = performSplit(nameLine, "\"", 1); //Getting the investment name from the file
+            } catch (IOException e) {
+                stamp = structureLock.writeLock();
+                try {  //Writing the same segments again on the next save
+                    pendingSegments.addAll(changed.keySet());
+                } finally {
+                    structureLock.unlockWrite(stamp);
+                }
+                e.printStackTrace();
+                return false;
+            }
+        }
+    }
 
-                    String quantityLine = getNextLine(reader);
-                    int quantity = parseToInt(performSplit(quantityLine, "=", 1)); //Getting the investment quantity from the file
+    /**
+     * Saves the symbol dictionary as "[name].symbols" in the given directory if it
+     * gained symbols since it was last saved there. A copy is written, so trades
+     * can go on while the file is written. It is only called while saveLock is held.
+     * 
+     * @param directory the directory holding the portfolio files
+     * @param filename the name of the portfolio file
+     * @throws IOException if the dictionary cannot be written
+     */
+    private void saveSymbols(File directory, String filename) throws IOException {
+        SymbolDictionary copy;
+        long stamp = structureLock.readLock();
+        try {
+            if (symbols.size() == savedSymbolCount && filename.equals(symbolsName)) {  //Case where the saved file is up to date
+                return;
+            }
+            copy = symbols.copy();
+        } finally {
+            structureLock.unlockRead(stamp);
+        }
 
-                    String priceLine = getNextLine(reader);
-                    double price = parseToDouble(performSplit(priceLine, "=", 1)); //Getting the investment price from the file
+        copy.write(new File(directory, filename + ".symbols"));
+        savedSymbolCount = copy.size();
+        symbolsName = filename;
+    }
 
-                    String bookValueLine = getNextLine(reader);
-                    double bookValue = parseToDouble(performSplit(bookValueLine, "=", 1)); //Getting the investment book value from the file
+    /**
+     * Opens the journal of the given file, replays the operations it recorded since
+     * the loaded file was saved, and records every following buy, sell and update in
+     * it. The journal is compacted in the background whenever it grows too large.
+     * 
+     * @param filename the name of the file the journal belongs to
+     * @return true if the journal was opened, false otherwise
+     */
+    public boolean openJournal(String filename) {
+        File directory = new File("portfolio");
+        if (!directory.exists()) {
+            directory.mkdir();
+        }
 
-                    //Adding the investments to the investments arraylist
-                    if (type.equalsIgnoreCase("Stock")) {
-                        investments.add(new Stock(symbol, name, quantity, price, bookValue));
-                    } else if (type.equalsIgnoreCase("MutualFund")) {
-                        investments.add(new MutualFund(symbol, name, quantity, price, bookValue));
-                    }
-                }
-                return true;
+        return openJournal(new TransactionJournal(new File(directory, filename + ".journal")), filename);
+    }
 
-            } catch (FileNotFoundException e) {
-                System.err.println("File not found: " + e.getMessage());
-                return false;
+    /**
+     * Replays the given journal and records every following buy, sell and update
+     * in it, as described in openJournal(String). Tests use it to pass a journal
+     * which fails to write.
+     *
+     * @param opened the journal to use
+     * @param filename the name of the file the journal belongs to
+     * @return true if the journal was opened, false otherwise
+     */
+    boolean openJournal(TransactionJournal opened, String filename) {
+        try {
+            int applied = opened.replay(this, checkpointSequence); //Replaying while the journal is still off, so nothing is recorded twice
+            if (applied > 0) {
+                System.out.println("Recovered " + applied + " operations from the journal.");
             }
+        } catch (IOException e) {
+            System.err.println("Could not open journal: " + e.getMessage());
+            return false;
         }
-        return false;
+
+        journal = opened;
+        journalName = filename;
+        opened.startCompaction(() -> saveInvestments(filename), COMPACTION_MILLIS, COMPACTION_BYTES);
+        return true;
     }
 
     /**
-     * Retrieves the next line from the provided Scanner object if available.
-     * If no line is available, returns an empty string.
+     * Returns copies of all the investments, taken while no operation is changing them.
      *
-     * @param reader the Scanner object used to read lines from an input source
-     * @return the next line as a String if available, otherwise an empty string
+     * @return a copy of every investment in the portfolio, in order
      */
-    private String getNextLine(Scanner reader) {
-        if (reader.hasNextLine()) {
-            return reader.nextLine();
-        } else {
-            return "";
+    public List<Investment> snapshotInvestments() {
+        long stamp = structureLock.readLock();
+        try {
+            List<Investment> snapshot = new ArrayList<>(investments.size());
+            for (int i = 0; i < investments.size(); i++) {
+                snapshot.add(investments.get(i).copy());
+            }
+            return snapshot;
+        } finally {
+            structureLock.unlockRead(stamp);
         }
     }
 
     /**
-     * Splits a line of text into parts using a regular expression, and returns
-     * the part at the given index. If the line is not split into enough parts
-     * to have a part at the given index, an empty string is returned.
+     * Returns the number of buy, sell and update operations performed on the
+     * portfolio. The number changes whenever the investments may have changed.
      *
-     * @param line  the line of text to be split
-     * @param regex the regular expression to be used for splitting
-     * @param i     the index of the part to be returned
-     * @return the part at the given index, or an empty string if no such part
-     *         exists
+     * @return the current version of the portfolio
      */
-    private String performSplit(String line, String regex, int i) {
-        String[] parts = line.split(regex);
-        if (parts.length > i) {
-            return parts[i];
-        } else {
-            return "";
+    public long getVersion() {
+        return version.get();
+    }
+
+    /**
+     * Syncs the given directory, so that a file renamed into it survives a crash.
+     * Some platforms cannot open directories, in which case nothing is done.
+     *
+     * @param directory the directory to sync
+     */
+    private void syncDirectory(File directory) {
+        try (FileChannel channel = FileChannel.open(directory.toPath(), StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            //Ignoring platforms where a directory cannot be synced
+        }
+    }
+
+    /**
+     * Loads investment data from a specified file in the "portfolio" directory. The
+     * file should be
+     * formatted in a specific way that aligns with the saveInvestments method's
+     * output. The method
+     * reads each investment's type, symbol, name, quantity, price, and book value
+     * with a PortfolioTextParser, then
+     * adds the corresponding Stock or MutualFund object to the investments list.
+     * Malformed records are skipped and reported with their line numbers.
+     * Returns true if the
+     * file exists and is successfully read; otherwise, returns false.
+     * In binary format, the binary file is read when it exists and the text file
+     * is imported otherwise. In the segmented layout, the segments are read when
+     * they exist, and the binary or text file is imported otherwise.
+     * 
+     * @param filename the name of the file (without extension) to load the
+     *                 investments from
+     * @return boolean indicating whether the investments were successfully loaded
+     */
+    public boolean loadInvestments(String filename) {
+        lockAllSymbols();  //Replacing investments which no operation is changing
+        long stamp = structureLock.writeLock();
+        try {
+            return loadInvestmentsLocked(filename);
+        } finally {
+            structureLock.unlockWrite(stamp);
+            unlockAllSymbols();
         }
     }
 
     /**
-     * Parses the given string as an integer, or returns 0 if parsing fails
-     * (for example, if the string does not represent a valid integer)
+     * Loads the investments of the given file as described in loadInvestments.
+     * The write lock of the structure lock must be held.
+     *
+     * @param filename the name of the file (without extension) to load the
+     *                 investments from
+     * @return boolean indicating whether the investments were successfully loaded
+     */
+    private boolean loadInvestmentsLocked(String filename) {
+        //Reading the symbol ids of earlier runs before any investment is given one
+        File symbolFile = new File("portfolio", filename + ".symbols");
+        if (investments.isEmpty() && symbolFile.exists()) {
+            try {
+                symbols.read(symbolFile);
+                savedSymbolCount = symbols.size();
+                symbolsName = filename;
+            } catch (IOException e) {
+                System.err.println("Could not read symbols: " + e.getMessage());
+                symbols = new SymbolDictionary();
+            }
+        }
+
+        SegmentedPortfolioStore store = new SegmentedPortfolioStore(new File("portfolio", filename + ".segments"));
+
+        if (segmentedFormat && store.exists()) {
+            try {
+                store.read();
+            } catch (IOException e) {
+                System.err.println("Could not read segments: " + e.getMessage());
+                return false;
+            }
+
+            //Giving every investment an id within its segment, so a save writes it back to the same segment
+            for (Map.Entry<Integer, List<Investment>> segment : store.getSegments().entrySet()) {
+                nextId = Math.max(nextId, segment.getKey() * SegmentedPortfolioStore.SEGMENT_SIZE);
+                for (Investment investment : segment.getValue()) {
+                    addInvestment(investment);
+                    investment.markClean();
+                }
+            }
+            checkpointSequence = store.getJournalSequence();
+            segmentStore = store;
+            segmentStoreName = filename;
+            return true;
+        }
+
+        File binaryFile = new File("portfolio", filename + ".portfolio.bin");
+
+        if (binaryFormat && binaryFile.exists()) {
+            try {
+                BinaryPortfolioFile reader = new BinaryPortfolioFile();
+                reader.read(binaryFile);
+                for (Investment investment : reader.getInvestments()) {
+                    addInvestment(investment);
+                }
+                checkpointSequence = reader.getJournalSequence();
+                return true;
+            } catch (IOException e) {
+                System.err.println("Could not read binary file: " + e.getMessage());
+                return false;
+            }
+        }
+
+        //Creating the file object
+        File file = new File("portfolio", filename + ".portfolio");
+
+        if (file.exists()) {
+
+            List<Investment> loaded;
+            try {
+                if (parallelLoading) {
+                    ParallelPortfolioLoader loader = new ParallelPortfolioLoader();
+                    loader.read(file); //Reading the records from the file in parallel chunks
+                    loaded = loader.getInvestments();
+                    loadErrors = loader.getErrors();
+                    checkpointSequence = loader.getJournalSequence();
+                } else {
+                    PortfolioTextParser parser = new PortfolioTextParser();
+                    parser.read(file); //Reading the records from the file through a buffered channel
+                    loaded = parser.getInvestments();
+                    loadErrors = parser.getErrors();
+                    checkpointSequence = parser.getJournalSequence();
+                }
+            } catch (IOException e) {
+                System.err.println("Could not read file: " + e.getMessage());
+                return false;
+            }
+
+            //Adding the investments to the investments arraylist
+            for (Investment investment : loaded) {
+                addInvestment(investment);
+            }
+
+            //Reporting the records which could not be read
+            for (String error : loadErrors) {
+                System.err.println(file + ": " + error);
+            }
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Returns the problems found in the records of the last text file loaded.
+     * Each message starts with the line number of the malformed record, which
+     * was skipped while loading.
+     *
+     * @return the error messages of the last load
+     */
+    public List<String> getLoadErrors() {
+        return loadErrors;
+    }
+
+    /**
+     * Buys a specified quantity of an investment at a given price.
+     * If the investment does not exist in the portfolio, a new one is created.
+     * If the investment already exists, the quantity is updated.
+     * 
+     * @param type the type of investment (Stock or MutualFund)
+     * @param symbol the symbol of the investment
+     * @param name the name of the investment
+     * @param quantity the number of units to buy
+     * @param price the price per unit of the investment
+     * @return the result of the purchase, which TradeMessages turns into a message
+     */
+    public TradeResult buy(String type, String symbol, String name, int quantity, double price) { // Made changes
+        ReentrantLock symbolLock = lockSymbol(symbol);
+        try {
+            Investment currentInvestment = lookUpInvestment(symbol); //Looking for the investment in the existing list
+            if (tradeFits(currentInvestment, type, quantity, price) == false) {  //Rejecting the purchase before it is recorded, since it could never be applied
+                return TradeResult.rejected(TradeResult.Status.OVERFLOW, symbol);
+            }
+
+            version.incrementAndGet();
+            TransactionJournal current = journal;
+            if (current != null) {  //Recording the operation before it is applied
+                try {
+                    current.sync(current.appendBuy(type, symbol, name, quantity, price));
+                } catch (IOException e) {
+                    System.err.println("Could not record the purchase in the journal: " + e.getMessage());
+                    return TradeResult.rejected(TradeResult.Status.NOT_RECORDED, symbol);
+                }
+            }
+
+            return applyBuy(currentInvestment, type, symbol, name, quantity, price);
+        } finally {
+            symbolLock.unlock();
+        }
+    }
+
+    /**
+     * Applies a buy to the investments, as described in buy. The lock of the
+     * symbol must be held; the write lock of the structure lock is only taken
+     * to add a new investment or to move the investment in the price index.
+     *
+     * @param currentInvestment the investment with the symbol, or null if it is not held
+     * @param type the type of investment (Stock or MutualFund)
+     * @param symbol the symbol of the investment
+     * @param name the name of the investment
+     * @param quantity the number of units to buy
+     * @param price the price per unit of the investment
+     * @return the result of the purchase
+     */
+    private TradeResult applyBuy(Investment currentInvestment, String type, String symbol, String name, int quantity, double price) {
+        //Check to see if the investment with the same symbol exists as the other type
+        if (currentInvestment != null) {
+            if ((type.equalsIgnoreCase("Stock") && !currentInvestment.isStock()) || (type.equalsIgnoreCase("MutualFund") && currentInvestment.isStock())) {
+                return new TradeResult(TradeResult.Status.TYPE_MISMATCH, currentInvestment.isStock(), symbol, null, quantity, 0, 0, 0, 0);
+            }
+        }
+
+        if (currentInvestment == null) { //If the investment is not found, create a new one based on its type
+
+            if (type.equalsIgnoreCase("Stock")) {
+                currentInvestment = new Stock(symbol, name, quantity, price);
+            } else if (type.equalsIgnoreCase("MutualFund")) {
+                currentInvestment = new MutualFund(symbol, name, quantity, price);
+            } else {
+                return TradeResult.rejected(TradeResult.Status.UNKNOWN_TYPE, symbol);
+            }
+            long stamp = structureLock.writeLock();
+            try {
+                addInvestment(currentInvestment);
+            } finally {
+                structureLock.unlockWrite(stamp);
+            }
+            PositionState state = currentInvestment.getState();
+            return new TradeResult(TradeResult.Status.ADDED, currentInvestment.isStock(), currentInvestment.getSymbol(), currentInvestment.getName(),
+                    quantity, state.getQuantity(), state.getPrice(), state.getBookValue(), 0);
+        }
+
+        double oldPrice = currentInvestment.getPrice();
+        long oldGain = currentInvestment.calculateGainMicros();
+        generation.incrementAndGet();
+        TradeResult result = currentInvestment.buy(quantity, price); // If the investment is found in the existing list, just buy it
+        reindexChange(currentInvestment, oldPrice, oldGain);
+        return result;
+    }
+
+
+    /**
+     * Sells a specified quantity of an investment at a given price.
+     * Looks up the investment object with the given symbol in the symbol index.
+     * If the investment is found, the sell method is called to update the
+     * quantity and book value of the investment, and the index is updated when
+     * the whole quantity is sold. If the investment is not found, the result
+     * has the status NOT_FOUND.
+     * 
+     * @param symbol the symbol of the investment
+     * @param quantity the number of units to sell
+     * @param price the price per unit of the investment
+     * @return the result of the sale, which TradeMessages turns into a message
+     */
+    public TradeResult sell(String symbol, int quantity, double price) {
+        ReentrantLock symbolLock = lockSymbol(symbol);
+        try {
+            Investment currentInvestment = lookUpInvestment(symbol);
+            if (tradeFits(currentInvestment, null, quantity, price) == false) {  //Rejecting the sale before it is recorded, since it could never be applied
+                return TradeResult.rejected(TradeResult.Status.OVERFLOW, symbol);
+            }
+
+            version.incrementAndGet();
+            TransactionJournal current = journal;
+            if (current != null) {  //Recording the operation before it is applied
+                try {
+                    current.sync(current.appendSell(symbol, quantity, price));
+                } catch (IOException e) {
+                    System.err.println("Could not record the sale in the journal: " + e.getMessage());
+                    return TradeResult.rejected(TradeResult.Status.NOT_RECORDED, symbol);
+                }
+            }
+
+            return applySell(currentInvestment, symbol, quantity, price);
+        } finally {
+            symbolLock.unlock();
+        }
+    }
+
+    /**
+     * Applies a sale to the investments, as described in sell. The lock of the
+     * symbol must be held. The write lock of the structure lock is taken for the
+     * whole sale when it closes the investment, and otherwise only to move the
+     * investment in the price index.
+     *
+     * @param currentInvestment the investment with the symbol, or null if it is not held
+     * @param symbol the symbol of the investment
+     * @param quantity the number of units to sell
+     * @param price the price per unit of the investment
+     * @return the result of the sale
+     */
+    private TradeResult applySell(Investment currentInvestment, String symbol, int quantity, double price) {
+        //Reporting the symbol if the investment was not found
+        if (currentInvestment == null) {
+            return TradeResult.rejected(TradeResult.Status.NOT_FOUND, symbol);
+        }
+
+        int heldQuantity = currentInvestment.getQuantity();
+        if (heldQuantity == quantity) {  //Case where the investment removes itself from the list, so drop it from the indexes as well
+            long stamp = structureLock.writeLock();
+            try {
+                beforeChange(currentInvestment);
+                TradeResult result = currentInvestment.sell(investments, symbol, quantity, price);
+                unindexInvestment(currentInvestment);
+                return result;
+            } finally {
+                structureLock.unlockWrite(stamp);
+            }
+        }
+
+        double oldPrice = currentInvestment.getPrice();
+        long oldGain = currentInvestment.calculateGainMicros();
+        generation.incrementAndGet();
+        TradeResult result = currentInvestment.sell(investments, symbol, quantity, price);  //Leaving the list alone, since part of the quantity remains
+        reindexChange(currentInvestment, oldPrice, oldGain);
+        return result;
+    }
+
+
+    /**
+     * Updates the price of the investment with the given symbol and name to the given price.
+     * Looks up the investment with the given symbol in the symbol index and updates its
+     * price if the name matches as well.
+     * Returns a result holding the updated details of the investment.
+     * If the investment is not found, the result has the status NOT_FOUND.
+     *
+     * @param Symbol the symbol of the investment to update
+     * @param price the new price to set for the investment
+     * @param name the name of the investment to update
+     * @return the result of the update, which TradeMessages turns into a message
+     */
+    public TradeResult update(String Symbol, Double price, String name) {
+        ReentrantLock symbolLock = lockSymbol(Symbol);
+        try {
+            Investment currentInvestment = lookUpInvestment(Symbol);
+            if (currentInvestment != null && currentInvestment.getName().equalsIgnoreCase(name) && priceFits(currentInvestment, price) == false) {  //Rejecting the update before it is recorded
+                return TradeResult.rejected(TradeResult.Status.OVERFLOW, Symbol);
+            }
+
+            version.incrementAndGet();
+            TransactionJournal current = journal;
+            if (current != null) {  //Recording the operation before it is applied
+                try {
+                    current.sync(current.appendUpdate(Symbol, price, name));
+                } catch (IOException e) {
+                    System.err.println("Could not record the update in the journal: " + e.getMessage());
+                    return TradeResult.rejected(TradeResult.Status.NOT_RECORDED, Symbol);
+                }
+            }
+
+            return applyUpdate(currentInvestment, Symbol, price, name);
+        } finally {
+            symbolLock.unlock();
+        }
+    }
+
+    /**
+     * Applies a price update to the investments, as described in update. The
+     * lock of the symbol must be held; the write lock of the structure lock is
+     * only taken to move the investment in the price index.
+     *
+     * @param currentInvestment the investment with the symbol, or null if it is not held
+     * @param Symbol the symbol of the investment to update
+     * @param price the new price to set for the investment
+     * @param name the name of the investment to update
+     * @return the result of the update
+     */
+    private TradeResult applyUpdate(Investment currentInvestment, String Symbol, Double price, String name) {
+        if (currentInvestment != null && currentInvestment.getName().equalsIgnoreCase(name)) {
+            double oldPrice = currentInvestment.getPrice();
+            long oldGain = currentInvestment.calculateGainMicros();
+            generation.incrementAndGet();
+            currentInvestment.updatePrice(price);
+            reindexChange(currentInvestment, oldPrice, oldGain);
+            PositionState state = currentInvestment.getState();
+            return new TradeResult(TradeResult.Status.UPDATED, currentInvestment.isStock(), currentInvestment.getSymbol(), currentInvestment.getName(),
+                    0, state.getQuantity(), state.getPrice(), state.getBookValue(), 0);
+        }
+        return TradeResult.rejected(TradeResult.Status.NOT_FOUND, Symbol);
+    }
+
+    /**
+     * Applies a batch of buys and sells and returns one result per instruction,
+     * in the order of the instructions.
+     * 
+     * The instructions are grouped by symbol, ignoring case. The trades of a
+     * symbol are applied in their order, in one pass which looks the investment
+     * up once and updates the indexes and the total gain once. Each trade has the
+     * same effect and result as the matching call of buy or sell, and is recorded
+     * in the journal the same way. Trades of different symbols
+     * may be applied in another order than given, so new investments may be
+     * added in another order than by calling buy for each instruction. If an
+     * amount of any trade of a symbol is too large, every trade of that symbol
+     * is rejected with OVERFLOW before it is recorded.
+     * 
+     * @param trades the trades to apply
+     * @return the result of every trade, in the order of the instructions
+     */
+    public List<TradeResult> applyTrades(List<TradeInstruction> trades) {
+        int count = trades.size();
+
+        //Numbering the symbols in the order they first appear
+        HashMap<String, Integer> groupIds = new HashMap<>();
+        int[] groups = new int[count];
+        int[] starts = new int[count + 1];
+        for (int i = 0; i < count; i++) {
+            String key = trades.get(i).getSymbol().toLowerCase();
+            Integer group = groupIds.get(key);
+            if (group == null) {
+                group = groupIds.size();
+                groupIds.put(key, group);
+            }
+            groups[i] = group;
+            starts[group + 1]++;
+        }
+
+        //Sorting the trades by symbol, keeping their order within each symbol
+        int groupCount = groupIds.size();
+        for (int group = 0; group < groupCount; group++) {
+            starts[group + 1] += starts[group];
+        }
+        int[] next = Arrays.copyOf(starts, groupCount);
+        int[] order = new int[count];
+        for (int i = 0; i < count; i++) {
+            order[next[groups[i]]++] = i;
+        }
+
+        TradeResult[] results = new TradeResult[count];
+        for (int group = 0; group < groupCount; group++) {
+            String symbol = trades.get(order[starts[group]]).getSymbol();
+            ReentrantLock symbolLock = lockSymbol(symbol);
+            try {
+                if (tradeGroupFits(trades, order, starts[group], starts[group + 1]) == false) {  //Rejecting the group before it is recorded, since it could never be applied
+                    for (int k = starts[group]; k < starts[group + 1]; k++) {
+                        results[order[k]] = TradeResult.rejected(TradeResult.Status.OVERFLOW, trades.get(order[k]).getSymbol());
+                    }
+                    continue;
+                }
+
+                version.addAndGet(starts[group + 1] - starts[group]);
+                TransactionJournal current = journal;
+                if (current != null) {  //Recording the trades before they are applied, with one sync for the group
+                    try {
+                        long sequence = 0;
+                        for (int k = starts[group]; k < starts[group + 1]; k++) {
+                            TradeInstruction trade = trades.get(order[k]);
+                            if (trade.getSide() == TradeInstruction.Side.BUY) {
+                                sequence = current.appendBuy(trade.getType(), trade.getSymbol(), trade.getName(), trade.getQuantity(), trade.getPrice());
+                            } else {
+                                sequence = current.appendSell(trade.getSymbol(), trade.getQuantity(), trade.getPrice());
+                            }
+                        }
+                        current.sync(sequence);
+                    } catch (IOException e) {
+                        System.err.println("Could not record the trades of " + symbol + " in the journal: " + e.getMessage());
+                        for (int k = starts[group]; k < starts[group + 1]; k++) {
+                            results[order[k]] = TradeResult.rejected(TradeResult.Status.NOT_RECORDED, trades.get(order[k]).getSymbol());
+                        }
+                        continue;
+                    }
+                }
+
+                applyTradeGroup(trades, order, starts[group], starts[group + 1], results);
+            } finally {
+                symbolLock.unlock();
+            }
+        }
+        return Arrays.asList(results);
+    }
+
+    /**
+     * Applies a stream of buys and sells as described in applyTrades(List).
+     * 
+     * @param trades the trades to apply
+     * @return the result of every trade, in the order of the stream
+     */
+    public List<TradeResult> applyTrades(Stream<TradeInstruction> trades) {
+        return applyTrades(trades.toList());
+    }
+
+    /**
+     * Applies the trades of one symbol, given by their positions in the order
+     * array, and stores their results. The state of the investment is carried
+     * from one trade to the next and only written back at the end, or when the
+     * investment is closed. The lock of the symbol must be held; the write lock
+     * of the structure lock is only taken to add or remove the investment and to
+     * index it again at the end.
+     * 
+     * @param trades the trades of the batch
+     * @param order the positions of the trades, sorted by symbol
+     * @param start the first index in order of the trades of the symbol
+     * @param end the index in order after the last trade of the symbol
+     * @param results the results of the batch, by position of the trade
+     */
+    private void applyTradeGroup(List<TradeInstruction> trades, int[] order, int start, int end, TradeResult[] results) {
+        Investment investment = lookUpInvestment(trades.get(order[start]).getSymbol());
+        PositionState state = null;
+        double oldPrice = 0;  //Price and gain under which the investment is indexed
+        long oldGain = 0;
+        if (investment != null) {
+            state = investment.getState();
+            oldPrice = investment.getPrice();
+            oldGain = investment.calculateGainMicros();
+        }
+
+        for (int k = start; k < end; k++) {
+            int index = order[k];
+            TradeInstruction trade = trades.get(index);
+            int quantity = trade.getQuantity();
+            long price = Money.fromDouble(trade.getPrice());
+
+            if (trade.getSide() == TradeInstruction.Side.BUY) {
+                String type = trade.getType();
+
+                if (investment == null) {  //Case where the symbol is not held, so a new investment is created
+                    if (type.equalsIgnoreCase("Stock")) {
+                        investment = new Stock(trade.getSymbol(), trade.getName(), quantity, trade.getPrice());
+                    } else if (type.equalsIgnoreCase("MutualFund")) {
+                        investment = new MutualFund(trade.getSymbol(), trade.getName(), quantity, trade.getPrice());
+                    } else {
+                        results[index] = TradeResult.rejected(TradeResult.Status.UNKNOWN_TYPE, trade.getSymbol());
+                        continue;
+                    }
+                    long stamp = structureLock.writeLock();
+                    try {
+                        addInvestment(investment);
+                    } finally {
+                        structureLock.unlockWrite(stamp);
+                    }
+                    state = investment.getState();  //Keeping the new investment open for the following trades
+                    oldPrice = investment.getPrice();
+                    oldGain = investment.calculateGainMicros();
+                    results[index] = new TradeResult(TradeResult.Status.ADDED, investment.isStock(), investment.getSymbol(), investment.getName(), quantity, state.getQuantity(), state.getPrice(), state.getBookValue(), 0);
+
+                } else if ((type.equalsIgnoreCase("Stock") && !investment.isStock()) || (type.equalsIgnoreCase("MutualFund") && investment.isStock())) {
+                    results[index] = new TradeResult(TradeResult.Status.TYPE_MISMATCH, investment.isStock(), trade.getSymbol(), null, quantity, 0, 0, 0, 0);
+
+                } else {
+                    state = investment.buyState(state, quantity, price);
+                    investment.dirty = true;
+                    results[index] = new TradeResult(TradeResult.Status.BOUGHT, investment.isStock(), investment.getSymbol(), investment.getName(), quantity, state.getQuantity(), state.getPrice(), state.getBookValue(), 0);
+                }
+
+            } else if (investment == null) {
+                results[index] = TradeResult.rejected(TradeResult.Status.NOT_FOUND, trade.getSymbol());
+
+            } else {
+                PositionState sold = investment.sellState(state, quantity, price);
+                investment.dirty = true;
+
+                if (state.getQuantity() == quantity) {  //Case where the whole quantity is sold, so the investment is removed
+                    results[index] = new TradeResult(TradeResult.Status.CLOSED, investment.isStock(), trade.getSymbol(), investment.getName(), quantity, sold.getQuantity(), price, sold.getBookValue(), investment.sellPayment(state, quantity, price));
+                    long stamp = structureLock.writeLock();
+                    try {
+                        removePrice(investment, oldPrice);
+                        totalGain -= oldGain;
+                        investment.setState(sold);
+                        investments.remove(investment);
+                        unindexInvestment(investment);
+                    } finally {
+                        structureLock.unlockWrite(stamp);
+                    }
+                    investment = null;
+                    state = null;
+                } else if (state.getQuantity() > quantity) {
+                    results[index] = new TradeResult(TradeResult.Status.SOLD, investment.isStock(), trade.getSymbol(), investment.getName(), quantity, sold.getQuantity(), price, sold.getBookValue(), investment.sellPayment(state, quantity, price));
+                    state = sold;
+                } else {  //Case where too many units are asked for, which still updates the price
+                    results[index] = new TradeResult(TradeResult.Status.INSUFFICIENT_QUANTITY, investment.isStock(), trade.getSymbol(), investment.getName(), quantity, sold.getQuantity(), price, sold.getBookValue(), 0);
+                    state = sold;
+                }
+            }
+        }
+
+        if (investment != null) {  //Writing the final state back and indexing the investment again
+            generation.incrementAndGet();
+            investment.setState(state);
+            reindexChange(investment, oldPrice, oldGain);
+        }
+    }
+
+    /**
+     * Updates the prices of the investments from a price file, which lists a new
+     * price for each of many symbols, as described in PriceFile.
+     * 
+     * The file is streamed in batches. The symbols of a batch are looked up in the
+     * symbol dictionary while it is parsed, on several threads when parallel is
+     * true, and the prices are then applied in one pass over the batch which finds
+     * every investment through the symbol index. Each price has the same effect
+     * as calling update with the name of the investment, and is recorded in the
+     * journal the same way. Symbols which the portfolio does not hold are
+     * reported and skipped.
+     * 
+     * @param file the price file to read
+     * @param parallel true to parse large files on several threads
+     * @return the number of updated prices, the symbols not held and the invalid records
+     */
+    public PriceImportResult importPrices(File file, boolean parallel) {
+        int[] updated = {0};
+        List<String> unmatched = new ArrayList<>();
+        List<String> errors = new ArrayList<>();
+        PriceFile reader = new PriceFile(symbol -> symbols.getId(symbol), parallel ? ForkJoinPool.commonPool() : null);
+
+        try {
+            reader.read(file, batch -> {
+                errors.addAll(batch.getErrors());
+                lockAllSymbols();
+                try {
+                    //Finding the investment of every record before the prices are recorded
+                    Investment[] targets = new Investment[batch.size()];
+                    int matched = 0;
+                    long stamp = structureLock.readLock();
+                    try {
+                        for (int i = 0; i < batch.size(); i++) {
+                            int symbolId = batch.getId(i);
+                            if (symbolId >= 0 && symbolId < symbolIndex.size()) {
+                                targets[i] = symbolIndex.get(symbolId);
+                            }
+                            if (targets[i] == null) {
+                                unmatched.add(symbolId >= 0 ? symbols.getSymbol(symbolId) : batch.getUnmatchedSymbol(i));
+                            } else if (priceFits(targets[i], batch.getPrice(i)) == false) {  //Skipping a price which could never be applied, before it is recorded
+                                errors.add("The price of " + targets[i].getSymbol() + " is too large to be held, so it was not applied");
+                                targets[i] = null;
+                            } else {
+                                matched++;
+                            }
+                        }
+                    } finally {
+                        structureLock.unlockRead(stamp);
+                    }
+
+                    version.addAndGet(matched);
+                    TransactionJournal current = journal;
+                    if (current != null) {  //Recording the updates before they are applied, with one sync for the batch
+                        try {
+                            long sequence = 0;
+                            for (int i = 0; i < targets.length; i++) {
+                                if (targets[i] != null) {
+                                    sequence = current.appendUpdate(targets[i].getSymbol(), Money.toDouble(batch.getPrice(i)), targets[i].getName());
+                                }
+                            }
+                            current.sync(sequence);
+                        } catch (IOException e) {
+                            errors.add("Could not record " + matched + " prices in the journal, so they were not applied: " + e.getMessage());
+                            return;
+                        }
+                    }
+
+                    stamp = structureLock.writeLock();
+                    try {
+                        for (int i = 0; i < targets.length; i++) {
+                            if (targets[i] != null) {
+                                beforeChange(targets[i]);
+                                targets[i].updatePriceMicros(batch.getPrice(i));
+                                afterChange(targets[i]);
+                            }
+                        }
+                    } finally {
+                        structureLock.unlockWrite(stamp);
+                    }
+                    updated[0] += matched;
+                } finally {
+                    unlockAllSymbols();
+                }
+            });
+        } catch (IOException e) {
+            System.err.println("Could not read price file: " + e.getMessage());
+            errors.add("Could not read price file: " + e.getMessage());
+        }
+        return new PriceImportResult(updated[0], unmatched, errors);
+    }
+
+    /**
+     * Returns the investment with the given symbol, ignoring case, or null if the
+     * portfolio does not hold it.
+     *
+     * @param symbol the symbol of the investment to look for
+     * @return the matching investment, or null if no investment has the symbol
+     */
+    private Investment findInvestment(String symbol) {
+        int symbolId = symbols.getId(symbol);
+        return symbolId >= 0 && symbolId < symbolIndex.size() ? symbolIndex.get(symbolId) : null;
+    }
+
+    /**
+     * Returns the investment with the given symbol as findInvestment does, while
+     * holding the read lock of the structure lock. The lock of the symbol must be
+     * held, so the investment found stays in the portfolio after the read lock is
+     * released: only the holder of that lock adds or removes it.
+     *
+     * @param symbol the symbol of the investment to look for
+     * @return the matching investment, or null if no investment has the symbol
+     */
+    private Investment lookUpInvestment(String symbol) {
+        long stamp = structureLock.readLock();
+        try {
+            return findInvestment(symbol);
+        } finally {
+            structureLock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Indexes the given investment again after its values were changed by the
+     * holder of the lock of its symbol. The investment is moved in the price
+     * index from the price it was indexed under to its current price, and its
+     * old gain in the running total is replaced by its current gain, under the
+     * write lock of the structure lock.
+     *
+     * @param investment the investment which changed
+     * @param oldPrice the price the investment is indexed under
+     * @param oldGain the gain of the investment counted in the running total, in micro-units
+     */
+    private void reindexChange(Investment investment, double oldPrice, long oldGain) {
+        long stamp = structureLock.writeLock();
+        try {
+            removePrice(investment, oldPrice);
+            totalGain -= oldGain;
+            afterChange(investment);
+        } finally {
+            structureLock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Returns whether every amount of a buy or a sale fits in micro-units: the
+     * price, the cost or payment of the trade, and the quantity, book value and
+     * gain held after it. Money throws ArithmeticException for an amount which
+     * does not fit, so trades are checked this way before they are recorded in
+     * the journal, where a trade which fails to apply would fail again on every
+     * replay. The lock of the symbol must be held.
+     *
+     * @param investment the investment with the symbol of the trade, or null if it is not held
+     * @param type the type of investment of a buy, or null for a sale
+     * @param quantity the number of units traded
+     * @param price the price per unit
+     * @return false if an amount of the trade does not fit
+     */
+    private static boolean tradeFits(Investment investment, String type, int quantity, double price) {
+        try {
+            long priceMicros = Money.fromDouble(price);
+            if (investment == null) {
+                if (type != null) {  //Case of a buy adding an investment, which is checked on an investment outside the portfolio
+                    Investment added = type.equalsIgnoreCase("Stock") ? new Stock(null, null, quantity, price) : new MutualFund(null, null, quantity, price);
+                    gainOf(added.isStock(), added.getState());
+                }
+            } else if (type != null) {
+                gainOf(investment.isStock(), investment.buyState(investment.getState(), quantity, priceMicros));
+            } else {
+                PositionState state = investment.getState();
+                investment.sellPayment(state, quantity, priceMicros);
+                gainOf(investment.isStock(), investment.sellState(state, quantity, priceMicros));
+            }
+            return true;
+        } catch (ArithmeticException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Returns whether every amount of the trades of one symbol fits in
+     * micro-units, as tradeFits does for one trade. The trades are followed as
+     * applyTradeGroup applies them, carrying the state from one trade to the
+     * next, without changing the portfolio. The lock of the symbol must be held.
+     *
+     * @param trades the trades of the batch
+     * @param order the positions of the trades, sorted by symbol
+     * @param start the first index in order of the trades of the symbol
+     * @param end the index in order after the last trade of the symbol
+     * @return false if an amount of any of the trades does not fit
+     */
+    private boolean tradeGroupFits(List<TradeInstruction> trades, int[] order, int start, int end) {
+        Investment investment = lookUpInvestment(trades.get(order[start]).getSymbol());
+        PositionState state = investment != null ? investment.getState() : null;
+        try {
+            for (int k = start; k < end; k++) {
+                TradeInstruction trade = trades.get(order[k]);
+                int quantity = trade.getQuantity();
+                long price = Money.fromDouble(trade.getPrice());
+
+                if (trade.getSide() == TradeInstruction.Side.BUY) {
+                    String type = trade.getType();
+                    if (investment == null) {  //Case of a buy adding an investment, which is followed on an investment outside the portfolio
+                        if (type.equalsIgnoreCase("Stock")) {
+                            investment = new Stock(null, null, quantity, trade.getPrice());
+                        } else if (type.equalsIgnoreCase("MutualFund")) {
+                            investment = new MutualFund(null, null, quantity, trade.getPrice());
+                        } else {
+                            continue;
+                        }
+                        state = investment.getState();
+                    } else if (((type.equalsIgnoreCase("Stock") && !investment.isStock()) || (type.equalsIgnoreCase("MutualFund") && investment.isStock())) == false) {  //Leaving out a buy of the other type, which is rejected
+                        state = investment.buyState(state, quantity, price);
+                    }
+                } else if (investment != null) {
+                    investment.sellPayment(state, quantity, price);
+                    PositionState sold = investment.sellState(state, quantity, price);
+                    if (state.getQuantity() == quantity) {  //Case where the investment is closed, so a later buy adds it again
+                        investment = null;
+                        state = null;
+                    } else {
+                        state = sold;
+                    }
+                }
+            }
+            if (investment != null) {
+                gainOf(investment.isStock(), state);
+            }
+            return true;
+        } catch (ArithmeticException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Returns whether the gain of an investment at a new price fits in
+     * micro-units, as described in tradeFits.
+     *
+     * @param investment the investment to update
+     * @param price the new price
+     * @return false if the price or the gain at that price does not fit
+     */
+    private static boolean priceFits(Investment investment, double price) {
+        try {
+            return priceFits(investment, Money.fromDouble(price));
+        } catch (ArithmeticException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Returns whether the gain of an investment at a new price fits in
+     * micro-units, as described in tradeFits.
+     *
+     * @param investment the investment to update
+     * @param price the new price in micro-units
+     * @return false if the gain at that price does not fit
+     */
+    private static boolean priceFits(Investment investment, long price) {
+        try {
+            gainOf(investment.isStock(), investment.getState().withPrice(price));
+            return true;
+        } catch (ArithmeticException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Returns the gain of an investment in the given state.
+     *
+     * @param stock true if the investment is a stock
+     * @param state the state of the investment
+     * @return the gain in micro-units
+     * @throws ArithmeticException if the gain does not fit in a long
+     */
+    private static long gainOf(boolean stock, PositionState state) {
+        if (stock) {
+            return Stock.calculateGain(state.getQuantity(), state.getPrice(), state.getPreviousPrice());
+        }
+        return MutualFund.calculateGain(state.getQuantity(), state.getPrice(), state.getPreviousPrice());
+    }
+
+    /**
+     * Creates the given number of symbol locks.
+     *
+     * @param count the number of locks
+     * @return the new locks
+     */
+    private static ReentrantLock[] createLocks(int count) {
+        ReentrantLock[] locks = new ReentrantLock[count];
+        for (int i = 0; i < count; i++) {
+            locks[i] = new ReentrantLock();
+        }
+        return locks;
+    }
+
+    /**
+     * Locks the stripe of the given symbol, ignoring case, and returns its lock.
+     *
+     * @param symbol the symbol to lock
+     * @return the lock which was taken, to be unlocked by the caller
+     */
+    private ReentrantLock lockSymbol(String symbol) {
+        ReentrantLock lock = symbolLocks[Math.floorMod(symbol.toLowerCase().hashCode(), LOCK_STRIPES)];
+        lock.lock();
+        return lock;
+    }
+
+    /**
+     * Locks every symbol stripe, always in the same order, so that no buy, sell or
+     * update is running until unlockAllSymbols is called. Every operation which was
+     * recorded in the journal has then also been applied.
+     */
+    private void lockAllSymbols() {
+        for (ReentrantLock lock : symbolLocks) {
+            lock.lock();
+        }
+    }
+
+    /**
+     * Unlocks every symbol stripe taken by lockAllSymbols.
+     */
+    private void unlockAllSymbols() {
+        for (int i = symbolLocks.length - 1; i >= 0; i--) {
+            symbolLocks[i].unlock();
+        }
+    }
+
+    /**
+     * Runs the given read of the investments and indexes under the read lock,
+     * so no investment is added, removed or moved in an index while it runs.
+     * Reads walk whole lists and maps, which is only safe while no writer can
+     * change them, so no optimistic read is attempted. The read must not change
+     * anything.
+     *
+     * @param read the read to run
+     * @return the result of the read
+     */
+    private <T> T readConsistently(Supplier<T> read) {
+        long stamp = structureLock.readLock();
+        try {
+            return read.get();
+        } finally {
+            structureLock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Adds the given investment to the end of the investments list and to the
+     * symbol and keyword indexes. If the symbol is already indexed, the first
+     * investment keeps the index entry, matching the order in which the list used
+     * to be searched.
+     *
+     * @param investment the investment to add
+     */
+    private void addInvestment(Investment investment) {
+        investment.id = nextId++;  //Giving the investment the next id so the keyword lists stay sorted
+        investment.symbolId = symbols.intern(investment.getSymbol());
+        investment.symbols = symbols;
+        if (investment.store == null && investment.symbol.equals(symbols.getSymbol(investment.symbolId))) {
+            investment.symbol = symbols.getSymbol(investment.symbolId);  //Sharing one string between all investments with the symbol
+        }
+        if (positionStore != null) {
+            investment.attach(positionStore);
+        }
+        investments.add(investment);
+        while (symbolIndex.size() <= investment.symbolId) {
+            symbolIndex.add(null);
+        }
+        if (symbolIndex.get(investment.symbolId) == null) {
+            symbolIndex.set(investment.symbolId, investment);
+        }
+        afterChange(investment);
+
+        //Appending the investment to the list of every word in its symbol and name
+        for (String word : getKeywords(investment)) {
+            List<Investment> positions = myHashMap.get(word);
+            if (positions == null) {  //Case of a new word, which goes in both indexes
+                positions = new ArrayList<>();
+                myHashMap.put(word, positions);
+                keywordPrefixes.put(word, positions);
+            }
+            if (positions.isEmpty() || positions.get(positions.size() - 1) != investment) {
+                positions.add(investment);
+            }
+        }
+    }
+
+    /**
+     * Removes the given investment from the symbol, price and keyword indexes.
+     * The investments list itself is updated by the sell method of the investment,
+     * and its gain was already taken out of the total by beforeChange. The
+     * investment is detached from the position store last, freeing its slot.
+     *
+     * @param investment the investment to remove
+     */
+    private void unindexInvestment(Investment investment) {
+        pendingSegments.add(SegmentedPortfolioStore.getSegment(investment));  //Rewriting the segment without the investment on the next save
+        if (symbolIndex.get(investment.symbolId) == investment) {
+            symbolIndex.set(investment.symbolId, null);
+        }
+        removePrice(investment);
+
+        for (String word : getKeywords(investment)) {
+            List<Investment> positions = myHashMap.get(word);
+            if (positions == null) {
+                continue;
+            }
+
+            int index = Collections.binarySearch(positions, investment, Comparator.comparingInt(Investment::getId));
+            if (index >= 0) {
+                positions.remove(index);
+            }
+            if (positions.isEmpty()) {  //Dropping words which no longer match any investment
+                myHashMap.remove(word);
+                keywordPrefixes.remove(word);
+            }
+        }
+        investment.detach();
+        generation.incrementAndGet();
+    }
+
+    /**
+     * Adds the given investment to the price index and its gain to the running
+     * total, after it was added or changed. Every call matches an earlier call
+     * of beforeChange, except for investments which are new to the portfolio.
+     *
+     * @param investment the investment which changed
+     */
+    private void afterChange(Investment investment) {
+        addPrice(investment);
+        totalGain += investment.calculateGainMicros();
+        changesSinceRecompute++;
+        generation.incrementAndGet();
+    }
+
+    /**
+     * Removes the given investment from the price index and its gain from the
+     * running total. This has to be called before the investment changes.
+     *
+     * @param investment the investment about to change
+     */
+    private void beforeChange(Investment investment) {
+        removePrice(investment);
+        totalGain -= investment.calculateGainMicros();
+    }
+
+    /**
+     * Adds the given investment to the price index under its current price.
      *
-     * @param number the string to be parsed
-     * @return the parsed integer, or 0 if parsing fails
+     * @param investment the investment to add
      */
-    private int parseToInt(String number) {
-        try {
-            return Integer.parseInt(number.trim());
-        } catch (NumberFormatException e) {
-            return 0;
+    private void addPrice(Investment investment) {
+        priceIndexChanges++;
+        List<Investment> positions = priceIndex.computeIfAbsent(investment.getPrice(), k -> new ArrayList<>());
+        int index = Collections.binarySearch(positions, investment, Comparator.comparingInt(Investment::getId));
+        if (index < 0) {
+            positions.add(-index - 1, investment);  //Inserting at the sorted position
         }
     }
 
     /**
-     * Parses the given string as a double, or returns 0.0 if parsing fails
-     * (for example, if the string does not represent a valid double)
+     * Removes the given investment from the price index. This has to be called
+     * before the price of the investment changes, since the entry is found by
+     * the current price.
      *
-     * @param number the string to be parsed
-     * @return the parsed double, or 0.0 if parsing fails
+     * @param investment the investment to remove
      */
-    private double parseToDouble(String number) {
-        try {
-            return Double.parseDouble(number.trim());
-        } catch (NumberFormatException e) {
-            return 0.0;
-        }
+    private void removePrice(Investment investment) {
+        removePrice(investment, investment.getPrice());
     }
 
-
-
     /**
-     * Buys a specified quantity of an investment at a given price.
-     * If the investment does not exist in the portfolio, a new one is created.
-     * If the investment already exists, the quantity is updated.
-     * 
-     * @param type the type of investment (Stock or MutualFund)
-     * @param symbol the symbol of the investment
-     * @param name the name of the investment
-     * @param quantity the number of units to buy
-     * @param price the price per unit of the investment
-     * @return a string indicating the success of the purchase
+     * Removes the given investment from the price index, where it is listed
+     * under the given price.
+     *
+     * @param investment the investment to remove
+     * @param price the price the investment is listed under
      */
-    public String buy(String type, String symbol, String name, int quantity, double price) { // Made changes
-        Investment currentInvestment = null;
-
-        //Check to see if any investment with the same symbol already exists or not
-        if (type.equalsIgnoreCase("Stock")) {
-            for (int i = 0; i < investments.size(); i++) {
-                if (investments.get(i).getSymbol().equals(symbol) && !investments.get(i).isStock()) {
-                    return "Symbol exists as MutualFund, not as Stock!";
-                }
-            }
-        }else if (type.equalsIgnoreCase("MutualFund")) {
-            for (int i = 0; i < investments.size(); i++) {
-                if (investments.get(i).getSymbol().equals(symbol) && investments.get(i).isStock()) {
-                    return "Symbol exists as Stock, not as MutualFund!";
-                }
-            }
+    private void removePrice(Investment investment, double price) {
+        priceIndexChanges++;
+        List<Investment> positions = priceIndex.get(price);
+        if (positions == null) {
+            return;
         }
 
-        //Looking for the investment in the existing list
-        for (int i = 0; i < investments.size(); i++) {
-            if (investments.get(i).getSymbol().equals(symbol)) {
-                currentInvestment = investments.get(i);
-                break;
-            }
+        int index = Collections.binarySearch(positions, investment, Comparator.comparingInt(Investment::getId));
+        if (index >= 0) {
+            positions.remove(index);
         }
+        if (positions.isEmpty()) {  //Dropping prices which no longer have any investment
+            priceIndex.remove(price);
+        }
+    }
 
-        if (currentInvestment == null) { //If the investment is not found, create a new one based on its type
-
-            if (type.equalsIgnoreCase("Stock")) {
-                currentInvestment = new Stock(symbol, name, quantity, price);
-                investments.add(currentInvestment);
-                return "Following Stock added successfully!" + "\n\n" +
-                        "Symbol: " + currentInvestment.getSymbol() + "\n" +
-                        "Name: " + currentInvestment.getName() + "\n" +
-                        "Quantity: " + currentInvestment.getQuantity() + "\n" +
-                        "Price: " + currentInvestment.getPrice() + "\n";
-
-            } else if (type.equalsIgnoreCase("MutualFund")) {
-                currentInvestment = new MutualFund(symbol, name, quantity, price);
-                investments.add(currentInvestment);
-                return "Following MutualFund added successfully!" + "\n\n" +
-                        "Symbol: " + currentInvestment.getSymbol() + "\n" +
-                        "Name: " + currentInvestment.getName() + "\n" +
-                        "Quantity: " + currentInvestment.getQuantity() + "\n" +
-                        "Price: " + currentInvestment.getPrice() + "\n";
+    /**
+     * Checks whether the price range holds fewer investments than the given
+     * limit. Counting stops as soon as the limit is reached, so a wide range
+     * costs no more than the limit.
+     *
+     * @param range the part of the price index to count
+     * @param limit the number of investments to compare with
+     * @return true if the range holds fewer investments than the limit
+     */
+    private boolean isSmallerThan(NavigableMap<Double, List<Investment>> range, int limit) {
+        int count = 0;
+        for (List<Investment> positions : range.values()) {
+            count += positions.size();
+            if (count >= limit) {
+                return false;
             }
-
-        } else {
-            String message = currentInvestment.buy(quantity, price); // If the investment is found in the existing list, just buy it
-            return message;
         }
-
-        return "";  
+        return true;
     }
 
+    /**
+     * Splits the symbol and name of the given investment into the lower case
+     * words used as keys of the keyword index.
+     *
+     * @param investment the investment to split
+     * @return the words of the symbol and name of the investment
+     */
+    private String[] getKeywords(Investment investment) {
+        return (investment.getSymbol() + " " + investment.getName()).toLowerCase().split("\\s+");
+    }
 
     /**
-     * Sells a specified quantity of an investment at a given price.
-     * Iterates through the investments arraylist to find the investment object
-     * with the given symbol. If the investment is found, the sell method is
-     * called to update the quantity and book value of the investment.
-     * If the investment is not found, an error message is printed.
+     * Returns the total gain from all investments.
      * 
-     * @param symbol the symbol of the investment
-     * @param quantity the number of units to sell
-     * @param price the price per unit of the investment
-     * @return a string indicating the success of the sale
+     * The total is kept up to date by every buy, sell and update, so it is not
+     * computed again here. Gains are whole micro-units, so the running total is
+     * exact; it is still recomputed from every investment once the configured
+     * number of changes was made, which corrects it should an investment ever be
+     * changed without going through the portfolio. The total is read under an
+     * optimistic stamp, so the call does not wait for other threads' operations.
+     * 
+     * @return a string representing the total gain from all investments, in dollars
      */
-    public String sell(String symbol, int quantity, double price) {
-
-        boolean found = false;
-
-        // Iterating through the investments arraylist to find the investment object with the given symbol
-        for (int i = 0; i < investments.size(); i++) {
-            Investment currentInvestment = investments.get(i);
-
-            //Checking if the investment is a stock or a mutual fund and selling it accordingly
-            if (currentInvestment.getSymbol().equalsIgnoreCase(symbol) && currentInvestment instanceof Stock) {
-                String message = ((Stock) currentInvestment).sell(investments, symbol, quantity, price);
-                found = true;
-
-                return message;
-
-            } else if (currentInvestment.getSymbol().equalsIgnoreCase(symbol) && currentInvestment instanceof MutualFund) {
-                String message = ((MutualFund) currentInvestment).sell(investments, symbol, quantity, price);
-                found = true;
-
-                return message;
-            }
+    public String calculateGain() {
+        int interval = gainRecomputeInterval;
+        if (interval > 0 && changesSinceRecompute >= interval) {
+            recomputeGain();
         }
 
-        //Printing error message if the investment was not found
-        if (found == false) {
-            return "No investment found with the symbol: (" + symbol + ")";
+        long stamp = structureLock.tryOptimisticRead();
+        long gain = totalGain;
+        if (structureLock.validate(stamp) == false) {  //Case where a writer changed the total meanwhile
+            stamp = structureLock.readLock();
+            try {
+                gain = totalGain;
+            } finally {
+                structureLock.unlockRead(stamp);
+            }
         }
-
-        return "";
+        return "$" + Money.toString(gain);
     }
 
-
     /**
-     * Updates the price of the investment with the given symbol and name to the given price.
-     * Iterates through the investments arraylist and updates the price for all existing objects
-     * with the given symbol and name.
-     * Returns a string indicating the success of the update and the updated details of the investment.
-     * If the investment is not found, an empty string is returned.
-     *
-     * @param Symbol the symbol of the investment to update
-     * @param price the new price to set for the investment
-     * @param name the name of the investment to update
-     * @return a string indicating the success of the update
+     * Recomputes the running total gain from the gain of every investment.
+     * 
+     * This method iterates through the investments arraylist and calls the `calculateGain` method of each investment.
      */
-    public String update(String Symbol, Double price, String name) {
+    public void recomputeGain() {
+        lockAllSymbols();  //Waiting for the operations whose change is not in the total yet
+        long stamp = structureLock.writeLock();
+        try {
+            if (positionStore != null) {  //Case where the store can scan its own columns
+                totalGain = positionStore.calculateTotalGain();
+                changesSinceRecompute = 0;
+                return;
+            }
 
-        //Iterating through all the investments int the arraylist and update price for all existing objects
-        for (int i = 0; i < investments.size(); i++) {
-            Investment currentInvestment = investments.get(i);
+            long sum = 0;
 
-            if (currentInvestment.getSymbol().equalsIgnoreCase(Symbol) && currentInvestment.getName().equalsIgnoreCase(name)) {
-                currentInvestment.updatePrice(price);
-                return "The following investment price has been updated successfully:" + "\n\n" +
-                        "Symbol: " + currentInvestment.getSymbol() + "\n" +
-                        "Name: " + currentInvestment.getName() + "\n" +
-                        "Price: " + currentInvestment.getPrice() + "\n";
+            // Iterating through the investments arraylist and accumulating total gain
+            for (int i = 0; i < investments.size(); i++) {
+                Investment currentInvestment = investments.get(i);
+                sum = sum + currentInvestment.calculateGainMicros();
             }
 
+            totalGain = sum;
+            changesSinceRecompute = 0;
+        } finally {
+            structureLock.unlockWrite(stamp);
+            unlockAllSymbols();
         }
-        return " ";
     }
 
     /**
-     * Calculates the total gain from all investments.
-     * 
-     * This method iterates through the investments arraylist and calls the `calculateGain` method of each investment.
-     * The sum of all gains is returned as a string.
+     * Sets the number of changes after which calculateGain recomputes the total
+     * gain from every investment. Zero turns the recomputation off.
      * 
-     * @return a string representing the total gain from all investments, in dollars
+     * @param gainRecomputeInterval the number of changes between two recomputations, or 0
      */
-    public String calculateGain() {
-        double sum = 0;
-
-        // Iterating through the investments arraylist and accumulating total gain
-        for (int i = 0; i < investments.size(); i++) {
-            Investment currentInvestment = investments.get(i);
-            sum = sum + currentInvestment.calculateGain();
-        }
-
-        return "$" + sum;
+    public void setGainRecomputeInterval(int gainRecomputeInterval) {
+        this.gainRecomputeInterval = gainRecomputeInterval;
     }
 
     /**
@@ -410,15 +1866,25 @@ public class Portfolio {
      * @return a string array containing the gain for each investment
      */
     public String[] calculateIndividualInvestmentGain() {
+        return readConsistently(this::calculateIndividualInvestmentGainUnlocked);
+    }
+
+    /**
+     * Builds the gain of every investment as described in
+     * calculateIndividualInvestmentGain, without taking any lock.
+     *
+     * @return a string array containing the gain for each investment
+     */
+    private String[] calculateIndividualInvestmentGainUnlocked() {
         String[] result = new String[investments.size()];
 
         //Iterating through the investments arraylist and accumulating total gain
         for (int i = 0; i < investments.size(); i++) {
             Investment currentInvestment = investments.get(i);
-            double sum = currentInvestment.calculateGain();
+            long sum = currentInvestment.calculateGainMicros();
             result[i] = "Symbol: " + currentInvestment.getSymbol() + "\n" +
                     "Name: " + currentInvestment.getName() + "\n" +
-                    "Gain: $" + sum + "\n";
+                    "Gain: $" + Money.toString(sum) + "\n";
         }
 
         return result;
@@ -430,7 +1896,8 @@ public class Portfolio {
      * containing the details of the matching investments. The search criteria includes the symbol
      * of the investment, the price range, and keywords in the name of the investment. If no
      * matching investments are found, a message is displayed indicating that no investments were
-     * found.
+     * found. The matching investments are listed in the order of the portfolio, whichever
+     * index is used to find them.
      * 
      * @param symbol the symbol of the investment to search for
      * @param minPrice the minimum price of the investment
@@ -439,21 +1906,205 @@ public class Portfolio {
      * @return an array of strings containing the details of the matching investments
      */
     public String[] searchOperation(String symbol, String minPrice, String maxPrice, String keywords) {
+        String query = openSearch(symbol, minPrice, maxPrice, keywords).getQueryKey();
+        long searchGeneration = generation.get();
+        String[] result = searchCache.get(query, searchGeneration);
+
+        if (result == null) {
+            result = readConsistently(() -> search(symbol, minPrice, maxPrice, keywords));
+            if (generation.get() == searchGeneration) {  //Caching the result only if nothing changed while it was computed
+                searchCache.put(query, searchGeneration, result);
+            }
+        }
+        return result.clone();  //Keeping the cached array away from the caller
+    }
+
+    /**
+     * Returns the cache of the results of searchOperation, whose statistics
+     * tell how often a search was answered without scanning the portfolio.
+     *
+     * @return the search result cache
+     */
+    public SearchResultCache<String[]> getSearchCache() {
+        return searchCache;
+    }
+
+    /**
+     * Returns the cache of the results of searchInvestments and searchPrefix.
+     *
+     * @return the investment search result cache
+     */
+    public SearchResultCache<List<Investment>> getInvestmentSearchCache() {
+        return investmentSearchCache;
+    }
+
+    /**
+     * Searches for investments with the same criteria as searchOperation, but
+     * returns the matching investments instead of their details, so that a
+     * caller showing them only reads the values it displays. The investments
+     * are the live objects of the portfolio, in the order in which
+     * searchOperation lists them, so their values keep changing with later
+     * operations. Like searchOperation, a search which was run before is
+     * answered from a cache until the portfolio changes.
+     *
+     * @param symbol the symbol of the investment to search for
+     * @param minPrice the minimum price of the investment
+     * @param maxPrice the maximum price of the investment
+     * @param keywords the keywords to search for in the name of the investment
+     * @return the matching investments, which is empty if none match and must not be changed
+     */
+    public List<Investment> searchInvestments(String symbol, String minPrice, String maxPrice, String keywords) {
+        return searchMatches(openSearch(symbol, minPrice, maxPrice, keywords), Integer.MAX_VALUE);
+    }
+
+    /**
+     * Returns the first matches of a prefix search, as openPrefixSearch finds
+     * them, for a caller which shows them while the search is typed. The
+     * investments are the live objects, and a search which was run before is
+     * answered from a cache until the portfolio changes, like searchInvestments.
+     *
+     * @param symbol the start of the symbol of the investment to search for
+     * @param minPrice the minimum price of the investment
+     * @param maxPrice the maximum price of the investment
+     * @param keywords the starts of the words to search for in the name of the investment
+     * @param limit the largest number of matches to return
+     * @return the first matching investments, which must not be changed
+     */
+    public List<Investment> searchPrefix(String symbol, String minPrice, String maxPrice, String keywords, int limit) {
+        return searchMatches(openPrefixSearch(symbol, minPrice, maxPrice, keywords), limit);
+    }
+
+    /**
+     * Reads the first matches of the given cursor, or takes them from the
+     * investment search cache when the same search was run since the last
+     * change of the portfolio. A cached list holds the live investments, which
+     * is safe since any change of them moves the portfolio to a new generation.
+     *
+     * @param cursor the cursor of the search, which was not read yet
+     * @param limit the largest number of matches to return
+     * @return the first matches, in a list which must not be changed
+     */
+    private List<Investment> searchMatches(SearchCursor cursor, int limit) {
+        String query = cursor.getQueryKey() + "\n" + limit;
+        long searchGeneration = generation.get();
+        List<Investment> result = investmentSearchCache.get(query, searchGeneration);
+
+        if (result == null) {
+            result = Collections.unmodifiableList(cursor.nextPage(limit));
+            if (generation.get() == searchGeneration) {  //Caching the result only if nothing changed while it was computed
+                investmentSearchCache.put(query, searchGeneration, result);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns the investments of the portfolio in their order. The list is a
+     * copy, but the investments are the live objects of the portfolio, so their
+     * values keep changing with later operations.
+     *
+     * @return the investments of the portfolio
+     */
+    public List<Investment> getInvestments() {
+        return readConsistently(() -> new ArrayList<>(investments));
+    }
+
+    /**
+     * Runs the search described in searchOperation without taking any lock.
+     *
+     * @param symbol the symbol of the investment to search for
+     * @param minPrice the minimum price of the investment
+     * @param maxPrice the maximum price of the investment
+     * @param keywords the keywords to search for in the name of the investment
+     * @return an array of strings containing the details of the matching investments
+     */
+    private String[] search(String symbol, String minPrice, String maxPrice, String keywords) {
         List<String> resultList = new ArrayList<>(); //Use a List to collect the results
-        myHashMap.clear(); //Clearing the HashMap
 
-        // Iterating through the investments arraylist and adding words to the HashMap
-        for (int i = 0; i < investments.size(); i++) {
+        //Print investment details for every investment matching the given criteria
+        for (Investment currentInvestment : findMatches(symbol, minPrice, maxPrice, keywords)) {
+            resultList.add(currentInvestment.printDetails());
+        }
+
+        if (resultList.isEmpty()) { //Case where no matching investments are found
+            resultList.add("No investments found matching the given criteria.");
+        }
 
-            String symbolAndName = (investments.get(i).getSymbol() + " " + investments.get(i).getName()).toLowerCase(); //Combining symbol and name
-            String[] parts = symbolAndName.split("\\s+"); //Splitting the combined string based on spaces
+        return resultList.toArray(new String[0]);
+    }
 
-            for (int j = 0; j < parts.length; j++) {
-                String part = parts[j];
-                myHashMap.computeIfAbsent(part, k -> new ArrayList<>()).add(i); //Mapping the word to its list of indexes
+    /**
+     * This class holds the keyword lists matching one word of a search: the
+     * list of the word itself, or in a prefix search the lists of every word
+     * starting with it.
+     */
+    private static final class KeywordMatch {
+        private final String word;
+        private final List<List<Investment>> lists;
+        private final int size;  //Total length of the lists
+
+        /**
+         * Constructs a new KeywordMatch for the given word and lists.
+         *
+         * @param word the lower case search word
+         * @param lists the lists of investments of the words matching it
+         */
+        private KeywordMatch(String word, List<List<Investment>> lists) {
+            this.word = word;
+            this.lists = lists;
+            int total = 0;
+            for (List<Investment> positions : lists) {
+                total += positions.size();
             }
+            this.size = total;
         }
+    }
+
+    /**
+     * Opens a cursor over the investments matching the criteria described in
+     * searchOperation. Nothing is searched until the cursor is read, and the
+     * cursor only formats the matches it returns, so showing one page of a broad
+     * search costs about as much as the page itself.
+     *
+     * @param symbol the symbol of the investment to search for
+     * @param minPrice the minimum price of the investment
+     * @param maxPrice the maximum price of the investment
+     * @param keywords the keywords to search for in the name of the investment
+     * @return the cursor, positioned before the first match
+     */
+    public SearchCursor openSearch(String symbol, String minPrice, String maxPrice, String keywords) {
+        return openSearch(symbol, minPrice, maxPrice, keywords, false);
+    }
+
+    /**
+     * Opens a cursor like openSearch, but treats the symbol and every keyword
+     * as the start of a word, so "appl" finds "Apple Inc" while it is being
+     * typed. The symbol matches the start of the symbols, ignoring case, and
+     * every keyword must start a word of the symbol or name. The words starting
+     * with a prefix are read from one range of the sorted keyword index, so a
+     * prefix costs no more than the words it matches.
+     *
+     * @param symbol the start of the symbol of the investment to search for
+     * @param minPrice the minimum price of the investment
+     * @param maxPrice the maximum price of the investment
+     * @param keywords the starts of the words to search for in the name of the investment
+     * @return the cursor, positioned before the first match
+     */
+    public SearchCursor openPrefixSearch(String symbol, String minPrice, String maxPrice, String keywords) {
+        return openSearch(symbol, minPrice, maxPrice, keywords, true);
+    }
 
+    /**
+     * Parses the criteria of a search and opens a cursor over its matches.
+     *
+     * @param symbol the symbol of the investment to search for
+     * @param minPrice the minimum price of the investment
+     * @param maxPrice the maximum price of the investment
+     * @param keywords the keywords to search for in the name of the investment
+     * @param prefix true if the symbol and keywords are the starts of words
+     * @return the cursor, positioned before the first match
+     */
+    private SearchCursor openSearch(String symbol, String minPrice, String maxPrice, String keywords, boolean prefix) {
         //Getting input from the user for the search operation
         String searchSymbol = symbol.trim();
 
@@ -477,62 +2128,293 @@ public class Portfolio {
 
         keywords = keywords.trim();
 
-        List<Integer> filteredIndexes = new ArrayList<>(); //ArrayList for storing filtered indexes
+        boolean priceFiltered = !(lowerPrice == 0.0 && upperPrice == 0.0) && (lowerPrice > 0 || upperPrice < Double.MAX_VALUE);
+        String[] words = keywords.isEmpty() ? new String[0] : keywords.toLowerCase().split("\\s+");
+
+        return new SearchCursor(this, searchSymbol, lowerPrice, upperPrice, priceFiltered, words, prefix);
+    }
+
+    /**
+     * Reads the next matches of a search cursor without blocking the writers.
+     *
+     * @param cursor the cursor being read, which is not changed
+     * @param skip the number of matches to skip first
+     * @param limit the number of matches to return after the skipped ones
+     * @param details true to return the details of the matches instead of the investments
+     * @return the matches and the position following them
+     */
+    SearchCursor.Page readMatches(SearchCursor cursor, int skip, int limit, boolean details) {
+        return readConsistently(() -> scanMatches(cursor, skip, limit, details));
+    }
+
+    /**
+     * Finds the investments matching the criteria described in searchOperation,
+     * without taking any lock.
+     *
+     * @param symbol the symbol of the investment to search for
+     * @param minPrice the minimum price of the investment
+     * @param maxPrice the maximum price of the investment
+     * @param keywords the keywords to search for in the name of the investment
+     * @return the matching investments, in a new list
+     */
+    private List<Investment> findMatches(String symbol, String minPrice, String maxPrice, String keywords) {
+        List<Investment> resultList = new ArrayList<>(); //Use a List to collect the results
+        for (Object row : scanMatches(openSearch(symbol, minPrice, maxPrice, keywords), 0, Integer.MAX_VALUE, false).rows) {
+            resultList.add((Investment) row);
+        }
+        return resultList;
+    }
+
+    /**
+     * Scans the investments following the position of the given cursor for
+     * matches, without taking any lock, and stops as soon as the page is full.
+     * The first scan of a cursor picks the smallest set of candidates: the
+     * symbol, the keywords or the price range. Every set is walked in an order
+     * that lets the next scan resume after the last investment checked.
+     *
+     * @param cursor the cursor being read, which is not changed
+     * @param skip the number of matches to skip first
+     * @param limit the number of matches to return after the skipped ones
+     * @param details true to return the details of the matches instead of the investments
+     * @return the matches and the position following them
+     */
+    private SearchCursor.Page scanMatches(SearchCursor cursor, int skip, int limit, boolean details) {
+        SearchCursor.Page page = new SearchCursor.Page(cursor);
+        if (page.exhausted || (skip == 0 && limit == 0)) {
+            return page;
+        }
+
+        List<String> searchWords = new ArrayList<>(Arrays.asList(cursor.words));
+        if (cursor.prefix && cursor.symbol.isEmpty() == false) {
+            searchWords.add(cursor.symbol.toLowerCase());  //Narrowing the candidates to the words starting like the symbol
+        }
+        List<KeywordMatch> wordMatches = new ArrayList<>(); //Lists of investments for every word
 
-        if (keywords.isEmpty() == false) {
+        //Iterating through the words in order to get the list of investments
+        for (String word : searchWords) {
 
-            String[] words = keywords.toLowerCase().split("\\s+");
-            Set<Integer> matchedIndexes = new HashSet<>(); //Creating a set for storing matched indexes
-            boolean isFirst = true;
+            KeywordMatch match = findKeyword(word, cursor.prefix); // Getting the lists of investments for the word from the keyword indexes
 
-            //Iterating through the words in order to get the list of indexes
-            for (int i = 0; i < words.length; i++) {
+            if (match == null) { //Case where the word is not found, so nothing can match all keywords
+                page.exhausted = true;
+                return page;
+            }
+            wordMatches.add(match);
+        }
+        //Walking the shortest list and looking the investments up in the others
+        wordMatches.sort(Comparator.comparingInt(match -> match.size));
+
+        boolean priceRange = cursor.priceFiltered && cursor.lowerPrice <= cursor.upperPrice;
+        if (page.source == SearchCursor.UNDECIDED) {
+            if (cursor.symbol.isEmpty() == false && cursor.prefix == false) {
+                page.source = SearchCursor.SYMBOL;
+            } else if (priceRange && (wordMatches.isEmpty()
+                    || isSmallerThan(priceIndex.subMap(cursor.lowerPrice, true, cursor.upperPrice, true), countKeywordMatches(wordMatches)))) {
+                //Walking the list in order rather than sorting a range holding a large part of it
+                boolean smallRange = isSmallerThan(priceIndex.subMap(cursor.lowerPrice, true, cursor.upperPrice, true), investments.size() / 4 + 1);
+                page.source = smallRange ? SearchCursor.PRICE : SearchCursor.ALL;
+            } else if (wordMatches.isEmpty() == false) {
+                page.source = SearchCursor.KEYWORDS;
+            } else if (cursor.priceFiltered == false) {
+                //Case where no symbol, price or keywords are provided by the user
+                page.source = SearchCursor.ALL;
+            } else {
+                page.exhausted = true;
+                return page;
+            }
+        }
 
-                String word = words[i];
-                List<Integer> positions = myHashMap.get(word); // Getting the list of indexes for the word from the HashMap
+        int searchSymbolId = cursor.symbol.isEmpty() ? -1 : symbols.getId(cursor.symbol);
 
-                if (positions == null) { //Case where the word is not found
-                    filteredIndexes.clear();
-                    break;
-                } else if (isFirst == true) { //Case where the first valid keyword is found
-                    matchedIndexes.addAll(positions);
-                    isFirst = false;
-                } else { //Case where the first valid keyword is not found
-                    matchedIndexes.retainAll(positions);
+        if (page.source == SearchCursor.SYMBOL) {
+            Investment symbolInvestment = findInvestment(cursor.symbol);
+            if (symbolInvestment != null && symbolInvestment.getId() > page.lastId
+                    && offerMatch(cursor, page, symbolInvestment, searchSymbolId, wordMatches, 0, skip, limit, details)) {
+                return page;
+            }
+        } else if (page.source == SearchCursor.PRICE) {
+            //Putting the investments of the range back in the order of the list, which is the order of their ids,
+            //once per cursor, and again only if the price index changed since the previous page
+            if (page.priceCandidates == null || page.priceChanges != priceIndexChanges) {
+                List<Investment> candidates = new ArrayList<>();
+                for (List<Investment> positions : priceIndex.subMap(cursor.lowerPrice, true, cursor.upperPrice, true).values()) {
+                    for (int i = firstAfter(positions, page.lastId); i < positions.size(); i++) {
+                        candidates.add(positions.get(i));
+                    }
+                }
+                candidates.sort(Comparator.comparingInt(Investment::getId));
+                page.priceCandidates = candidates;
+                page.priceChanges = priceIndexChanges;
+            }
+            List<Investment> candidates = page.priceCandidates;
+            for (int i = firstAfter(candidates, page.lastId); i < candidates.size(); i++) {
+                if (offerMatch(cursor, page, candidates.get(i), searchSymbolId, wordMatches, 0, skip, limit, details)) {
+                    return page;
+                }
+            }
+        } else if (page.source == SearchCursor.KEYWORDS && wordMatches.get(0).lists.size() > 1) {
+            //Merging the lists of every word starting with the prefix in id order
+            List<List<Investment>> lists = wordMatches.get(0).lists;
+            PriorityQueue<int[]> heads = new PriorityQueue<>(Comparator.comparingInt((int[] head) -> lists.get(head[0]).get(head[1]).getId()));
+            for (int i = 0; i < lists.size(); i++) {
+                int first = firstAfter(lists.get(i), page.lastId);
+                if (first < lists.get(i).size()) {
+                    heads.add(new int[] { i, first });
+                }
+            }
+            while (heads.isEmpty() == false) {
+                int[] head = heads.poll();
+                Investment candidate = lists.get(head[0]).get(head[1]);
+                if (candidate.getId() != page.lastId  //Skipping an investment already checked under another word with the prefix
+                        && offerMatch(cursor, page, candidate, searchSymbolId, wordMatches, 1, skip, limit, details)) {
+                    return page;
+                }
+                head[1]++;
+                if (head[1] < lists.get(head[0]).size()) {
+                    heads.add(head);
                 }
             }
-            filteredIndexes.addAll(matchedIndexes); //Adding the matched indexes to the filteredIndexes
-
         } else {
-            //Case where no keywords are provided by the user
-            for (int i = 0; i < investments.size(); i++) {
-                filteredIndexes.add(i);
+            List<Investment> candidates = page.source == SearchCursor.KEYWORDS ? wordMatches.get(0).lists.get(0) : investments;
+            int checkedWords = page.source == SearchCursor.KEYWORDS ? 1 : 0; //The shortest list already matches its word
+            for (int i = firstAfter(candidates, page.lastId); i < candidates.size(); i++) {
+                if (offerMatch(cursor, page, candidates.get(i), searchSymbolId, wordMatches, checkedWords, skip, limit, details)) {
+                    return page;
+                }
             }
         }
 
-        boolean matchFound = false;  //Flag to indicate if a match is found not not
+        page.exhausted = true;
+        return page;
+    }
+
+    /**
+     * Checks a candidate of a scan against the criteria of the cursor, and adds
+     * it to the page if it matches. The position of the page moves past the
+     * candidate either way.
+     *
+     * @param cursor the cursor being read
+     * @param page the page being filled
+     * @param candidate the investment to check
+     * @param searchSymbolId the id of the searched symbol, or -1 if no symbol is searched
+     * @param wordMatches the lists of the keywords, shortest first
+     * @param checkedWords the number of keywords the candidate is known to match
+     * @param skip the number of matches to skip first
+     * @param limit the number of matches to return after the skipped ones
+     * @param details true to add the details of the candidate instead of the candidate
+     * @return true if the page is full
+     */
+    private boolean offerMatch(SearchCursor cursor, SearchCursor.Page page, Investment candidate, int searchSymbolId,
+            List<KeywordMatch> wordMatches, int checkedWords, int skip, int limit, boolean details) {
+        page.lastId = candidate.getId();
+
+        boolean matchesSymbol = cursor.symbol.isEmpty() || (cursor.prefix
+                ? candidate.getSymbol().regionMatches(true, 0, cursor.symbol, 0, cursor.symbol.length())
+                : candidate.getSymbolId() == searchSymbolId); // Checking if the current investment matches the symbol given by the user
+        boolean withinPriceRange = (cursor.lowerPrice == 0.0 && cursor.upperPrice == 0.0) || (candidate.getPrice() >= cursor.lowerPrice && candidate.getPrice() <= cursor.upperPrice); // Checking if the current investment is within the given price range
+        boolean matchesKeywords = true;
+        for (int i = checkedWords; i < wordMatches.size() && matchesKeywords; i++) { // Checking if the current investment contains all keywords
+            matchesKeywords = matchesKeyword(wordMatches.get(i), candidate);
+        }
+
+        //Keep the investment if it matches the given criteria
+        if (matchesSymbol == true && withinPriceRange == true && matchesKeywords == true) {
+            if (page.skipped < skip) {
+                page.skipped++;
+            } else {
+                page.rows.add(details ? candidate.printDetails() : candidate);
+            }
+        }
+        return page.skipped == skip && page.rows.size() >= limit;
+    }
 
-        // Iterating through the filtered indexes to find matching investments
-        for (int i = 0; i < filteredIndexes.size(); i++) {
+    /**
+     * Looks up the lists of investments of a search word in the keyword
+     * indexes.
+     *
+     * @param word the lower case word
+     * @param prefix true to find every word starting with the given one
+     * @return the lists of the word, or null if no investment holds it
+     */
+    private KeywordMatch findKeyword(String word, boolean prefix) {
+        if (prefix == false) {
+            List<Investment> positions = myHashMap.get(word);
+            return positions == null ? null : new KeywordMatch(word, Collections.singletonList(positions));
+        }
 
-            int j = filteredIndexes.get(i);
-            Investment currentInvestment = investments.get(j);
-            boolean matchesSymbol = (searchSymbol.isEmpty() || currentInvestment.getSymbol().equalsIgnoreCase(searchSymbol)); // Checking if the current investment matches the symbol given by the user
-            boolean withinPriceRange = (lowerPrice == 0.0 && upperPrice == 0.0) || (currentInvestment.getPrice() >= lowerPrice && currentInvestment.getPrice() <= upperPrice); // Checking if the current investment is within the given price range
+        Collection<List<Investment>> lists = keywordPrefixes.subMap(word, true, word + Character.MAX_VALUE, false).values();
+        return lists.isEmpty() ? null : new KeywordMatch(word, new ArrayList<>(lists));
+    }
 
-            //Print investment details if it matches the given criteria
-            if (matchesSymbol == true && withinPriceRange == true) {
+    /**
+     * Checks whether the given investment holds a search word. An investment
+     * is looked up in the list of the word by id, and in a prefix search
+     * matching several words its own words are checked instead.
+     *
+     * @param match the lists of the search word
+     * @param investment the investment to check
+     * @return true if the investment holds the word, or a word starting with it
+     */
+    private boolean matchesKeyword(KeywordMatch match, Investment investment) {
+        if (match.lists.size() == 1) {
+            return Collections.binarySearch(match.lists.get(0), investment, Comparator.comparingInt(Investment::getId)) >= 0;
+        }
 
-                resultList.add(currentInvestment.printDetails());
-                matchFound = true;
+        for (String word : getKeywords(investment)) {
+            if (word.startsWith(match.word)) {
+                return true;
             }
         }
+        return false;
+    }
+
+    /**
+     * Counts the investments matching every one of the given search words.
+     * When the shortest word is a prefix of several words, the length of its
+     * lists is returned instead, which counts an investment once per word.
+     *
+     * @param wordMatches the lists of the search words, shortest first
+     * @return the number of investments matching all the words
+     */
+    private int countKeywordMatches(List<KeywordMatch> wordMatches) {
+        KeywordMatch shortest = wordMatches.get(0);
+        if (wordMatches.size() == 1 || shortest.lists.size() > 1) {
+            return shortest.size;
+        }
 
-        if (matchFound == false) { //Case where no matching investments are found
-            resultList.add("No investments found matching the given criteria.");
+        int count = 0;
+        for (Investment investment : shortest.lists.get(0)) {
+            boolean matches = true;
+            for (int i = 1; i < wordMatches.size() && matches; i++) {
+                matches = matchesKeyword(wordMatches.get(i), investment);
+            }
+            if (matches) {
+                count++;
+            }
         }
+        return count;
+    }
 
-        return resultList.toArray(new String[0]);
+    /**
+     * Finds the first investment of a list sorted by id whose id is greater
+     * than the given one.
+     *
+     * @param positions the investments, sorted by id
+     * @param id the id to start after
+     * @return the index of the first investment after the id, or the size of the list if there is none
+     */
+    private static int firstAfter(List<Investment> positions, int id) {
+        int low = 0;
+        int high = positions.size();
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (positions.get(middle).getId() <= id) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
     }
 
 
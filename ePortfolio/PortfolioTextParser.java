@@ -0,0 +1,561 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * This class parses portfolio files in the text format written by
+ * Portfolio.saveInvestments.
+ *
+ * Every record is a block of "Key = value" lines for the Type, Symbol, Name,
+ * Quantity, Price and BookValue of one investment, and records are separated by
+ * blank lines. The parser works directly on the bytes of each line, so no String
+ * is created for a line and no regular expression is used to split it; only the
+ * symbol and name of each investment become Strings. Records which cannot be
+ * parsed are skipped and reported with their line number.
+ */
+public class PortfolioTextParser {
+
+    private static final int BUFFER_SIZE = 1 << 16;  //Size of the buffer the file is read through
+
+    //Bits marking which fields of the current record have been read
+    private static final int TYPE = 1;
+    private static final int SYMBOL = 2;
+    private static final int NAME = 4;
+    private static final int QUANTITY = 8;
+    private static final int PRICE = 16;
+    private static final int BOOK_VALUE = 32;
+    private static final int ALL_FIELDS = 63;
+
+    private static final byte[] JOURNAL_KEY = "Journal".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] TYPE_KEY = "Type".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] SYMBOL_KEY = "Symbol".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] NAME_KEY = "Name".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] QUANTITY_KEY = "Quantity".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] PRICE_KEY = "Price".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] BOOK_VALUE_KEY = "BookValue".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] STOCK_TYPE = "Stock".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] MUTUAL_FUND_TYPE = "MutualFund".getBytes(StandardCharsets.US_ASCII);
+
+    private static final double[] POWERS_OF_TEN = {
+        1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+        1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+
+    private List<Investment> investments = new ArrayList<>();  //Investments parsed so far
+    private List<String> errors = new ArrayList<>();  //Messages for the malformed records
+    private byte[] scratch = new byte[256];  //Reusable buffer for decoding strings
+
+    private int lineNumber = 0;  //Number of the last line parsed
+    private long journalSequence = 0;  //Journal sequence number found in the header, if any
+
+    //State of the record being parsed
+    private int fields = 0;
+    private int recordLine = 0;
+    private boolean skipping = false;
+    private boolean stock;
+    private String symbol;
+    private String name;
+    private int quantity;
+    private double price;
+    private double bookValue;
+
+    //Result of the last call to parseInt or parseDouble
+    private boolean numberValid;
+
+    /**
+     * Returns the investments parsed so far, in the order of the file.
+     *
+     * @return the parsed investments
+     */
+    public List<Investment> getInvestments() {
+        return investments;
+    }
+
+    /**
+     * Returns a message for every malformed record found so far. Each message
+     * starts with the line number of the problem.
+     *
+     * @return the error messages
+     */
+    public List<String> getErrors() {
+        return errors;
+    }
+
+    /**
+     * Returns the sequence number of the last journal entry included in the file,
+     * read from its "# Journal = N" header line, or 0 if the file has no header.
+     *
+     * @return the journal sequence number of the file
+     */
+    public long getJournalSequence() {
+        return journalSequence;
+    }
+
+    /**
+     * Sets the number of the line before the next one to parse. This is used when
+     * a file is parsed in parts, so that errors still report the line number in
+     * the whole file.
+     *
+     * @param lineNumber the number of lines before the next line to parse
+     */
+    public void setLineNumber(int lineNumber) {
+        this.lineNumber = lineNumber;
+    }
+
+    /**
+     * Reads the whole file through a buffered file channel and parses every line.
+     *
+     * @param file the file to read
+     * @throws IOException if the file cannot be read
+     */
+    public void read(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+            boolean endOfFile = false;
+
+            while (endOfFile == false) {
+                if (channel.read(buffer) == -1) {
+                    endOfFile = true;
+                }
+                buffer.flip();
+
+                //Parsing every complete line in the buffer
+                int lineStart = 0;
+                for (int i = 0; i < buffer.limit(); i++) {
+                    if (buffer.get(i) == '\n') {
+                        parseLine(buffer, lineStart, i);
+                        lineStart = i + 1;
+                    }
+                }
+
+                if (endOfFile) {
+                    if (lineStart < buffer.limit()) {  //Case where the last line has no line break
+                        parseLine(buffer, lineStart, buffer.limit());
+                    }
+                } else {
+                    //Moving the incomplete line to the start of the buffer, growing it for very long lines
+                    buffer.position(lineStart);
+                    buffer.compact();
+                    if (buffer.hasRemaining() == false) {
+                        ByteBuffer larger = ByteBuffer.allocate(buffer.capacity() * 2);
+                        buffer.flip();
+                        larger.put(buffer);
+                        buffer = larger;
+                    }
+                }
+            }
+        }
+        finish();
+    }
+
+    /**
+     * Parses every line between the given positions of the buffer. The last line
+     * does not need to end with a line break.
+     *
+     * @param buffer the buffer holding the lines
+     * @param start the position of the first byte to parse
+     * @param end the position after the last byte to parse
+     */
+    public void parse(ByteBuffer buffer, int start, int end) {
+        int lineStart = start;
+        for (int i = start; i < end; i++) {
+            if (buffer.get(i) == '\n') {
+                parseLine(buffer, lineStart, i);
+                lineStart = i + 1;
+            }
+        }
+        if (lineStart < end) {
+            parseLine(buffer, lineStart, end);
+        }
+    }
+
+    /**
+     * Reports the last record if the input ended before it was complete.
+     */
+    public void finish() {
+        if (fields != 0 && skipping == false) {
+            errors.add("Line " + recordLine + ": Incomplete record");
+        }
+        fields = 0;
+        skipping = false;
+    }
+
+    /**
+     * Parses a single line of the file.
+     *
+     * @param buffer the buffer holding the line
+     * @param start the position of the first byte of the line
+     * @param end the position after the last byte of the line, excluding the line break
+     */
+    private void parseLine(ByteBuffer buffer, int start, int end) {
+        lineNumber++;
+
+        //Trimming the spaces and the carriage return around the line
+        start = skipSpaces(buffer, start, end);
+        end = trimSpaces(buffer, start, end);
+
+        if (start == end) {  //Case where a blank line ends the record
+            if (fields != 0 && skipping == false) {
+                errors.add("Line " + recordLine + ": Incomplete record");
+            }
+            fields = 0;
+            skipping = false;
+            return;
+        }
+
+        if (buffer.get(start) == '#') {  //Skipping comment lines, except for the journal header
+            int commentStart = skipSpaces(buffer, start + 1, end);
+            int commentEquals = indexOf(buffer, commentStart, end, (byte) '=');
+            if (commentEquals > 0 && matches(buffer, commentStart, trimSpaces(buffer, commentStart, commentEquals), JOURNAL_KEY, false)) {
+                long sequence = parseLong(buffer, skipSpaces(buffer, commentEquals + 1, end), end);
+                if (numberValid == false || sequence < 0) {
+                    errors.add("Line " + lineNumber + ": Invalid journal sequence");
+                } else {
+                    journalSequence = sequence;
+                }
+            }
+            return;
+        }
+
+        int equals = indexOf(buffer, start, end, (byte) '=');
+        if (equals < 0) {
+            reportError("Line " + lineNumber + ": Expected \"Key = value\"");
+            return;
+        }
+
+        int keyEnd = trimSpaces(buffer, start, equals);
+        int valueStart = skipSpaces(buffer, equals + 1, end);
+
+        if (matches(buffer, start, keyEnd, TYPE_KEY, false)) {
+            if (fields != 0 && skipping == false) {
+                errors.add("Line " + recordLine + ": Incomplete record");
+            }
+            fields = 0;
+            skipping = false;
+            recordLine = lineNumber;
+
+            int typeStart = valueStart + 1;
+            int typeEnd = closingQuote(buffer, valueStart, end);
+            if (typeEnd < 0) {
+                reportError("Line " + lineNumber + ": Type must be quoted");
+            } else if (matches(buffer, typeStart, typeEnd, STOCK_TYPE, true)) {
+                stock = true;
+                fields = TYPE;
+            } else if (matches(buffer, typeStart, typeEnd, MUTUAL_FUND_TYPE, true)) {
+                stock = false;
+                fields = TYPE;
+            } else {
+                reportError("Line " + lineNumber + ": Unknown investment type \"" + decode(buffer, typeStart, typeEnd) + "\"");
+            }
+            return;
+        }
+
+        if (skipping) {  //Ignoring the rest of a malformed record
+            return;
+        }
+        if ((fields & TYPE) == 0) {
+            reportError("Line " + lineNumber + ": Record does not start with a Type");
+            return;
+        }
+
+        if (matches(buffer, start, keyEnd, SYMBOL_KEY, false) || matches(buffer, start, keyEnd, NAME_KEY, false)) {
+            boolean isSymbol = matches(buffer, start, keyEnd, SYMBOL_KEY, false);
+            int textEnd = closingQuote(buffer, valueStart, end);
+            if (textEnd < 0) {
+                reportError("Line " + lineNumber + ": " + (isSymbol ? "Symbol" : "Name") + " must be quoted");
+                return;
+            }
+
+            String text = decode(buffer, valueStart + 1, textEnd);
+            if (isSymbol) {
+                symbol = text;
+                fields |= SYMBOL;
+            } else {
+                name = text;
+                fields |= NAME;
+            }
+        } else if (matches(buffer, start, keyEnd, QUANTITY_KEY, false)) {
+            quantity = parseInt(buffer, valueStart, end);
+            if (numberValid == false) {
+                reportError("Line " + lineNumber + ": Invalid quantity \"" + decode(buffer, valueStart, end) + "\"");
+                return;
+            }
+            fields |= QUANTITY;
+        } else if (matches(buffer, start, keyEnd, PRICE_KEY, false)) {
+            price = parseDouble(buffer, valueStart, end);
+            if (numberValid == false) {
+                reportError("Line " + lineNumber + ": Invalid price \"" + decode(buffer, valueStart, end) + "\"");
+                return;
+            }
+            fields |= PRICE;
+        } else if (matches(buffer, start, keyEnd, BOOK_VALUE_KEY, false)) {
+            bookValue = parseDouble(buffer, valueStart, end);
+            if (numberValid == false) {
+                reportError("Line " + lineNumber + ": Invalid book value \"" + decode(buffer, valueStart, end) + "\"");
+                return;
+            }
+            fields |= BOOK_VALUE;
+        } else {
+            reportError("Line " + lineNumber + ": Unknown key \"" + decode(buffer, start, keyEnd) + "\"");
+            return;
+        }
+
+        if (fields == ALL_FIELDS) {  //Adding the investment once every field has been read
+            fields = 0;
+            try {
+                if (stock) {
+                    investments.add(new Stock(symbol, name, quantity, price, bookValue));
+                } else {
+                    investments.add(new MutualFund(symbol, name, quantity, price, bookValue));
+                }
+            } catch (ArithmeticException e) {
+                reportError("Line " + lineNumber + ": Price or book value too large for " + symbol);
+            }
+        }
+    }
+
+    /**
+     * Records an error and skips the rest of the current record.
+     *
+     * @param message the error message
+     */
+    private void reportError(String message) {
+        errors.add(message);
+        skipping = true;
+    }
+
+    /**
+     * Parses the bytes between the given positions as an integer. Sets
+     * numberValid to false if they are not a valid integer.
+     *
+     * @param buffer the buffer holding the number
+     * @param start the position of the first byte
+     * @param end the position after the last byte
+     * @return the parsed integer, or 0 if it is not valid
+     */
+    private int parseInt(ByteBuffer buffer, int start, int end) {
+        long value = parseLong(buffer, start, end);
+        if (value < Integer.MIN_VALUE || value > Integer.MAX_VALUE) {
+            numberValid = false;
+        }
+        return numberValid ? (int) value : 0;
+    }
+
+    /**
+     * Parses the bytes between the given positions as a long. Sets numberValid
+     * to false if they are not a valid long.
+     *
+     * @param buffer the buffer holding the number
+     * @param start the position of the first byte
+     * @param end the position after the last byte
+     * @return the parsed long, or 0 if it is not valid
+     */
+    private long parseLong(ByteBuffer buffer, int start, int end) {
+        numberValid = false;
+        boolean negative = false;
+        if (start < end && (buffer.get(start) == '-' || buffer.get(start) == '+')) {
+            negative = buffer.get(start) == '-';
+            start++;
+        }
+        if (start == end || end - start > 18) {  //Rejecting empty numbers and numbers which could overflow
+            return 0;
+        }
+
+        long value = 0;
+        for (int i = start; i < end; i++) {
+            int digit = buffer.get(i) - '0';
+            if (digit < 0 || digit > 9) {
+                return 0;
+            }
+            value = value * 10 + digit;
+        }
+
+        numberValid = true;
+        return negative ? -value : value;
+    }
+
+    /**
+     * Parses the bytes between the given positions as a double. Plain decimal
+     * numbers with up to 15 significant digits are parsed directly from the bytes,
+     * which gives the same correctly rounded result as Double.parseDouble; any
+     * other form is handed to Double.parseDouble. Sets numberValid to false if
+     * the bytes are not a valid number.
+     *
+     * @param buffer the buffer holding the number
+     * @param start the position of the first byte
+     * @param end the position after the last byte
+     * @return the parsed double, or 0.0 if it is not valid
+     */
+    private double parseDouble(ByteBuffer buffer, int start, int end) {
+        numberValid = false;
+        int i = start;
+        boolean negative = false;
+        if (i < end && (buffer.get(i) == '-' || buffer.get(i) == '+')) {
+            negative = buffer.get(i) == '-';
+            i++;
+        }
+
+        long mantissa = 0;
+        int digits = 0;
+        int decimals = -1;
+        boolean anyDigit = false;
+        boolean simple = i < end;
+        for (; i < end && simple; i++) {
+            byte b = buffer.get(i);
+            if (b >= '0' && b <= '9') {
+                mantissa = mantissa * 10 + (b - '0');
+                anyDigit = true;
+                if (mantissa != 0) {
+                    digits++;
+                }
+                if (decimals >= 0) {
+                    decimals++;
+                }
+            } else if (b == '.' && decimals < 0) {
+                decimals = 0;
+            } else {
+                simple = false;
+            }
+        }
+
+        if (simple && anyDigit && digits <= 15 && decimals < POWERS_OF_TEN.length) {
+            double value = decimals > 0 ? mantissa / POWERS_OF_TEN[decimals] : mantissa;
+            numberValid = true;
+            return negative ? -value : value;
+        }
+
+        try {
+            double value = Double.parseDouble(decode(buffer, start, end));
+            numberValid = true;
+            return value;
+        } catch (NumberFormatException e) {
+            return 0.0;
+        }
+    }
+
+    /**
+     * Decodes the bytes between the given positions as a UTF-8 string.
+     *
+     * @param buffer the buffer holding the bytes
+     * @param start the position of the first byte
+     * @param end the position after the last byte
+     * @return the decoded string
+     */
+    private String decode(ByteBuffer buffer, int start, int end) {
+        int length = end - start;
+        if (buffer.hasArray()) {
+            return new String(buffer.array(), buffer.arrayOffset() + start, length, StandardCharsets.UTF_8);
+        }
+
+        if (scratch.length < length) {
+            scratch = new byte[Math.max(length, scratch.length * 2)];
+        }
+        for (int i = 0; i < length; i++) {
+            scratch[i] = buffer.get(start + i);
+        }
+        return new String(scratch, 0, length, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Checks whether the bytes between the given positions are the given key.
+     *
+     * @param buffer the buffer holding the bytes
+     * @param start the position of the first byte
+     * @param end the position after the last byte
+     * @param key the ASCII bytes of the key
+     * @param ignoreCase whether to compare ignoring case
+     * @return true if the bytes match the key
+     */
+    private static boolean matches(ByteBuffer buffer, int start, int end, byte[] key, boolean ignoreCase) {
+        if (end - start != key.length) {
+            return false;
+        }
+        for (int i = 0; i < key.length; i++) {
+            byte b = buffer.get(start + i);
+            if (b != key[i] && (ignoreCase == false || (b | 0x20) != (key[i] | 0x20))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the position of the quote closing the quoted value which starts
+     * at the given position.
+     *
+     * @param buffer the buffer holding the value
+     * @param start the position of the opening quote
+     * @param end the position after the last byte of the line
+     * @return the position of the closing quote, or -1 if the value is not quoted
+     */
+    private static int closingQuote(ByteBuffer buffer, int start, int end) {
+        if (start >= end || buffer.get(start) != '"') {
+            return -1;
+        }
+        return indexOf(buffer, start + 1, end, (byte) '"');
+    }
+
+    /**
+     * Returns the position of the first occurrence of the given byte.
+     *
+     * @param buffer the buffer to search
+     * @param start the position to start from
+     * @param end the position to stop at
+     * @param value the byte to look for
+     * @return the position of the byte, or -1 if it is not found
+     */
+    private static int indexOf(ByteBuffer buffer, int start, int end, byte value) {
+        for (int i = start; i < end; i++) {
+            if (buffer.get(i) == value) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the position of the first byte which is not a space or a tab.
+     *
+     * @param buffer the buffer to search
+     * @param start the position to start from
+     * @param end the position to stop at
+     * @return the position of the first other byte, or end if there is none
+     */
+    private static int skipSpaces(ByteBuffer buffer, int start, int end) {
+        while (start < end && isSpace(buffer.get(start))) {
+            start++;
+        }
+        return start;
+    }
+
+    /**
+     * Returns the position after the last byte which is not a space, a tab or a
+     * carriage return.
+     *
+     * @param buffer the buffer to search
+     * @param start the position to stop at
+     * @param end the position after the last byte
+     * @return the position after the last other byte, or start if there is none
+     */
+    private static int trimSpaces(ByteBuffer buffer, int start, int end) {
+        while (end > start && isSpace(buffer.get(end - 1))) {
+            end--;
+        }
+        return end;
+    }
+
+    /**
+     * Checks whether the given byte is a space, a tab or a carriage return.
+     *
+     * @param b the byte to check
+     * @return true if the byte is whitespace
+     */
+    private static boolean isSpace(byte b) {
+        return b == ' ' || b == '\t' || b == '\r';
+    }
+}
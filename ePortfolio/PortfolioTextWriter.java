@@ -0,0 +1,93 @@
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * This class writes portfolios in the text format read by PortfolioTextParser.
+ *
+ * Every investment is written as a block of "Key = value" lines followed by a
+ * blank line. Prices and book values are written with two decimals, rounded the
+ * same way as the "%.2f" format, but each record is built in a reused
+ * StringBuilder instead of going through a Formatter.
+ */
+public class PortfolioTextWriter {
+
+    private static final int BUFFER_SIZE = 1 << 16;  //Size of the buffer the file is written through
+
+    /**
+     * Writes the given investments to the given stream in the text format. The
+     * stream is flushed but not closed. When the journal sequence number is not 0,
+     * it is written first as a "# Journal = N" header line.
+     *
+     * @param stream the stream to write to
+     * @param investments the investments to write
+     * @param journalSequence the sequence number of the last journal entry included, or 0
+     * @throws IOException if the stream cannot be written
+     */
+    public static void write(OutputStream stream, List<Investment> investments, long journalSequence) throws IOException {
+        BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(stream, StandardCharsets.UTF_8), BUFFER_SIZE);
+        StringBuilder record = new StringBuilder(256);
+
+        if (journalSequence != 0) {
+            writer.append("# Journal = ").append(Long.toString(journalSequence)).append("\n\n");
+        }
+
+        //Loop to iterate through whole investments list
+        for (int i = 0; i < investments.size(); i++) {
+            Investment investment = investments.get(i);
+            record.setLength(0);
+
+            record.append("Type = \"").append(investment.isStock() ? "Stock" : "MutualFund").append("\"\n");
+            record.append("Symbol = \"").append(investment.getSymbol()).append("\"\n");
+            record.append("Name = \"").append(investment.getName()).append("\"\n");
+            record.append("Quantity = ").append(investment.getQuantity()).append('\n');
+            record.append("Price = ");
+            appendTwoDecimals(record, investment.getPrice());
+            record.append("\nBookValue = ");
+            appendTwoDecimals(record, investment.getBookValue());
+            record.append("\n\n");
+
+            writer.append(record);
+        }
+        writer.flush();
+    }
+
+    /**
+     * Appends the given value with two decimals, rounding half up like the "%.2f"
+     * format. Values close to a rounding tie, and values too large to scale
+     * exactly, are rounded through BigDecimal so the result matches the format.
+     *
+     * @param builder the builder to append to
+     * @param value the value to append
+     */
+    static void appendTwoDecimals(StringBuilder builder, double value) {
+        double scaled = value * 100;
+        double fraction = Math.abs(scaled - Math.rint(scaled));
+
+        if (Double.isNaN(value) || Double.isInfinite(value) || Math.abs(scaled) >= 1e9 || Math.abs(fraction - 0.5) < 1e-6) {
+            if (Double.isNaN(value) || Double.isInfinite(value)) {
+                builder.append(value);
+            } else {
+                builder.append(BigDecimal.valueOf(value).setScale(2, RoundingMode.HALF_UP).toPlainString());
+            }
+            return;
+        }
+
+        long cents = Math.round(scaled);
+        if (cents < 0 || (cents == 0 && value < 0)) {
+            builder.append('-');
+            cents = -cents;
+        }
+        builder.append(cents / 100).append('.');
+        long remainder = cents % 100;
+        if (remainder < 10) {
+            builder.append('0');
+        }
+        builder.append(remainder);
+    }
+}
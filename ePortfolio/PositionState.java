@@ -0,0 +1,148 @@
+/**
+ * This class holds the quantity, prices and book value of a position at one
+ * moment.
+ *
+ * A PositionState never changes. An investment publishes a new state as a
+ * whole whenever one of its values changes, so a thread reading the state
+ * always sees values which belong together, such as a price and the previous
+ * price it replaced. Amounts are in micro-units, as described in Money.
+ */
+public final class PositionState {
+
+    private final int quantity;
+    private final long price;
+    private final long previousPrice;
+    private final long bookValue;
+
+    /**
+     * Constructs a new PositionState with the given values.
+     *
+     * @param quantity the quantity of the position
+     * @param price the price per unit in micro-units
+     * @param previousPrice the previous price per unit in micro-units
+     * @param bookValue the book value in micro-units
+     */
+    public PositionState(int quantity, long price, long previousPrice, long bookValue) {
+        this.quantity = quantity;
+        this.price = price;
+        this.previousPrice = previousPrice;
+        this.bookValue = bookValue;
+    }
+
+    /**
+     * Returns the quantity of the position.
+     *
+     * @return the quantity of the position
+     */
+    public int getQuantity() {
+        return quantity;
+    }
+
+    /**
+     * Returns the price per unit of the position.
+     *
+     * @return the price in micro-units
+     */
+    public long getPrice() {
+        return price;
+    }
+
+    /**
+     * Returns the price the position had before its last price change.
+     *
+     * @return the previous price in micro-units
+     */
+    public long getPreviousPrice() {
+        return previousPrice;
+    }
+
+    /**
+     * Returns the book value of the position.
+     *
+     * @return the book value in micro-units
+     */
+    public long getBookValue() {
+        return bookValue;
+    }
+
+    /**
+     * Returns a state with the given price, whose previous price is the price
+     * of this state.
+     *
+     * @param newPrice the new price in micro-units
+     * @return the new state
+     */
+    public PositionState withPrice(long newPrice) {
+        return new PositionState(quantity, newPrice, price, bookValue);
+    }
+
+    /**
+     * Returns a state with the given quantity and book value.
+     *
+     * @param newQuantity the new quantity
+     * @param newBookValue the new book value in micro-units
+     * @return the new state
+     */
+    public PositionState withHolding(int newQuantity, long newBookValue) {
+        return new PositionState(newQuantity, price, previousPrice, newBookValue);
+    }
+
+    /**
+     * Returns a state with the given quantity.
+     *
+     * @param newQuantity the new quantity
+     * @return the new state
+     */
+    public PositionState withQuantity(int newQuantity) {
+        return new PositionState(newQuantity, price, previousPrice, bookValue);
+    }
+
+    /**
+     * Returns a state with the given book value.
+     *
+     * @param newBookValue the new book value in micro-units
+     * @return the new state
+     */
+    public PositionState withBookValue(long newBookValue) {
+        return new PositionState(quantity, price, previousPrice, newBookValue);
+    }
+
+    /**
+     * Returns a state with the given previous price.
+     *
+     * @param newPreviousPrice the new previous price in micro-units
+     * @return the new state
+     */
+    public PositionState withPreviousPrice(long newPreviousPrice) {
+        return new PositionState(quantity, price, newPreviousPrice, bookValue);
+    }
+
+    /**
+     * Compares this state with the specified object. Two states are equal when
+     * all their values are equal.
+     *
+     * @param o the object to compare with this state
+     * @return true if the object is a state with the same values
+     */
+    @Override
+    public boolean equals(Object o) {
+        if (o instanceof PositionState) {
+            PositionState other = (PositionState) o;
+            return quantity == other.quantity && price == other.price && previousPrice == other.previousPrice && bookValue == other.bookValue;
+        }
+        return false;
+    }
+
+    /**
+     * Returns a hash code for the state, based on all its values.
+     *
+     * @return the hash code of the state
+     */
+    @Override
+    public int hashCode() {
+        int hash = Integer.hashCode(quantity);
+        hash = 31 * hash + Long.hashCode(price);
+        hash = 31 * hash + Long.hashCode(previousPrice);
+        return 31 * hash + Long.hashCode(bookValue);
+    }
+}
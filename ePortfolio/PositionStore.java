@@ -0,0 +1,110 @@
+/**
+ * An interface for stores holding the values of investments outside of the
+ * Investment objects.
+ *
+ * Every investment attached to a store owns a slot, through which its symbol,
+ * name, quantity and prices are read and written. Prices and book values are
+ * amounts in micro-units, as described in Money. Stores keep the values of all
+ * their slots together, so that scans over every position do not have to visit
+ * each Investment object.
+ *
+ * The values of a slot change together through compareAndSetState, and getState
+ * reads them together, so a reader never sees half of a change. Stores must let
+ * getState run without waiting for writers.
+ */
+public interface PositionStore {
+
+    /**
+     * Reserves a slot for a new position.
+     *
+     * @param stock true if the position is a stock, false if it is a mutual fund
+     * @param symbol the symbol of the position
+     * @param name the name of the position
+     * @param state the initial values of the position
+     * @return the slot of the position
+     */
+    int allocate(boolean stock, String symbol, String name, PositionState state);
+
+    /**
+     * Releases the given slot, which may then be handed out again.
+     *
+     * @param slot the slot to release
+     */
+    void free(int slot);
+
+    /**
+     * Returns the symbol of the position in the given slot.
+     *
+     * @param slot the slot of the position
+     * @return the symbol of the position
+     */
+    String getSymbol(int slot);
+
+    /**
+     * Returns the name of the position in the given slot.
+     *
+     * @param slot the slot of the position
+     * @return the name of the position
+     */
+    String getName(int slot);
+
+    /**
+     * Returns the quantity of the position in the given slot.
+     *
+     * @param slot the slot of the position
+     * @return the quantity of the position
+     */
+    int getQuantity(int slot);
+
+    /**
+     * Returns the price of the position in the given slot.
+     *
+     * @param slot the slot of the position
+     * @return the price of the position in micro-units
+     */
+    long getPrice(int slot);
+
+    /**
+     * Returns the previous price of the position in the given slot.
+     *
+     * @param slot the slot of the position
+     * @return the previous price of the position in micro-units
+     */
+    long getPreviousPrice(int slot);
+
+    /**
+     * Returns the book value of the position in the given slot.
+     *
+     * @param slot the slot of the position
+     * @return the book value of the position in micro-units
+     */
+    long getBookValue(int slot);
+
+    /**
+     * Returns the values of the position in the given slot, all taken at the
+     * same moment.
+     *
+     * @param slot the slot of the position
+     * @return the state of the position
+     */
+    PositionState getState(int slot);
+
+    /**
+     * Replaces the values of the position in the given slot, but only if they
+     * still equal the expected ones.
+     *
+     * @param slot the slot of the position
+     * @param expected the values the position must have
+     * @param state the new values of the position
+     * @return true if the values were replaced, false if they had changed
+     */
+    boolean compareAndSetState(int slot, PositionState expected, PositionState state);
+
+    /**
+     * Calculates the total gain of every position in the store, using the gain
+     * formulas of Stock and MutualFund.
+     *
+     * @return the total gain of the store in micro-units
+     */
+    long calculateTotalGain();
+}
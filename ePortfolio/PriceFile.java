@@ -0,0 +1,580 @@
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.function.Consumer;
+import java.util.function.ToIntFunction;
+
+/**
+ * This class streams the prices of a price file, which maps symbols to new
+ * prices, in batches of parsed records.
+ *
+ * A price file is either a text file with one "symbol,price" line per record,
+ * which may start with a "symbol,price" header line, or a binary file. The
+ * binary file starts with a header holding a magic number, the format version
+ * and the number of records. It is followed by a column of prices in micro-units,
+ * a column holding the end offset of every symbol, and the UTF-8 bytes of the
+ * symbols. The two kinds are told apart by the magic number. Every price must
+ * be positive; a record with a price of zero or less is reported as invalid.
+ *
+ * The file is split into chunks which are memory-mapped and parsed one at a
+ * time, so large files are read with little memory. Every symbol is looked up
+ * while its chunk is parsed, and when a ForkJoinPool is given, several chunks
+ * are parsed and looked up at once. The batches are always handed back on the
+ * calling thread in the order of the file.
+ */
+public class PriceFile {
+
+    /**
+     * The magic number at the start of every binary price file ("EPPF").
+     */
+    public static final int MAGIC = 0x45505046;
+
+    /**
+     * The version of the binary format written by this class.
+     */
+    public static final int VERSION = 1;
+
+    private static final int HEADER_SIZE = 12;  //Magic, version and record count
+    private static final long MIN_PARALLEL_SIZE = 4L << 20;  //Files smaller than this are read on one thread
+    private static final long TEXT_CHUNK_SIZE = 4L << 20;  //Bytes of text parsed per batch
+    private static final int BINARY_CHUNK_RECORDS = 1 << 18;  //Records of a binary file parsed per batch
+    private static final int SCAN_SIZE = 1 << 16;  //Bytes read at a time while looking for a line break
+    private static final byte[] HEADER_SYMBOL = "symbol".getBytes(StandardCharsets.US_ASCII);
+
+    /**
+     * This class holds the records of one chunk of a price file, in the order
+     * of the file.
+     */
+    public static final class Batch {
+
+        private int[] ids;  //Ids of the symbols, or -1 for symbols which could not be looked up
+        private long[] prices;  //Prices in micro-units
+        private String[] unmatched;  //Symbols which could not be looked up, by record
+        private int count = 0;
+        private int lines = 0;  //Line breaks in the chunk, for the line numbers of the next chunk
+        private List<String> errors = new ArrayList<>();
+
+        /**
+         * Constructs an empty batch with room for the given number of records.
+         *
+         * @param capacity the expected number of records
+         */
+        private Batch(int capacity) {
+            ids = new int[Math.max(capacity, 16)];
+            prices = new long[ids.length];
+            unmatched = new String[ids.length];
+        }
+
+        /**
+         * Adds a record to the batch, growing the arrays when they are full.
+         *
+         * @param id the id of the symbol, or -1 if it could not be looked up
+         * @param symbol the symbol of the record
+         * @param price the price in micro-units
+         */
+        private void add(int id, String symbol, long price) {
+            if (count == ids.length) {
+                ids = Arrays.copyOf(ids, count * 2);
+                prices = Arrays.copyOf(prices, count * 2);
+                unmatched = Arrays.copyOf(unmatched, count * 2);
+            }
+            ids[count] = id;
+            prices[count] = price;
+            unmatched[count] = id < 0 ? symbol : null;
+            count++;
+        }
+
+        /**
+         * Returns the number of valid records in the batch.
+         *
+         * @return the number of records
+         */
+        public int size() {
+            return count;
+        }
+
+        /**
+         * Returns the id of the symbol of the given record.
+         *
+         * @param index the index of the record in the batch
+         * @return the id of the symbol, or -1 if the symbol could not be looked up
+         */
+        public int getId(int index) {
+            return ids[index];
+        }
+
+        /**
+         * Returns the symbol of the given record if it could not be looked up.
+         *
+         * @param index the index of the record in the batch
+         * @return the symbol as written in the file, or null if the symbol has an id
+         */
+        public String getUnmatchedSymbol(int index) {
+            return unmatched[index];
+        }
+
+        /**
+         * Returns the new price of the given record.
+         *
+         * @param index the index of the record in the batch
+         * @return the price in micro-units
+         */
+        public long getPrice(int index) {
+            return prices[index];
+        }
+
+        /**
+         * Returns a message for every malformed record of the batch, which is
+         * not included in the records. Each message starts with the line number
+         * of the record, or its index in a binary file.
+         *
+         * @return the error messages
+         */
+        public List<String> getErrors() {
+            return errors;
+        }
+    }
+
+    private final ToIntFunction<String> resolver;
+    private final ForkJoinPool pool;
+
+    /**
+     * Constructs a reader which parses the file on the calling thread.
+     *
+     * @param resolver the function returning the id of a symbol, or -1 if it is unknown
+     */
+    public PriceFile(ToIntFunction<String> resolver) {
+        this(resolver, null);
+    }
+
+    /**
+     * Constructs a reader which parses the chunks of large files on the given pool.
+     * The resolver is called from the threads of the pool, so it must be safe to
+     * call from several threads at once.
+     *
+     * @param resolver the function returning the id of a symbol, or -1 if it is unknown
+     * @param pool the pool to parse the chunks on, or null to parse on the calling thread
+     */
+    public PriceFile(ToIntFunction<String> resolver, ForkJoinPool pool) {
+        this.resolver = resolver;
+        this.pool = pool;
+    }
+
+    /**
+     * Writes the given prices to the given stream in the binary format. The
+     * stream is flushed but not closed.
+     *
+     * @param stream the stream to write to
+     * @param symbols the symbols of the records
+     * @param prices the prices of the records in micro-units, in the order of the symbols
+     * @throws IOException if the stream cannot be written
+     */
+    public static void write(OutputStream stream, List<String> symbols, long[] prices) throws IOException {
+        int count = symbols.size();
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream, 1 << 16));
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(count);
+
+        for (int i = 0; i < count; i++) {
+            out.writeLong(prices[i]);
+        }
+
+        //Writing the end offset of every symbol followed by the bytes
+        byte[][] encoded = new byte[count][];
+        int offset = 0;
+        for (int i = 0; i < count; i++) {
+            encoded[i] = symbols.get(i).getBytes(StandardCharsets.UTF_8);
+            offset += encoded[i].length;
+            out.writeInt(offset);
+        }
+        for (int i = 0; i < count; i++) {
+            out.write(encoded[i]);
+        }
+        out.flush();
+    }
+
+    /**
+     * Reads the whole file and hands every batch of records to the consumer, in
+     * the order of the file. The consumer is called on the calling thread, and
+     * only a few batches are held in memory at once.
+     *
+     * @param file the file to read
+     * @param consumer the consumer of the batches
+     * @throws IOException if the file cannot be read or is not a valid binary price file
+     */
+    public void read(File file, Consumer<Batch> consumer) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long size = channel.size();
+            boolean parallel = pool != null && pool.getParallelism() > 1 && size >= MIN_PARALLEL_SIZE;
+            int window = parallel ? pool.getParallelism() * 2 : 1;  //Chunks parsed ahead of the consumer
+            ArrayDeque<ForkJoinTask<Batch>> pending = new ArrayDeque<>();
+            int firstLine = 0;
+
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            channel.read(header, 0);
+            if (header.position() >= 4 && header.getInt(0) == MAGIC) {
+                if (header.position() < HEADER_SIZE) {
+                    throw new IOException("Truncated binary price file: " + file);
+                }
+                if (header.getInt(4) != VERSION) {
+                    throw new IOException("Unsupported binary price file version: " + header.getInt(4));
+                }
+                int count = header.getInt(8);
+                if (count < 0 || HEADER_SIZE + count * 12L > size) {
+                    throw new IOException("Truncated binary price file: " + file);
+                }
+
+                for (int first = 0; first < count; first += BINARY_CHUNK_RECORDS) {
+                    int start = first;
+                    int end = Math.min(count, first + BINARY_CHUNK_RECORDS);
+                    submit(pending, () -> parseBinary(channel, count, start, end), parallel);
+                    if (pending.size() >= window) {
+                        consumer.accept(join(pending.poll()));
+                    }
+                }
+                while (pending.isEmpty() == false) {
+                    consumer.accept(join(pending.poll()));
+                }
+                return;
+            }
+
+            long start = 0;
+            while (start < size || pending.isEmpty() == false) {
+                if (start < size) {
+                    long chunkStart = start;
+                    long chunkEnd = findLineStart(channel, start + TEXT_CHUNK_SIZE, size);
+                    if (chunkEnd - chunkStart > Integer.MAX_VALUE) {
+                        throw new IOException("Line too large to map near offset " + chunkStart);
+                    }
+                    submit(pending, () -> parseText(channel, chunkStart, chunkEnd), parallel);
+                    start = chunkEnd;
+                }
+
+                if (pending.size() >= window || start >= size) {
+                    //Numbering the errors now that the lines of the earlier chunks are known
+                    Batch batch = join(pending.poll());
+                    List<String> errors = new ArrayList<>(batch.errors.size());
+                    for (String error : batch.errors) {
+                        int colon = error.indexOf(':');
+                        errors.add("Line " + (firstLine + Integer.parseInt(error.substring(0, colon))) + error.substring(colon));
+                    }
+                    batch.errors = errors;
+                    firstLine += batch.lines;
+                    consumer.accept(batch);
+                }
+            }
+        }
+    }
+
+    /**
+     * Starts parsing a chunk, on the pool when reading in parallel and on the
+     * calling thread otherwise.
+     *
+     * @param pending the chunks being parsed, in the order of the file
+     * @param parse the parsing of the chunk
+     * @param parallel true to parse the chunk on the pool
+     */
+    private void submit(ArrayDeque<ForkJoinTask<Batch>> pending, Callable<Batch> parse, boolean parallel) {
+        ForkJoinTask<Batch> task = ForkJoinTask.adapt(parse);
+        if (parallel) {
+            pool.execute(task);
+        } else {
+            task.quietlyInvoke();  //Keeping a failure in the task, so join reports it the same way
+        }
+        pending.add(task);
+    }
+
+    /**
+     * Parses the given range of records of a binary price file.
+     *
+     * @param channel the channel of the file
+     * @param count the number of records in the file
+     * @param start the index of the first record to parse
+     * @param end the index after the last record to parse
+     * @return the parsed records
+     * @throws IOException if the file cannot be read or the symbol offsets are invalid
+     */
+    private Batch parseBinary(FileChannel channel, int count, int start, int end) throws IOException {
+        int records = end - start;
+        Batch batch = new Batch(records);
+
+        //Reading the prices of the range and the offsets of its symbols, including the end of the symbol before
+        long[] prices = new long[records];
+        channel.map(FileChannel.MapMode.READ_ONLY, HEADER_SIZE + start * 8L, records * 8L).asLongBuffer().get(prices);
+        int[] endOffsets = new int[records + 1];
+        long offsetsStart = HEADER_SIZE + count * 8L;
+        if (start > 0) {
+            channel.map(FileChannel.MapMode.READ_ONLY, offsetsStart + (start - 1) * 4L, (records + 1) * 4L).asIntBuffer().get(endOffsets);
+        } else {
+            channel.map(FileChannel.MapMode.READ_ONLY, offsetsStart, records * 4L).asIntBuffer().get(endOffsets, 1, records);
+        }
+
+        long bytesStart = offsetsStart + count * 4L;
+        if (endOffsets[0] < 0 || endOffsets[records] < endOffsets[0] || bytesStart + endOffsets[records] > channel.size()) {
+            throw new IOException("Invalid symbol offsets for records " + start + " to " + end);
+        }
+        byte[] bytes = new byte[endOffsets[records] - endOffsets[0]];
+        channel.map(FileChannel.MapMode.READ_ONLY, bytesStart + endOffsets[0], bytes.length).get(bytes);
+
+        for (int i = 0; i < records; i++) {
+            if (endOffsets[i + 1] < endOffsets[i]) {
+                throw new IOException("Invalid symbol offset for record " + (start + i));
+            }
+            String symbol = new String(bytes, endOffsets[i] - endOffsets[0], endOffsets[i + 1] - endOffsets[i], StandardCharsets.UTF_8);
+            if (symbol.isEmpty() || prices[i] <= 0) {
+                batch.errors.add("Record " + (start + i) + ": " + (symbol.isEmpty() ? "Missing symbol" : "Invalid price for " + symbol));
+                continue;
+            }
+            batch.add(resolver.applyAsInt(symbol), symbol, prices[i]);
+        }
+        return batch;
+    }
+
+    /**
+     * Parses the lines between the given offsets of a text price file. The
+     * errors of the batch start with the line number within the chunk, which
+     * read turns into the line number within the file.
+     *
+     * @param channel the channel of the file
+     * @param start the offset of the first line of the chunk
+     * @param end the offset after the last line of the chunk
+     * @return the parsed records
+     * @throws IOException if the file cannot be read
+     */
+    private Batch parseText(FileChannel channel, long start, long end) throws IOException {
+        MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, start, end - start);
+        int limit = buffer.limit();
+        Batch batch = new Batch(limit / 16);
+
+        int lineStart = 0;
+        while (lineStart < limit) {
+            int lineEnd = lineStart;
+            while (lineEnd < limit && buffer.get(lineEnd) != '\n') {
+                lineEnd++;
+            }
+            batch.lines++;
+            parseLine(buffer, lineStart, lineEnd, batch, start == 0 && batch.lines == 1);
+            lineStart = lineEnd + 1;
+        }
+        return batch;
+    }
+
+    /**
+     * Parses a single "symbol,price" line and adds its record to the batch.
+     *
+     * @param buffer the buffer holding the line
+     * @param start the position of the first byte of the line
+     * @param end the position after the last byte of the line, excluding the line break
+     * @param batch the batch to add the record to
+     * @param firstLine true if the line is the first of the file, which may be a header
+     */
+    private void parseLine(ByteBuffer buffer, int start, int end, Batch batch, boolean firstLine) {
+        start = skipSpaces(buffer, start, end);
+        end = trimSpaces(buffer, start, end);
+        if (start == end) {  //Skipping blank lines
+            return;
+        }
+
+        int comma = start;
+        while (comma < end && buffer.get(comma) != ',') {
+            comma++;
+        }
+        if (comma == end) {
+            batch.errors.add(batch.lines + ": Expected \"symbol,price\"");
+            return;
+        }
+
+        int symbolEnd = trimSpaces(buffer, start, comma);
+        int priceStart = skipSpaces(buffer, comma + 1, end);
+        if (firstLine && isHeader(buffer, start, symbolEnd)) {  //Skipping the "symbol,price" header
+            return;
+        }
+
+        byte[] bytes = new byte[symbolEnd - start];
+        buffer.get(start, bytes);
+        String symbol = new String(bytes, StandardCharsets.UTF_8);
+        long price = parsePrice(buffer, priceStart, end);
+        if (symbol.isEmpty()) {
+            batch.errors.add(batch.lines + ": Missing symbol");
+        } else if (price < 0) {
+            batch.errors.add(batch.lines + ": Invalid price for " + symbol);
+        } else {
+            batch.add(resolver.applyAsInt(symbol), symbol, price);
+        }
+    }
+
+    /**
+     * Parses the bytes between the given positions as a price. Decimal numbers
+     * with up to six decimals are converted to micro-units exactly; any other
+     * form is handed to Double.parseDouble and rounded with Money.fromDouble.
+     * A price of zero, or one which rounds to zero micro-units, is not valid,
+     * since no investment can be priced at nothing.
+     *
+     * @param buffer the buffer holding the price
+     * @param start the position of the first byte
+     * @param end the position after the last byte
+     * @return the price in micro-units, or -1 if it is not a valid positive price
+     */
+    private static long parsePrice(ByteBuffer buffer, int start, int end) {
+        long micros = 0;
+        int decimals = -1;
+        int i = start;
+        for (; i < end && end - start <= 18; i++) {
+            byte b = buffer.get(i);
+            if (b >= '0' && b <= '9' && decimals < 6) {
+                micros = micros * 10 + (b - '0');
+                if (decimals >= 0) {
+                    decimals++;
+                }
+            } else if (b == '.' && decimals < 0) {
+                decimals = 0;
+            } else {
+                break;
+            }
+        }
+
+        if (i == end && end - start > (decimals >= 0 ? 1 : 0)) {  //Case where the price is a plain decimal number
+            for (int d = Math.max(decimals, 0); d < 6; d++) {
+                if (micros > Long.MAX_VALUE / 10) {  //Case where the price does not fit in micro-units
+                    return -1;
+                }
+                micros *= 10;
+            }
+            return micros > 0 ? micros : -1;
+        }
+
+        byte[] bytes = new byte[end - start];
+        buffer.get(start, bytes);
+        try {
+            double price = Double.parseDouble(new String(bytes, StandardCharsets.US_ASCII));
+            micros = price > 0 && Double.isFinite(price) ? Money.fromDouble(price) : -1;
+            return micros > 0 ? micros : -1;
+        } catch (NumberFormatException | ArithmeticException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Checks whether the bytes between the given positions spell "symbol",
+     * ignoring case.
+     *
+     * @param buffer the buffer holding the text
+     * @param start the position of the first byte
+     * @param end the position after the last byte
+     * @return true if the text is "symbol"
+     */
+    private static boolean isHeader(ByteBuffer buffer, int start, int end) {
+        if (end - start != HEADER_SYMBOL.length) {
+            return false;
+        }
+        for (int i = 0; i < HEADER_SYMBOL.length; i++) {
+            if (Character.toLowerCase(buffer.get(start + i)) != HEADER_SYMBOL[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the position of the first byte at or after start which is not a
+     * space, tab or carriage return.
+     *
+     * @param buffer the buffer to scan
+     * @param start the position to start from
+     * @param end the position to stop at
+     * @return the position of the first other byte, or end
+     */
+    private static int skipSpaces(ByteBuffer buffer, int start, int end) {
+        while (start < end && (buffer.get(start) == ' ' || buffer.get(start) == '\t' || buffer.get(start) == '\r')) {
+            start++;
+        }
+        return start;
+    }
+
+    /**
+     * Returns the position after the last byte before end which is not a space,
+     * tab or carriage return.
+     *
+     * @param buffer the buffer to scan
+     * @param start the position to stop at
+     * @param end the position after the bytes to trim
+     * @return the position after the last other byte, or start
+     */
+    private static int trimSpaces(ByteBuffer buffer, int start, int end) {
+        while (end > start && (buffer.get(end - 1) == ' ' || buffer.get(end - 1) == '\t' || buffer.get(end - 1) == '\r')) {
+            end--;
+        }
+        return end;
+    }
+
+    /**
+     * Returns the offset after the first line break at or after the given offset.
+     *
+     * @param channel the channel of the file
+     * @param from the offset to start looking from
+     * @param size the size of the file
+     * @return the offset of the next line, or the size of the file if there is none
+     * @throws IOException if the file cannot be read
+     */
+    private static long findLineStart(FileChannel channel, long from, long size) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(SCAN_SIZE);
+        long position = from;
+
+        while (position < size) {
+            buffer.clear();
+            int read = channel.read(buffer, position);
+            if (read <= 0) {
+                break;
+            }
+            for (int i = 0; i < read; i++) {
+                if (buffer.get(i) == '\n') {
+                    return position + i + 1;
+                }
+            }
+            position += read;
+        }
+        return size;
+    }
+
+    /**
+     * Waits for the given task and returns its result, passing on an IOException
+     * thrown by the task.
+     *
+     * @param task the task to wait for
+     * @return the result of the task
+     * @throws IOException if the task failed to read the file
+     */
+    private static Batch join(ForkJoinTask<Batch> task) throws IOException {
+        try {
+            return task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while reading prices", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            while (cause instanceof RuntimeException && cause.getCause() != null) {  //Unwrapping the exception of the Callable
+                cause = cause.getCause();
+            }
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+}
@@ -0,0 +1,68 @@
+import java.util.List;
+
+/**
+ * This class holds the outcome of Portfolio.importPrices.
+ *
+ * It counts the investments whose price was updated and lists the symbols of
+ * the file which the portfolio does not hold, along with the records of the
+ * file which could not be read.
+ */
+public final class PriceImportResult {
+
+    private final int updated;
+    private final List<String> unmatched;
+    private final List<String> errors;
+
+    /**
+     * Constructs a new PriceImportResult with the given values.
+     *
+     * @param updated the number of prices applied to investments
+     * @param unmatched the symbols of the file which are not held, in the order of the file
+     * @param errors a message for every record which could not be read
+     */
+    public PriceImportResult(int updated, List<String> unmatched, List<String> errors) {
+        this.updated = updated;
+        this.unmatched = unmatched;
+        this.errors = errors;
+    }
+
+    /**
+     * Returns the number of prices applied to investments. A symbol listed
+     * several times in the file is counted every time.
+     *
+     * @return the number of updated prices
+     */
+    public int getUpdated() {
+        return updated;
+    }
+
+    /**
+     * Returns the symbols of the file which the portfolio does not hold.
+     *
+     * @return the unmatched symbols, in the order of the file
+     */
+    public List<String> getUnmatched() {
+        return unmatched;
+    }
+
+    /**
+     * Returns a message for every record of the file which could not be read.
+     * Each message starts with the line number of the record, or its index in a
+     * binary file.
+     *
+     * @return the error messages
+     */
+    public List<String> getErrors() {
+        return errors;
+    }
+
+    /**
+     * Returns a one line summary of the import.
+     *
+     * @return the number of updated prices, unmatched symbols and errors
+     */
+    @Override
+    public String toString() {
+        return updated + " prices updated, " + unmatched.size() + " symbols not held, " + errors.size() + " errors";
+    }
+}
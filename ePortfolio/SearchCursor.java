@@ -0,0 +1,238 @@
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.TreeSet;
+
+/**
+ * This class reads the results of a portfolio search a page at a time.
+ *
+ * A cursor is opened by Portfolio.openSearch and does not search anything until
+ * it is read. Every read resumes the scan of the portfolio where the previous one
+ * stopped and stops as soon as it has the matches it asked for, so reading the
+ * first page of a broad search only checks the investments up to the last match
+ * of that page, and only the matches actually read are formatted.
+ *
+ * The matches are returned in the order of the investments list, like
+ * searchOperation lists them. No lock is held between two reads, so the portfolio
+ * may change in between. The scan resumes after the last investment it checked:
+ * investments bought later are still found, sold ones are not, and no investment
+ * is returned twice. A cursor is meant to be used by one thread at a time.
+ */
+public class SearchCursor implements Iterator<Investment> {
+
+    /**
+     * The scan has not chosen its candidates yet.
+     */
+    static final int UNDECIDED = 0;
+
+    /**
+     * The scan checks the investment holding the searched symbol.
+     */
+    static final int SYMBOL = 1;
+
+    /**
+     * The scan reads the price index over the searched range and sorts the
+     * investments found back into the order of the list. The sorted range is
+     * kept by the cursor and read again only after the price index changed.
+     */
+    static final int PRICE = 2;
+
+    /**
+     * The scan walks the shortest list of the keyword index.
+     */
+    static final int KEYWORDS = 3;
+
+    /**
+     * The scan walks every investment of the portfolio.
+     */
+    static final int ALL = 4;
+
+    private static final int BUFFER_SIZE = 64;  //Matches read ahead by hasNext
+
+    /**
+     * This class holds the matches found by one read of the cursor, along with
+     * the position where the next read resumes. The portfolio fills it and the
+     * cursor only takes it over once the read is known to be consistent.
+     */
+    static final class Page {
+        int source;
+        int lastId;
+        boolean exhausted;
+        int skipped = 0;
+        List<Investment> priceCandidates;
+        long priceChanges;
+        final List<Object> rows = new ArrayList<>();
+
+        /**
+         * Constructs a new empty Page starting at the position of the given cursor.
+         *
+         * @param cursor the cursor being read
+         */
+        Page(SearchCursor cursor) {
+            this.source = cursor.source;
+            this.lastId = cursor.lastId;
+            this.exhausted = cursor.exhausted;
+            this.priceCandidates = cursor.priceCandidates;
+            this.priceChanges = cursor.priceChanges;
+        }
+    }
+
+    final String symbol;
+    final double lowerPrice;
+    final double upperPrice;
+    final boolean priceFiltered;
+    final String[] words;
+    final boolean prefix;
+
+    private final Portfolio portfolio;
+    private int source = UNDECIDED;
+    private int lastId = -1;  //Id of the last investment checked
+    private boolean exhausted = false;
+    private List<Investment> priceCandidates = null;  //Investments of the price range sorted by id, for the PRICE scan
+    private long priceChanges;  //Changes of the price index when the range was sorted
+    private final ArrayDeque<Investment> buffer = new ArrayDeque<>();
+
+    /**
+     * Constructs a new SearchCursor over the given portfolio with parsed criteria.
+     *
+     * @param portfolio the portfolio to search
+     * @param symbol the trimmed symbol to search for, or an empty string
+     * @param lowerPrice the lowest price of the range
+     * @param upperPrice the highest price of the range
+     * @param priceFiltered true if the price range limits the results
+     * @param words the lower case keywords to search for
+     * @param prefix true if the symbol and keywords are the starts of words
+     */
+    SearchCursor(Portfolio portfolio, String symbol, double lowerPrice, double upperPrice, boolean priceFiltered, String[] words, boolean prefix) {
+        this.portfolio = portfolio;
+        this.symbol = symbol;
+        this.lowerPrice = lowerPrice;
+        this.upperPrice = upperPrice;
+        this.priceFiltered = priceFiltered;
+        this.words = words;
+        this.prefix = prefix;
+    }
+
+    /**
+     * Returns the criteria of the cursor in a normalized form: two searches
+     * with the same key find the same investments in the same order. Keywords
+     * are sorted and repeated ones are dropped, since the order of the keywords
+     * does not change the results.
+     *
+     * @return the key of the search
+     */
+    String getQueryKey() {
+        TreeSet<String> sortedWords = new TreeSet<>(Arrays.asList(words));
+        return (prefix ? "prefix" : "exact") + "\n" + symbol + "\n" + lowerPrice + "\n" + upperPrice + "\n" + String.join(" ", sortedWords);
+    }
+
+    /**
+     * Skips the given number of matches without formatting them, which is how
+     * a page other than the first one is reached.
+     *
+     * @param count the number of matches to skip
+     * @return the number of matches skipped, which is smaller than count only at the end of the results
+     */
+    public int skip(int count) {
+        int skipped = 0;
+        while (skipped < count && buffer.isEmpty() == false) {
+            buffer.poll();
+            skipped++;
+        }
+        if (skipped < count && exhausted == false) {
+            skipped += read(count - skipped, 0, false).skipped;
+        }
+        return skipped;
+    }
+
+    /**
+     * Returns the next matching investments. The investments are the live
+     * objects of the portfolio.
+     *
+     * @param limit the largest number of investments to return
+     * @return the next matches, which hold fewer than limit investments only at the end of the results
+     */
+    public List<Investment> nextPage(int limit) {
+        List<Investment> page = new ArrayList<>();
+        while (page.size() < limit && buffer.isEmpty() == false) {
+            page.add(buffer.poll());
+        }
+        if (page.size() < limit && exhausted == false) {
+            for (Object row : read(0, limit - page.size(), false).rows) {
+                page.add((Investment) row);
+            }
+        }
+        return page;
+    }
+
+    /**
+     * Returns the details of the next matching investments, as searchOperation
+     * formats them. Only the returned investments are formatted.
+     *
+     * @param limit the largest number of investments to return
+     * @return the details of the next matches, which hold fewer than limit entries only at the end of the results
+     */
+    public String[] nextDetails(int limit) {
+        List<String> page = new ArrayList<>();
+        while (page.size() < limit && buffer.isEmpty() == false) {
+            page.add(buffer.poll().printDetails());
+        }
+        if (page.size() < limit && exhausted == false) {
+            for (Object row : read(0, limit - page.size(), true).rows) {
+                page.add((String) row);
+            }
+        }
+        return page.toArray(new String[0]);
+    }
+
+    /**
+     * Returns whether another investment matches. This may read a few matches
+     * ahead of the ones returned so far.
+     *
+     * @return true if next returns an investment
+     */
+    @Override
+    public boolean hasNext() {
+        if (buffer.isEmpty() && exhausted == false) {
+            for (Object row : read(0, BUFFER_SIZE, false).rows) {
+                buffer.add((Investment) row);
+            }
+        }
+        return buffer.isEmpty() == false;
+    }
+
+    /**
+     * Returns the next matching investment.
+     *
+     * @return the next match
+     * @throws NoSuchElementException if no other investment matches
+     */
+    @Override
+    public Investment next() {
+        if (hasNext() == false) {
+            throw new NoSuchElementException();
+        }
+        return buffer.poll();
+    }
+
+    /**
+     * Reads the next matches from the portfolio and moves the cursor past them.
+     *
+     * @param skip the number of matches to skip first
+     * @param limit the number of matches to return after the skipped ones
+     * @param details true to return the details of the matches instead of the investments
+     * @return the page read
+     */
+    private Page read(int skip, int limit, boolean details) {
+        Page page = portfolio.readMatches(this, skip, limit, details);
+        source = page.source;
+        lastId = page.lastId;
+        exhausted = page.exhausted;
+        priceCandidates = page.priceCandidates;
+        priceChanges = page.priceChanges;
+        return page;
+    }
+}
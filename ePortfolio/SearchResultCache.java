@@ -0,0 +1,212 @@
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.function.ToIntFunction;
+
+/**
+ * This class keeps the results of the latest portfolio searches, so a search
+ * which is run again does not scan the portfolio again.
+ *
+ * Results are kept by their normalized query. The cache is bounded both by the
+ * number of results and by the total number of matches they hold, and the least
+ * recently used results are dropped once either bound is passed. A result
+ * holding more than a quarter of the matches allowed is not cached at all, so
+ * one large search cannot push out every other result.
+ *
+ * Every result is stored with the generation of the portfolio it was computed
+ * from. The portfolio moves to a new generation whenever an investment is added,
+ * changed or removed, so the first lookup or store with a newer generation drops
+ * every cached result at once, and a result from an older generation is never
+ * returned or stored. The cache counts its hits, misses, evictions and
+ * invalidations. All the methods can be called from any thread.
+ *
+ * @param <T> the type of the results, which are never changed once cached
+ */
+public class SearchResultCache<T> {
+
+    /**
+     * The number of results kept by a portfolio's cache.
+     */
+    public static final int DEFAULT_CAPACITY = 256;
+
+    /**
+     * The total number of matches kept by a portfolio's cache.
+     */
+    public static final int DEFAULT_MAX_MATCHES = 10000;
+
+    /**
+     * This class holds a cached result along with its generation.
+     */
+    private static final class Entry<T> {
+        private final long generation;
+        private final T result;
+        private final int matches;
+
+        /**
+         * Constructs a new Entry with the given values.
+         *
+         * @param generation the generation of the portfolio the result was computed from
+         * @param result the result of the search
+         * @param matches the number of matches in the result
+         */
+        private Entry(long generation, T result, int matches) {
+            this.generation = generation;
+            this.result = result;
+            this.matches = matches;
+        }
+    }
+
+    private final int capacity;
+    private final int maxMatches;
+    private final ToIntFunction<T> counter;
+    private final LinkedHashMap<String, Entry<T>> entries = new LinkedHashMap<>(16, 0.75f, true);  //Ordered from the least to the most recently used
+    private long generation = -1;  //Newest generation seen, which every cached result belongs to
+    private int matches = 0;  //Total number of matches in the cached results
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+    private long invalidations = 0;
+
+    /**
+     * Constructs a new empty SearchResultCache.
+     *
+     * @param capacity the largest number of results kept
+     * @param maxMatches the largest total number of matches in the results kept
+     * @param counter the function returning the number of matches in a result
+     */
+    public SearchResultCache(int capacity, int maxMatches, ToIntFunction<T> counter) {
+        if (capacity <= 0 || maxMatches <= 0) {
+            throw new IllegalArgumentException("Capacity must be positive.");
+        }
+        this.capacity = capacity;
+        this.maxMatches = maxMatches;
+        this.counter = counter;
+    }
+
+    /**
+     * Returns the result cached for the given query, if it was computed from
+     * the given generation. A newer generation drops every cached result.
+     *
+     * @param query the normalized query
+     * @param generation the current generation of the portfolio
+     * @return the cached result, which must not be changed, or null if there is none
+     */
+    public synchronized T get(String query, long generation) {
+        moveTo(generation);
+        Entry<T> entry = entries.get(query);
+        if (entry == null || entry.generation != generation) {  //Case where the result is missing, or newer than the caller's generation
+            misses++;
+            return null;
+        }
+        hits++;
+        return entry.result;
+    }
+
+    /**
+     * Caches the result of a query, unless it holds too many matches or comes
+     * from an older generation than the cached results. The least recently used
+     * results are then dropped until the cache is within its bounds again.
+     *
+     * @param query the normalized query
+     * @param generation the generation of the portfolio the result was computed from
+     * @param result the result, which must not be changed afterwards
+     */
+    public synchronized void put(String query, long generation, T result) {
+        int count = counter.applyAsInt(result);
+        if (generation < this.generation || count > maxMatches / 4) {
+            return;
+        }
+        moveTo(generation);
+
+        Entry<T> replaced = entries.put(query, new Entry<>(generation, result, count));
+        matches += count - (replaced != null ? replaced.matches : 0);
+
+        Iterator<Entry<T>> eldest = entries.values().iterator();
+        while (entries.size() > capacity || matches > maxMatches) {
+            matches -= eldest.next().matches;
+            eldest.remove();
+            evictions++;
+        }
+    }
+
+    /**
+     * Drops every cached result. The statistics are kept.
+     */
+    public synchronized void clear() {
+        entries.clear();
+        matches = 0;
+    }
+
+    /**
+     * Drops every cached result if the given generation is newer than theirs,
+     * counting them as invalidations.
+     *
+     * @param generation the generation of the portfolio seen by the caller
+     */
+    private void moveTo(long generation) {
+        if (generation > this.generation) {
+            invalidations += entries.size();
+            entries.clear();
+            matches = 0;
+            this.generation = generation;
+        }
+    }
+
+    /**
+     * Returns the number of results currently cached, which all belong to the
+     * newest generation seen.
+     *
+     * @return the number of cached results
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * Returns the number of lookups which returned a cached result.
+     *
+     * @return the number of hits
+     */
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    /**
+     * Returns the number of lookups which found no result, or only a result
+     * from an older generation.
+     *
+     * @return the number of misses
+     */
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    /**
+     * Returns the number of results dropped to make room for newer ones.
+     *
+     * @return the number of evictions
+     */
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    /**
+     * Returns the number of results dropped because the portfolio changed
+     * since they were computed.
+     *
+     * @return the number of invalidations
+     */
+    public synchronized long getInvalidations() {
+        return invalidations;
+    }
+
+    /**
+     * Returns a one line summary of the statistics of the cache.
+     *
+     * @return the size, hits, misses, evictions and invalidations of the cache
+     */
+    @Override
+    public synchronized String toString() {
+        return entries.size() + "/" + capacity + " results, " + hits + " hits, " + misses + " misses, "
+                + evictions + " evictions, " + invalidations + " invalidations";
+    }
+}
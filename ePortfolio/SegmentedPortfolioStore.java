@@ -0,0 +1,254 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * This class stores a portfolio as a directory of fixed-size segments.
+ *
+ * Every investment belongs to the segment numbered by its id divided by
+ * SEGMENT_SIZE, and every segment is a separate file in the binary format. A save
+ * only rewrites the segments holding a changed investment. Segment files are
+ * never overwritten: a changed segment is written to a new file named after the
+ * generation of the save, and a small manifest listing the current file of every
+ * segment is then replaced atomically. A crash before the manifest is replaced
+ * leaves the previous manifest and all the files it lists intact.
+ */
+public class SegmentedPortfolioStore {
+
+    /**
+     * The number of investment ids covered by one segment.
+     */
+    public static final int SEGMENT_SIZE = 4096;
+
+    private static final String MANIFEST = "manifest";  //Name of the manifest file in the directory
+
+    private final File directory;
+    private TreeMap<Integer, String> segmentFiles = new TreeMap<>();  //Current file of every segment, by segment number
+    private TreeMap<Integer, List<Investment>> segments = new TreeMap<>();  //Investments read by the last call to read
+    private long generation = 0;  //Generation of the last manifest written or read
+    private long journalSequence = 0;  //Journal sequence number of the last manifest written or read
+    private boolean manifestRead = false;
+
+    /**
+     * Constructs a new SegmentedPortfolioStore for the given directory.
+     *
+     * @param directory the directory holding the segments and the manifest
+     */
+    public SegmentedPortfolioStore(File directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * Returns the number of the segment the given investment belongs to.
+     *
+     * @param investment the investment to look up
+     * @return the segment number of the investment
+     */
+    public static int getSegment(Investment investment) {
+        return investment.getId() / SEGMENT_SIZE;
+    }
+
+    /**
+     * Returns whether the directory holds a saved portfolio.
+     *
+     * @return true if the manifest exists
+     */
+    public boolean exists() {
+        return new File(directory, MANIFEST).exists();
+    }
+
+    /**
+     * Returns the investments read by the last call to read, by segment number.
+     *
+     * @return the investments of every segment
+     */
+    public TreeMap<Integer, List<Investment>> getSegments() {
+        return segments;
+    }
+
+    /**
+     * Returns the sequence number of the last journal entry included in the
+     * segments, or 0 if the manifest does not have one.
+     *
+     * @return the journal sequence number of the store
+     */
+    public long getJournalSequence() {
+        return journalSequence;
+    }
+
+    /**
+     * Reads the manifest and every segment it lists.
+     *
+     * @throws IOException if a file cannot be read or a segment holds too many investments
+     */
+    public void read() throws IOException {
+        readManifest();
+
+        segments = new TreeMap<>();
+        for (Map.Entry<Integer, String> entry : segmentFiles.entrySet()) {
+            BinaryPortfolioFile reader = new BinaryPortfolioFile();
+            reader.read(new File(directory, entry.getValue()));
+            if (reader.getInvestments().size() > SEGMENT_SIZE) {
+                throw new IOException("Too many investments in segment " + entry.getKey() + " of " + directory);
+            }
+            segments.put(entry.getKey(), reader.getInvestments());
+        }
+    }
+
+    /**
+     * Writes the given segments to new files and replaces the manifest so that it
+     * lists them. An empty list removes its segment. When the write is full, the
+     * segments not given are removed as well; otherwise they keep their current
+     * files. Files no longer listed by the manifest are deleted afterwards.
+     *
+     * @param changed the investments of every segment to write, by segment number
+     * @param full true if the given segments are the whole portfolio
+     * @param journalSequence the sequence number of the last journal entry included, or 0
+     * @throws IOException if a file cannot be written
+     */
+    public void write(Map<Integer, List<Investment>> changed, boolean full, long journalSequence) throws IOException {
+        if (!directory.exists()) {
+            directory.mkdirs();
+        }
+        if (manifestRead == false && exists()) {  //Case where the store was not loaded, so the current files are unknown
+            readManifest();
+        }
+
+        long nextGeneration = generation + 1;
+        TreeMap<Integer, String> nextFiles = full ? new TreeMap<>() : new TreeMap<>(segmentFiles);
+
+        //Writing every changed segment to a file no manifest refers to yet
+        for (Map.Entry<Integer, List<Investment>> entry : changed.entrySet()) {
+            if (entry.getValue().isEmpty()) {
+                nextFiles.remove(entry.getKey());
+                continue;
+            }
+
+            String name = "segment-" + entry.getKey() + "-" + nextGeneration + ".bin";
+            try (FileOutputStream output = new FileOutputStream(new File(directory, name))) {
+                BinaryPortfolioFile.write(output, entry.getValue(), 0);
+                output.getFD().sync();
+            }
+            nextFiles.put(entry.getKey(), name);
+        }
+
+        //Switching to the new segments by replacing the manifest
+        File manifest = new File(directory, MANIFEST);
+        File temporaryFile = new File(directory, MANIFEST + ".tmp");
+        try (FileOutputStream output = new FileOutputStream(temporaryFile)) {
+            Writer writer = new OutputStreamWriter(output, StandardCharsets.UTF_8);
+            writer.write("Journal = " + journalSequence + "\n");
+            writer.write("Generation = " + nextGeneration + "\n");
+            for (Map.Entry<Integer, String> entry : nextFiles.entrySet()) {
+                writer.write("Segment = " + entry.getKey() + " " + entry.getValue() + "\n");
+            }
+            writer.flush();
+            output.getFD().sync();
+        }
+        try {
+            Files.move(temporaryFile.toPath(), manifest.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temporaryFile.toPath(), manifest.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+        syncDirectory();
+
+        generation = nextGeneration;
+        segmentFiles = nextFiles;
+        this.journalSequence = journalSequence;
+        manifestRead = true;
+        deleteUnlistedFiles();
+    }
+
+    /**
+     * Reads the manifest, which lists the current file of every segment.
+     *
+     * @throws IOException if the manifest cannot be read or is malformed
+     */
+    private void readManifest() throws IOException {
+        TreeMap<Integer, String> files = new TreeMap<>();
+        long readGeneration = 0;
+        long readSequence = 0;
+
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+                new FileInputStream(new File(directory, MANIFEST)), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.isEmpty()) {
+                    continue;
+                }
+
+                int separator = line.indexOf(" = ");
+                if (separator < 0) {
+                    throw new IOException("Malformed manifest line in " + directory + ": " + line);
+                }
+                String key = line.substring(0, separator);
+                String value = line.substring(separator + 3);
+
+                try {
+                    if (key.equals("Journal")) {
+                        readSequence = Long.parseLong(value);
+                    } else if (key.equals("Generation")) {
+                        readGeneration = Long.parseLong(value);
+                    } else if (key.equals("Segment")) {
+                        int space = value.indexOf(' ');
+                        files.put(Integer.parseInt(value.substring(0, space)), value.substring(space + 1));
+                    }
+                } catch (NumberFormatException | StringIndexOutOfBoundsException e) {
+                    throw new IOException("Malformed manifest line in " + directory + ": " + line);
+                }
+            }
+        }
+
+        segmentFiles = files;
+        generation = readGeneration;
+        journalSequence = readSequence;
+        manifestRead = true;
+    }
+
+    /**
+     * Deletes the segment files which the manifest no longer lists, including
+     * files left behind by a save which did not finish.
+     */
+    private void deleteUnlistedFiles() {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+
+        HashSet<String> listed = new HashSet<>(segmentFiles.values());
+        for (File file : files) {
+            if (file.getName().startsWith("segment-") && listed.contains(file.getName()) == false) {
+                if (file.delete() == false) {
+                    System.err.println("Could not delete old segment file: " + file);
+                }
+            }
+        }
+    }
+
+    /**
+     * Syncs the directory, so that the replaced manifest survives a crash. Some
+     * platforms cannot open directories, in which case nothing is done.
+     */
+    private void syncDirectory() {
+        try (FileChannel channel = FileChannel.open(directory.toPath(), StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            //Ignoring platforms where a directory cannot be synced
+        }
+    }
+}
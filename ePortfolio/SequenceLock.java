@@ -0,0 +1,52 @@
+import java.lang.invoke.VarHandle;
+
+/**
+ * This class lets position stores publish changes to readers who never lock.
+ *
+ * The sequence number is odd while a write is in progress and even otherwise.
+ * A reader remembers the number before reading, and keeps what it read only if
+ * the number is still the same afterwards, which proves that no write touched
+ * the values in between. Writers must already exclude each other, for example
+ * by holding the monitor of the store.
+ */
+public final class SequenceLock {
+
+    private volatile long sequence = 0;
+
+    /**
+     * Starts an optimistic read.
+     *
+     * @return the stamp to validate after reading, or -1 if a write is in progress
+     */
+    public long beginRead() {
+        long stamp = sequence;
+        return (stamp & 1) == 0 ? stamp : -1;
+    }
+
+    /**
+     * Checks whether the values read since beginRead are consistent.
+     *
+     * @param stamp the stamp returned by beginRead
+     * @return true if no write started since the stamp was taken
+     */
+    public boolean validate(long stamp) {
+        VarHandle.acquireFence();  //Keeping the reads of the values before the second read of the sequence
+        return stamp >= 0 && sequence == stamp;
+    }
+
+    /**
+     * Starts a write. Readers which started before fail to validate until
+     * endWrite is called.
+     */
+    public void beginWrite() {
+        sequence++;
+        VarHandle.storeStoreFence();  //Keeping the writes of the values after the odd sequence number
+    }
+
+    /**
+     * Ends the write started by beginWrite, publishing the values written.
+     */
+    public void endWrite() {
+        sequence++;
+    }
+}
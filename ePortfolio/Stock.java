@@ -6,7 +6,7 @@ import java.util.ArrayList;
  */
 public class Stock extends Investment{
     
-    private static final double comission = 9.99;  //Fixed comission fee for stocks
+    private static final long comission = Money.fromDouble(9.99);  //Fixed comission fee for stocks, in micro-units
 
     /**
      * Constructs a new Stock object with specified details.
@@ -19,7 +19,7 @@ public class Stock extends Investment{
      */
     public Stock(String symbol, String name, int quantity, double price, double bookValue){
         super(symbol, name, quantity, price);
-        this.bookValue = bookValue;
+        this.setBookValue(Money.fromDouble(bookValue));
     }
 
     /**
@@ -33,7 +33,7 @@ public class Stock extends Investment{
      */
     public Stock(String symbol, String name, int quantity, double price){
         super(symbol, name, quantity, price);
-        this.bookValue = (quantity * price) + comission; //Initializing the book value for the initial purchase
+        this.setBookValue(Money.multiply(Money.fromDouble(price), quantity) + comission); //Initializing the book value for the initial purchase
     }
 
     /**
@@ -63,40 +63,26 @@ public class Stock extends Investment{
      * book value. If the user chooses to buy more shares at a different price,
      * the book value is updated by adding the new purchase cost to the existing
      * book value and the price is updated to the new price.
+     * The price, quantity and book value are published as one new state.
      * 
      * @param quantity the number of shares to buy
      * @param price the price per share to use for the purchase
-     * @return a string indicating the success of the purchase and the updated details of the stock
+     * @return the result of the purchase, holding the updated details of the stock
      */
     @Override
-    public String buy(int quantity, double price){
-        this.updatePrice(price); //Updating the price first
-        this.updateQuantity(quantity);  //Updating the quantity
-
-        if(this.quantity == 0){  //Case when buying the first stock
-            this.bookValue = (quantity * price) + comission;
-        }else{
-            if(this.price == price){  //Case when updated price is same as before
-                this.bookValue += (quantity * price + comission);
-                return "Same price! Adding to the book value for the following stock:" + "\n\n" +
-                        "Symbol: " + this.getSymbol() + "\n" +
-                        "Name: " + this.getName() + "\n" +
-                        "Quantity: " + this.getQuantity() + "\n" +
-                        "Price: " + this.getPrice() + "\n" +
-                        "Book Value: " + this.getBookValue();
-            }else{  //Case when updated price is new
-                this.bookValue = this.bookValue + (quantity * price + comission);
-                this.price = price;
-                return "New price! Updating the price and adjusting book value for the following stock:" + "\n\n" +
-                        "Symbol: " + this.getSymbol() + "\n" +
-                        "Name: " + this.getName() + "\n" +
-                        "Quantity: " + this.getQuantity() + "\n" +
-                        "Price: " + this.getPrice() + "\n" +
-                        "Book Value: " + this.getBookValue();
-            }
-        }
-        this.quantity += quantity;  //Updating the quantity according to the purchase amount
-        return "Purchased successfully!";
+    public TradeResult buy(int quantity, double price){
+        this.dirty = true;
+        long priceMicros = Money.fromDouble(price);
+
+        //Updating the price, quantity and book value as one change, starting over if another thread changed the stock first
+        PositionState current;
+        PositionState bought;
+        do{
+            current = this.getState();
+            bought = this.buyState(current, quantity, priceMicros);
+        }while(this.compareAndSetState(current, bought) == false);
+
+        return new TradeResult(TradeResult.Status.BOUGHT, true, this.getSymbol(), this.getName(), quantity, bought.getQuantity(), bought.getPrice(), bought.getBookValue(), 0);
     }
 
 
@@ -104,49 +90,101 @@ public class Stock extends Investment{
      * Sells a portion of the investment.
      * 
      * This method updates the price of the investment, calculates the payment, and removes the investment from the list if the entire quantity is sold.
+     * The new price and the remaining quantity and book value are published as one new state.
      * 
      * @param investments the list of investments to remove from if the entire quantity is sold
      * @param Symbol the symbol of the investment to sell
      * @param quantity the number of shares to sell
      * @param price the price at which to sell
-     * @return a string indicating the result of the sale, including the payment received and the updated investment details
+     * @return the result of the sale, holding the payment received and the updated investment details
      */
     @Override
-    public String sell(ArrayList<Investment> investments, String Symbol, int quantity, double price){
-        
-        this.updatePrice(price);  //Updating the price
+    public TradeResult sell(ArrayList<Investment> investments, String Symbol, int quantity, double price){
+        this.dirty = true;
+        long priceMicros = Money.fromDouble(price);
 
-        if(this.getQuantity() == quantity){  //Case when updated price is same as before
-            double payment = (this.price * this.quantity) - comission;
+        //Updating the price, and the quantity and book value of a partial sale, as one change
+        PositionState current;
+        PositionState sold;
+        do{
+            current = this.getState();
+            sold = this.sellState(current, quantity, priceMicros);
+        }while(this.compareAndSetState(current, sold) == false);
+
+        long payment = this.sellPayment(current, quantity, priceMicros);
+        if(current.getQuantity() == quantity){  //Case when the whole quantity is sold
 
             investments.remove(this);  //Removing the stock from the list if user chooses to sell total
-            return "Payment received: " + payment + "\n" +     
-                    "This stock is sold and removed from our list:" + "\n" +
-                    "Symbol: " + Symbol + "\n" +
-                    "Name: " + this.getName() + "\n" +
-                    "Quantity: " + this.getQuantity() + "\n" +
-                    "Price: " + this.getPrice() + "\n" +
-                    "Book value: " + this.getBookValue() + "\n";
-        } else if(this.getQuantity() > quantity){
-
-            double bookValueNew = (quantity * price) + comission;  //Calculating the new book value using the given formula
-            double payment = bookValueNew - comission;  //Calculating the payment using the given formula
-
-            int remainingQuantity = this.quantity - quantity;  //Calculating the remaining quantity
-            double bookValueRemaining = ((this.getQuantity() * this.getPrice()) + comission) - bookValueNew;
-
-            //Updating the quantity and book value
-            this.quantity = remainingQuantity;
-            this.bookValue = bookValueRemaining;
-            return "Payment received for selling " + quantity + " shares: " + payment + "\n" + "For the following stock:" + "\n\n" +
-                    "Symbol: " + Symbol + "\n" +
-                    "Name: " + this.getName() + "\n" +
-                    "Remaining quantity: " + this.getQuantity() + "\n" +
-                    "Remaining book value: " + this.getBookValue() + "\n";
+            return new TradeResult(TradeResult.Status.CLOSED, true, Symbol, this.getName(), quantity, sold.getQuantity(), sold.getPrice(), sold.getBookValue(), payment);
+        } else if(current.getQuantity() > quantity){
+
+            return new TradeResult(TradeResult.Status.SOLD, true, Symbol, this.getName(), quantity, sold.getQuantity(), sold.getPrice(), sold.getBookValue(), payment);
         }else{
-            return "Opps! You don't have enough shares to sell. Please try again.";
+            return new TradeResult(TradeResult.Status.INSUFFICIENT_QUANTITY, true, Symbol, this.getName(), quantity, sold.getQuantity(), sold.getPrice(), sold.getBookValue(), 0);
+        }
+
+    }
+
+    /**
+     * Returns the state of the stock after buying the given quantity at the given
+     * price. The price becomes the new price, the quantity grows, and the cost of
+     * the purchase plus the comission is added to the book value.
+     * 
+     * @param current the state before the purchase
+     * @param quantity the number of shares to buy
+     * @param price the price per share in micro-units
+     * @return the state after the purchase
+     * @throws ArithmeticException if the quantity or the book value after the purchase does not fit
+     */
+    @Override
+    protected PositionState buyState(PositionState current, int quantity, long price){
+        long cost = Math.addExact(Money.multiply(price, quantity), comission);
+        int newQuantity = Math.addExact(current.getQuantity(), quantity);
+
+        if(newQuantity == 0){  //Case when buying the first stock
+            return current.withPrice(price).withHolding(newQuantity + quantity, cost);
+        }
+        return current.withPrice(price).withHolding(newQuantity, Math.addExact(current.getBookValue(), cost));
+    }
+
+    /**
+     * Returns the state of the stock after selling the given quantity at the given
+     * price. The price always becomes the new price, while the quantity and book
+     * value only change when fewer shares are sold than held.
+     * 
+     * @param current the state before the sale
+     * @param quantity the number of shares to sell
+     * @param price the price per share in micro-units
+     * @return the state after the sale
+     * @throws ArithmeticException if the book value after the sale does not fit in a long
+     */
+    @Override
+    protected PositionState sellState(PositionState current, int quantity, long price){
+        PositionState sold = current.withPrice(price);
+        if(current.getQuantity() > quantity){
+            long bookValueNew = Money.multiply(price, quantity) + comission;  //Calculating the new book value using the given formula
+            int remainingQuantity = current.getQuantity() - quantity;  //Calculating the remaining quantity
+            long bookValueRemaining = (Money.multiply(price, current.getQuantity()) + comission) - bookValueNew;
+            sold = sold.withHolding(remainingQuantity, bookValueRemaining);
         }
+        return sold;
+    }
 
+    /**
+     * Returns the payment received for selling the given quantity at the given
+     * price. Selling every share costs the comission.
+     * 
+     * @param current the state before the sale
+     * @param quantity the number of shares to sell
+     * @param price the price per share in micro-units
+     * @return the payment in micro-units
+     */
+    @Override
+    protected long sellPayment(PositionState current, int quantity, long price){
+        if(current.getQuantity() == quantity){
+            return Money.multiply(price, quantity) - comission;
+        }
+        return Money.multiply(price, quantity);  //Calculating the payment using the given formula
     }
 
     /**
@@ -155,11 +193,24 @@ public class Stock extends Investment{
      * stock. The payment received is the current price of the stock multiplied by the
      * quantity of the stock, minus the commission fee. The book value is the total
      * value of the stock at the time of purchase.
-     * @return the gain for the stock
+     * @return the gain for the stock in micro-units
      */
     @Override
-    public double calculateGain(){
-        double gain = ((this.getPrice() * this.quantity) + comission) - ((this.getPreviousPrice() * this.quantity) + comission) - comission;  //Calculating the payment using the given formula
+    public long calculateGainMicros(){
+        PositionState current = this.getState();  //Reading the values together so they belong to the same moment
+        return calculateGain(current.getQuantity(), current.getPrice(), current.getPreviousPrice());
+    }
+
+    /**
+     * Calculates the gain of a stock position from its values, without needing a
+     * Stock object. Position stores use this to scan their columns directly.
+     * @param quantity the number of shares held
+     * @param price the current price per share in micro-units
+     * @param previousPrice the previous price per share in micro-units
+     * @return the gain for the stock in micro-units
+     */
+    public static long calculateGain(int quantity, long price, long previousPrice){
+        long gain = (Money.multiply(price, quantity) + comission) - (Money.multiply(previousPrice, quantity) + comission) - comission;  //Calculating the payment using the given formula
         return gain;
     }
 
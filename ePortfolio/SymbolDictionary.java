@@ -0,0 +1,143 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * This class maps investment symbols to dense int ids.
+ *
+ * Symbols are matched ignoring case, and every distinct symbol gets the next id
+ * the first time it is seen, starting from 0. The spelling seen first is kept as
+ * the canonical symbol. Ids are never reused, so an id keeps meaning the same
+ * symbol for as long as the dictionary exists. The dictionary is saved as a text
+ * file with one symbol per line, in id order.
+ *
+ * Symbols are only added by one thread at a time, but getId may be called from
+ * any thread while symbols are added, as the threads of PriceFile do.
+ */
+public class SymbolDictionary {
+
+    private final ConcurrentHashMap<String, Integer> ids = new ConcurrentHashMap<>();  //Ids keyed by lower case symbol
+    private final List<String> symbols = new ArrayList<>();  //Canonical symbols by id
+
+    /**
+     * Returns the id of the given symbol, ignoring case.
+     *
+     * @param symbol the symbol to look up
+     * @return the id of the symbol, or -1 if it is not in the dictionary
+     */
+    public int getId(String symbol) {
+        Integer id = ids.get(symbol.toLowerCase());
+        return id == null ? -1 : id;
+    }
+
+    /**
+     * Returns the id of the given symbol, adding the symbol to the dictionary if
+     * it is not there yet.
+     *
+     * @param symbol the symbol to look up
+     * @return the id of the symbol
+     */
+    public int intern(String symbol) {
+        String key = symbol.toLowerCase();
+        Integer id = ids.get(key);
+        if (id == null) {
+            id = symbols.size();
+            ids.put(key, id);
+            symbols.add(symbol);
+        }
+        return id;
+    }
+
+    /**
+     * Returns the canonical symbol with the given id.
+     *
+     * @param id the id of the symbol
+     * @return the symbol, spelled as it was first added
+     */
+    public String getSymbol(int id) {
+        return symbols.get(id);
+    }
+
+    /**
+     * Returns the number of symbols in the dictionary.
+     *
+     * @return the number of symbols
+     */
+    public int size() {
+        return symbols.size();
+    }
+
+    /**
+     * Returns a copy of the dictionary, which can be written while the original
+     * keeps growing.
+     *
+     * @return a copy of the dictionary
+     */
+    public SymbolDictionary copy() {
+        SymbolDictionary copy = new SymbolDictionary();
+        copy.ids.putAll(ids);
+        copy.symbols.addAll(symbols);
+        return copy;
+    }
+
+    /**
+     * Reads the dictionary from the given file, replacing the symbols it holds.
+     *
+     * @param file the file to read from
+     * @throws IOException if the file cannot be read
+     */
+    public void read(File file) throws IOException {
+        ids.clear();
+        symbols.clear();
+
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                int count = symbols.size();
+                intern(line);
+                if (symbols.size() == count) {  //Case where the file lists a symbol twice
+                    throw new IOException("Duplicate symbol in " + file + ": " + line);
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes the dictionary to the given file. The symbols are written to a
+     * temporary file which is synced and then renamed over the old file.
+     *
+     * @param file the file to write to
+     * @throws IOException if the file cannot be written
+     */
+    public void write(File file) throws IOException {
+        File temporaryFile = new File(file.getPath() + ".tmp");
+
+        try (FileOutputStream output = new FileOutputStream(temporaryFile)) {
+            BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(output, StandardCharsets.UTF_8), 1 << 16);
+            for (int i = 0; i < symbols.size(); i++) {
+                writer.write(symbols.get(i));
+                writer.write('\n');
+            }
+            writer.flush();
+            output.getFD().sync();
+        }
+
+        try {
+            Files.move(temporaryFile.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temporaryFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+}
@@ -0,0 +1,124 @@
+/**
+ * This class describes one buy or sell to be applied by Portfolio.applyTrades.
+ *
+ * Instructions are created with the buy and sell methods and never change, so
+ * a batch of them can be built on one thread and applied on another.
+ */
+public final class TradeInstruction {
+
+    /**
+     * The kinds of trades.
+     */
+    public enum Side {
+        BUY,
+        SELL
+    }
+
+    private final Side side;
+    private final String type;
+    private final String symbol;
+    private final String name;
+    private final int quantity;
+    private final double price;
+
+    /**
+     * Constructs a new TradeInstruction with the given values.
+     *
+     * @param side whether the trade buys or sells
+     * @param type the type of investment, or null for a sale
+     * @param symbol the symbol of the investment
+     * @param name the name of the investment, or null for a sale
+     * @param quantity the number of units to trade
+     * @param price the price per unit
+     */
+    private TradeInstruction(Side side, String type, String symbol, String name, int quantity, double price) {
+        this.side = side;
+        this.type = type;
+        this.symbol = symbol;
+        this.name = name;
+        this.quantity = quantity;
+        this.price = price;
+    }
+
+    /**
+     * Returns an instruction buying the given quantity of an investment, with the
+     * same arguments as Portfolio.buy.
+     *
+     * @param type the type of investment (Stock or MutualFund)
+     * @param symbol the symbol of the investment
+     * @param name the name of the investment
+     * @param quantity the number of units to buy
+     * @param price the price per unit of the investment
+     * @return the new instruction
+     */
+    public static TradeInstruction buy(String type, String symbol, String name, int quantity, double price) {
+        return new TradeInstruction(Side.BUY, type, symbol, name, quantity, price);
+    }
+
+    /**
+     * Returns an instruction selling the given quantity of an investment, with
+     * the same arguments as Portfolio.sell.
+     *
+     * @param symbol the symbol of the investment
+     * @param quantity the number of units to sell
+     * @param price the price per unit of the investment
+     * @return the new instruction
+     */
+    public static TradeInstruction sell(String symbol, int quantity, double price) {
+        return new TradeInstruction(Side.SELL, null, symbol, null, quantity, price);
+    }
+
+    /**
+     * Returns whether the instruction buys or sells.
+     *
+     * @return the side of the trade
+     */
+    public Side getSide() {
+        return side;
+    }
+
+    /**
+     * Returns the type of investment bought.
+     *
+     * @return the type of investment, or null for a sale
+     */
+    public String getType() {
+        return type;
+    }
+
+    /**
+     * Returns the symbol of the investment traded.
+     *
+     * @return the symbol of the investment
+     */
+    public String getSymbol() {
+        return symbol;
+    }
+
+    /**
+     * Returns the name of the investment bought.
+     *
+     * @return the name of the investment, or null for a sale
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Returns the number of units traded.
+     *
+     * @return the quantity of the trade
+     */
+    public int getQuantity() {
+        return quantity;
+    }
+
+    /**
+     * Returns the price per unit of the trade.
+     *
+     * @return the price of the trade
+     */
+    public double getPrice() {
+        return price;
+    }
+}
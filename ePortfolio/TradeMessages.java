@@ -0,0 +1,118 @@
+/**
+ * This class turns the results of buys, sells and price updates into the
+ * messages shown to the user.
+ *
+ * The portfolio only returns TradeResult objects, so the text is built here
+ * when a result is displayed, and callers which never show a result, such as
+ * batches and journal replay, never pay for it.
+ */
+public final class TradeMessages {
+
+    /**
+     * Prevents instances, since all the methods are static.
+     */
+    private TradeMessages() {
+    }
+
+    /**
+     * Returns the message describing the result of a buy or a sell.
+     *
+     * @param result the result returned by Portfolio.buy or Portfolio.sell
+     * @return the message for the user
+     */
+    public static String format(TradeResult result) {
+        String kind = result.isStock() ? "stock" : "mutual fund";
+        switch (result.getStatus()) {
+            case ADDED:
+                return "Following " + (result.isStock() ? "Stock" : "MutualFund") + " added successfully!" + "\n\n" +
+                        "Symbol: " + result.getSymbol() + "\n" +
+                        "Name: " + result.getName() + "\n" +
+                        "Quantity: " + result.getQuantity() + "\n" +
+                        "Price: " + Money.toDouble(result.getPrice()) + "\n";
+
+            case BOUGHT:
+                if (result.getQuantity() == 0) {  //Case when buying the first units of an empty position
+                    return "Purchased successfully!";
+                }
+                return "Same price! Adding to the book value for the following " + kind + ":" + "\n\n" +
+                        "Symbol: " + result.getSymbol() + "\n" +
+                        "Name: " + result.getName() + "\n" +
+                        "Quantity: " + result.getQuantity() + "\n" +
+                        "Price: " + Money.toDouble(result.getPrice()) + "\n" +
+                        "Book Value: " + Money.toDouble(result.getBookValue());
+
+            case CLOSED:
+                if (result.isStock()) {
+                    return "Payment received: " + Money.toString(result.getPayment()) + "\n" +
+                            "This stock is sold and removed from our list:" + "\n" +
+                            "Symbol: " + result.getSymbol() + "\n" +
+                            "Name: " + result.getName() + "\n" +
+                            "Quantity: " + result.getQuantity() + "\n" +
+                            "Price: " + Money.toDouble(result.getPrice()) + "\n" +
+                            "Book value: " + Money.toDouble(result.getBookValue()) + "\n";
+                }
+                return "Payment received: " + Money.toString(result.getPayment()) + "\n" +
+                        "This mutual fund is sold and removed from our list!" + "\n" +
+                        "Symbol: " + result.getSymbol() + "\n" +
+                        "Name: " + result.getName() + "\n" +
+                        "Quantity: " + result.getQuantity() + "\n" +
+                        "Price: " + Money.toDouble(result.getPrice()) + "\n" +
+                        "Book Value: " + Money.toDouble(result.getBookValue());
+
+            case SOLD:
+                if (result.isStock()) {
+                    return "Payment received for selling " + result.getTradedQuantity() + " shares: " + Money.toString(result.getPayment()) + "\n" + "For the following stock:" + "\n\n" +
+                            "Symbol: " + result.getSymbol() + "\n" +
+                            "Name: " + result.getName() + "\n" +
+                            "Remaining quantity: " + result.getQuantity() + "\n" +
+                            "Remaining book value: " + Money.toDouble(result.getBookValue()) + "\n";
+                }
+                return "Payment received for selling " + result.getTradedQuantity() + " shares: " + Money.toString(result.getPayment()) + "\n" + "For the following Mutual Fund:" + "\n" +
+                        "Symbol: " + result.getSymbol() + "\n" +
+                        "Name: " + result.getName() + "\n" +
+                        "Remaining quantity: " + result.getQuantity() + "\n" +
+                        "Remaining book value: " + Money.toDouble(result.getBookValue());
+
+            case INSUFFICIENT_QUANTITY:
+                return result.isStock() ? "Opps! You don't have enough shares to sell. Please try again." : "Opps! You don't have enough shares to sell!";
+
+            case UPDATED:
+                return formatUpdate(result);
+
+            case NOT_FOUND:
+                return "No investment found with the symbol: (" + result.getSymbol() + ")";
+
+            case TYPE_MISMATCH:
+                return result.isStock() ? "Symbol exists as Stock, not as MutualFund!" : "Symbol exists as MutualFund, not as Stock!";
+
+            case NOT_RECORDED:
+                return "Error: the operation could not be recorded in the journal, so it was not applied.";
+
+            case OVERFLOW:
+                return "Error: the amounts of this operation are too large to be held, so it was not applied.";
+
+            default:
+                return "";
+        }
+    }
+
+    /**
+     * Returns the message describing the result of a price update. An update
+     * which found no investment with the symbol and name gives a blank message.
+     *
+     * @param result the result returned by Portfolio.update
+     * @return the message for the user
+     */
+    public static String formatUpdate(TradeResult result) {
+        if (result.getStatus() == TradeResult.Status.NOT_RECORDED || result.getStatus() == TradeResult.Status.OVERFLOW) {
+            return format(result);
+        }
+        if (result.getStatus() != TradeResult.Status.UPDATED) {
+            return " ";
+        }
+        return "The following investment price has been updated successfully:" + "\n\n" +
+                "Symbol: " + result.getSymbol() + "\n" +
+                "Name: " + result.getName() + "\n" +
+                "Price: " + Money.toDouble(result.getPrice()) + "\n";
+    }
+}
@@ -0,0 +1,190 @@
+/**
+ * This class holds the outcome of one buy, sell or price update.
+ *
+ * Instead of a message, a result holds a status and the position left after
+ * the trade as plain numbers, so a large batch costs one small object per
+ * trade. The messages shown to the user are built from the result only when
+ * they are displayed, by TradeMessages. Amounts are in micro-units, as
+ * described in Money.
+ */
+public final class TradeResult {
+
+    /**
+     * The outcomes of a trade.
+     */
+    public enum Status {
+        /** A new investment was added. */
+        ADDED,
+        /** Units were added to an investment already held. */
+        BOUGHT,
+        /** Part of the units of an investment were sold. */
+        SOLD,
+        /** Every unit of an investment was sold and the investment was removed. */
+        CLOSED,
+        /** The price of an investment was updated. */
+        UPDATED,
+        /** The sale asked for more units than held; only the price was updated. */
+        INSUFFICIENT_QUANTITY,
+        /** No investment has the symbol of the sale, or the symbol and name of the update. */
+        NOT_FOUND,
+        /** The symbol is held as the other type of investment. */
+        TYPE_MISMATCH,
+        /** The type of investment to buy is neither Stock nor MutualFund. */
+        UNKNOWN_TYPE,
+        /** The journal could not record the trade, so it was not applied. */
+        NOT_RECORDED,
+        /** An amount of the trade, or of the position after it, does not fit in micro-units, so it was not applied. */
+        OVERFLOW
+    }
+
+    private final Status status;
+    private final boolean stock;
+    private final String symbol;
+    private final String name;
+    private final int tradedQuantity;
+    private final int quantity;
+    private final long price;
+    private final long bookValue;
+    private final long payment;
+
+    /**
+     * Constructs a new TradeResult with the given values.
+     *
+     * @param status the outcome of the trade
+     * @param stock true if the investment is a stock
+     * @param symbol the symbol of the investment traded
+     * @param name the name of the investment, or null if the trade was not applied
+     * @param tradedQuantity the number of units bought or sold
+     * @param quantity the quantity held after the trade
+     * @param price the price of the investment after the trade, in micro-units
+     * @param bookValue the book value held after the trade, in micro-units
+     * @param payment the payment received for a sale, in micro-units, or 0
+     */
+    public TradeResult(Status status, boolean stock, String symbol, String name, int tradedQuantity, int quantity, long price, long bookValue, long payment) {
+        this.status = status;
+        this.stock = stock;
+        this.symbol = symbol;
+        this.name = name;
+        this.tradedQuantity = tradedQuantity;
+        this.quantity = quantity;
+        this.price = price;
+        this.bookValue = bookValue;
+        this.payment = payment;
+    }
+
+    /**
+     * Returns a result for a trade which changed nothing.
+     *
+     * @param status the reason the trade was not applied
+     * @param symbol the symbol of the trade
+     * @return the new result
+     */
+    public static TradeResult rejected(Status status, String symbol) {
+        return new TradeResult(status, false, symbol, null, 0, 0, 0, 0, 0);
+    }
+
+    /**
+     * Returns the outcome of the trade.
+     *
+     * @return the status of the trade
+     */
+    public Status getStatus() {
+        return status;
+    }
+
+    /**
+     * Returns whether the trade changed the portfolio.
+     *
+     * @return true if the trade was applied
+     */
+    public boolean isApplied() {
+        return status == Status.ADDED || status == Status.BOUGHT || status == Status.SOLD
+                || status == Status.CLOSED || status == Status.UPDATED || status == Status.INSUFFICIENT_QUANTITY;
+    }
+
+    /**
+     * Returns whether the investment traded is a stock. For a trade rejected
+     * with TYPE_MISMATCH, this is the type of the investment already held.
+     *
+     * @return true if the investment is a stock, false if it is a mutual fund
+     */
+    public boolean isStock() {
+        return stock;
+    }
+
+    /**
+     * Returns the symbol of the investment traded.
+     *
+     * @return the symbol of the trade
+     */
+    public String getSymbol() {
+        return symbol;
+    }
+
+    /**
+     * Returns the name of the investment traded.
+     *
+     * @return the name of the investment, or null if the trade was not applied
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Returns the number of units bought or sold by the trade.
+     *
+     * @return the quantity of the trade, or 0 for a price update
+     */
+    public int getTradedQuantity() {
+        return tradedQuantity;
+    }
+
+    /**
+     * Returns the quantity held after the trade. For a closed investment, this
+     * is the quantity which was sold.
+     *
+     * @return the quantity held
+     */
+    public int getQuantity() {
+        return quantity;
+    }
+
+    /**
+     * Returns the price of the investment after the trade.
+     *
+     * @return the price in micro-units
+     */
+    public long getPrice() {
+        return price;
+    }
+
+    /**
+     * Returns the book value held after the trade. For a closed investment,
+     * this is the book value of the units which were sold.
+     *
+     * @return the book value in micro-units
+     */
+    public long getBookValue() {
+        return bookValue;
+    }
+
+    /**
+     * Returns the payment received for a sale, after fees.
+     *
+     * @return the payment in micro-units, or 0 if the trade was not a sale
+     */
+    public long getPayment() {
+        return payment;
+    }
+
+    /**
+     * Returns a one line summary of the result.
+     *
+     * @return the status, symbol and position of the result
+     */
+    @Override
+    public String toString() {
+        return status + " " + symbol + " quantity=" + quantity + " price=" + Money.toString(price)
+                + " bookValue=" + Money.toString(bookValue) + " payment=" + Money.toString(payment);
+    }
+}
@@ -0,0 +1,505 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * This class keeps an append-only journal of the operations performed on a portfolio.
+ *
+ * Every buy, sell and update is written as a small binary entry holding a sequence
+ * number and the arguments of the operation, framed by its length and a CRC32 so
+ * that an entry cut short by a crash is detected. Snapshots of the portfolio record
+ * the sequence number of the last entry they include, so recovery loads the snapshot
+ * and replays only the newer entries. Compaction drops the entries already written
+ * to a snapshot. Appending, syncing and compacting are synchronized, so several
+ * threads may record operations in the same journal.
+ *
+ * An entry is only durable once it is synced. The portfolio syncs the entries of
+ * an operation before applying it, and a batch once for all its entries. Threads
+ * syncing at the same time share a single force of the file: the first one forces
+ * every entry written so far, and the others find theirs already on disk. Once a
+ * write or a sync fails, the entries which were not synced yet are cut from the
+ * file and the journal refuses every later entry, so the operations it could not
+ * confirm are rejected rather than applied without a record.
+ */
+public class TransactionJournal {
+
+    private static final byte BUY = 1;
+    private static final byte SELL = 2;
+    private static final byte UPDATE = 3;
+    private static final int MAX_ENTRY_SIZE = 1 << 20;  //Larger lengths can only come from a damaged entry
+
+    private final File file;
+    private FileOutputStream fileOutput = null;
+    private DataOutputStream output = null;
+    private ScheduledExecutorService compactor = null;
+
+    private final ByteArrayOutputStream entryBytes = new ByteArrayOutputStream(128);  //Reused buffer for building entries
+    private final DataOutputStream entry = new DataOutputStream(entryBytes);
+    private final CRC32 checksum = new CRC32();
+
+    private long lastSequence = 0;  //Sequence number of the last entry written or replayed
+    private long size = 0;  //Length of the journal file in bytes
+    private long syncedSequence = 0;  //Sequence number of the last entry known to be on disk
+    private long syncedSize = 0;  //Length of the journal file known to be on disk
+    private IOException failure = null;  //First write or sync error, after which nothing is appended
+
+    private final Object syncLock = new Object();  //Held by the thread forcing the file, taken before the journal itself
+
+    /**
+     * Constructs a new TransactionJournal for the given file. The journal has to be
+     * replayed before entries can be appended.
+     *
+     * @param file the journal file
+     */
+    public TransactionJournal(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Returns the sequence number of the last entry in the journal.
+     *
+     * @return the last sequence number
+     */
+    public synchronized long getLastSequence() {
+        return lastSequence;
+    }
+
+    /**
+     * Returns the length of the journal file in bytes.
+     *
+     * @return the size of the journal
+     */
+    public synchronized long size() {
+        return size;
+    }
+
+    /**
+     * Applies the entries newer than the given checkpoint to the portfolio, and then
+     * opens the journal for appending. An entry which was cut short or damaged ends
+     * the journal, and is removed from the file together with anything after it.
+     *
+     * @param portfolio the portfolio to apply the entries to
+     * @param checkpoint the sequence number of the last entry already in the portfolio
+     * @return the number of entries applied
+     * @throws IOException if the journal cannot be read or opened
+     */
+    public int replay(Portfolio portfolio, long checkpoint) throws IOException {
+        lastSequence = checkpoint;
+        long validLength = 0;
+        int applied = 0;
+
+        if (file.exists()) {
+            try (DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16))) {
+                while (true) {
+                    byte[] payload = readEntry(input);
+                    if (payload == null) {  //Case where the journal ends, cleanly or not
+                        break;
+                    }
+                    validLength += payload.length + 8;
+
+                    DataInputStream fields = new DataInputStream(new ByteArrayInputStream(payload));
+                    long sequence = fields.readLong();
+                    byte operation = fields.readByte();
+
+                    if (sequence <= checkpoint) {  //Skipping entries already in the snapshot
+                        continue;
+                    }
+
+                    //Reporting and skipping an entry which cannot be applied, instead of failing every later start
+                    try {
+                        TradeResult result;
+                        if (operation == BUY) {
+                            String type = fields.readUTF();
+                            String symbol = fields.readUTF();
+                            String name = fields.readUTF();
+                            result = portfolio.buy(type, symbol, name, fields.readInt(), fields.readDouble());
+                        } else if (operation == SELL) {
+                            String symbol = fields.readUTF();
+                            result = portfolio.sell(symbol, fields.readInt(), fields.readDouble());
+                        } else if (operation == UPDATE) {
+                            String symbol = fields.readUTF();
+                            double price = fields.readDouble();
+                            result = portfolio.update(symbol, price, fields.readUTF());
+                        } else {
+                            throw new IOException("Unknown journal operation " + operation + " in " + file);
+                        }
+
+                        if (result.getStatus() == TradeResult.Status.OVERFLOW) {
+                            System.err.println("Skipping journal entry " + sequence + " of " + file + ": its amounts are too large to be held");
+                        } else {
+                            applied++;
+                        }
+                    } catch (RuntimeException e) {
+                        System.err.println("Skipping journal entry " + sequence + " of " + file + ", which could not be applied: " + e);
+                    }
+                    lastSequence = sequence;
+                }
+            }
+
+            //Removing the damaged tail so new entries follow the last good one
+            if (validLength < file.length()) {
+                System.err.println("Discarding " + (file.length() - validLength) + " damaged bytes at the end of " + file);
+                try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                    raf.setLength(validLength);
+                }
+            }
+        }
+
+        size = validLength;
+        syncedSize = validLength;
+        syncedSequence = lastSequence;
+        openOutput();
+        return applied;
+    }
+
+    /**
+     * Appends a buy operation to the journal.
+     *
+     * @param type the type of investment (Stock or MutualFund)
+     * @param symbol the symbol of the investment
+     * @param name the name of the investment
+     * @param quantity the number of units bought
+     * @param price the price per unit
+     * @return the sequence number of the entry, which sync takes
+     * @throws IOException if the entry cannot be written
+     */
+    public synchronized long appendBuy(String type, String symbol, String name, int quantity, double price) throws IOException {
+        startEntry(BUY);
+        entry.writeUTF(type);
+        entry.writeUTF(symbol);
+        entry.writeUTF(name);
+        entry.writeInt(quantity);
+        entry.writeDouble(price);
+        return writeEntry();
+    }
+
+    /**
+     * Appends a sell operation to the journal.
+     *
+     * @param symbol the symbol of the investment
+     * @param quantity the number of units sold
+     * @param price the price per unit
+     * @return the sequence number of the entry, which sync takes
+     * @throws IOException if the entry cannot be written
+     */
+    public synchronized long appendSell(String symbol, int quantity, double price) throws IOException {
+        startEntry(SELL);
+        entry.writeUTF(symbol);
+        entry.writeInt(quantity);
+        entry.writeDouble(price);
+        return writeEntry();
+    }
+
+    /**
+     * Appends an update operation to the journal.
+     *
+     * @param symbol the symbol of the investment
+     * @param price the new price
+     * @param name the name of the investment
+     * @return the sequence number of the entry, which sync takes
+     * @throws IOException if the entry cannot be written
+     */
+    public synchronized long appendUpdate(String symbol, double price, String name) throws IOException {
+        startEntry(UPDATE);
+        entry.writeUTF(symbol);
+        entry.writeDouble(price);
+        entry.writeUTF(name);
+        return writeEntry();
+    }
+
+    /**
+     * Removes the part of the journal before the given offset, which holds the
+     * entries included in the latest snapshot. The remaining entries are copied to
+     * a new file which replaces the journal atomically. Entries appended by other
+     * threads wait until the journal is compacted.
+     *
+     * @param offset the length of the journal when the snapshot was taken
+     * @throws IOException if the journal cannot be rewritten
+     */
+    public synchronized void compact(long offset) throws IOException {
+        if (offset <= 0 || output == null) {
+            return;
+        }
+
+        output.flush();
+        File temporaryFile = new File(file.getPath() + ".tmp");
+
+        //Copying the entries written after the snapshot to the new journal
+        try (FileChannel source = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+                FileChannel target = FileChannel.open(temporaryFile.toPath(), StandardOpenOption.CREATE,
+                        StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            long position = offset;
+            while (position < size) {
+                position += source.transferTo(position, size - position, target);
+            }
+            target.force(true);
+        }
+
+        output.close();
+        syncedSequence = lastSequence;  //Every entry left was forced into the new file
+        syncedSize = size - offset;
+        try {
+            Files.move(temporaryFile.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temporaryFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+
+        size -= offset;
+        openOutput();
+    }
+
+    /**
+     * Starts a background daemon thread which runs the given task whenever the
+     * journal has grown beyond the given size. The task is expected to save a
+     * snapshot, which compacts the journal.
+     *
+     * @param task the task saving a snapshot of the portfolio
+     * @param periodMillis the time between two checks, in milliseconds
+     * @param maxSize the size above which the journal is compacted, in bytes
+     */
+    public synchronized void startCompaction(Runnable task, long periodMillis, long maxSize) {
+        if (compactor != null) {
+            return;
+        }
+
+        compactor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "portfolio-journal-compaction");
+            thread.setDaemon(true);
+            return thread;
+        });
+        compactor.scheduleWithFixedDelay(() -> {
+            if (size() > maxSize) {
+                task.run();
+            }
+        }, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Forces the entries written so far to disk, so that they survive a power
+     * failure and not only a crash of the program.
+     *
+     * @throws IOException if the journal cannot be synced
+     */
+    public void sync() throws IOException {
+        sync(getLastSequence());
+    }
+
+    /**
+     * Forces the entries up to the given one to disk. Returns at once if another
+     * thread already forced them, which lets threads appending at the same time
+     * share one force of the file. If the force fails, the entries which were not
+     * on disk yet are cut from the file and the journal refuses later entries.
+     *
+     * @param sequence the sequence number returned by the append of the last entry to sync
+     * @throws IOException if the entries cannot be synced
+     */
+    public void sync(long sequence) throws IOException {
+        synchronized (syncLock) {
+            FileChannel channel;
+            long target;
+            long targetSize;
+            synchronized (this) {
+                if (syncedSequence >= sequence) {  //Case where another thread already forced the entry
+                    return;
+                }
+                checkOpen();
+                try {
+                    output.flush();
+                } catch (IOException e) {
+                    throw fail(e);
+                }
+                channel = fileOutput.getChannel();
+                target = lastSequence;
+                targetSize = size;
+            }
+
+            //Forcing without holding the journal, so other threads keep appending meanwhile
+            try {
+                channel.force(false);
+            } catch (ClosedChannelException e) {
+                synchronized (this) {  //Case where a compaction replaced the file after forcing every entry into the new one
+                    if (syncedSequence < sequence) {
+                        checkOpen();
+                        throw fail(e);
+                    }
+                }
+                return;
+            } catch (IOException e) {
+                synchronized (this) {
+                    throw fail(e);
+                }
+            }
+
+            synchronized (this) {
+                if (target > syncedSequence) {  //Unless a compaction already moved the marks to the new file
+                    syncedSequence = target;
+                    syncedSize = targetSize;
+                }
+            }
+        }
+    }
+
+    /**
+     * Stops the background compaction, syncs and closes the journal file.
+     *
+     * @throws IOException if the journal cannot be closed
+     */
+    public void close() throws IOException {
+        synchronized (this) {
+            if (compactor != null) {
+                compactor.shutdown();
+                compactor = null;
+            }
+            if (output == null) {
+                return;
+            }
+        }
+        sync();
+        synchronized (this) {
+            if (output != null) {
+                output.close();
+                output = null;
+            }
+        }
+    }
+
+    /**
+     * Starts building a new entry with the next sequence number.
+     *
+     * @param operation the operation of the entry
+     * @throws IOException if the entry cannot be built
+     */
+    private void startEntry(byte operation) throws IOException {
+        checkOpen();
+        entryBytes.reset();
+        entry.writeLong(lastSequence + 1);
+        entry.writeByte(operation);
+    }
+
+    /**
+     * Writes the entry built since startEntry to the journal file, framed by its
+     * length and checksum, and passes it on to the operating system. The entry
+     * is not on disk until it is synced.
+     *
+     * @return the sequence number of the entry
+     * @throws IOException if the entry cannot be written
+     */
+    private long writeEntry() throws IOException {
+        entry.flush();
+        checksum.reset();
+        checksum.update(entryBytes.toByteArray(), 0, entryBytes.size());
+
+        try {
+            output.writeInt(entryBytes.size());
+            entryBytes.writeTo(output);
+            output.writeInt((int) checksum.getValue());
+            output.flush();
+        } catch (IOException e) {
+            throw fail(e);
+        }
+
+        size += entryBytes.size() + 8;
+        return ++lastSequence;
+    }
+
+    /**
+     * Checks that entries can be appended to the journal.
+     *
+     * @throws IOException if the journal is closed or an earlier write or sync failed
+     */
+    private void checkOpen() throws IOException {
+        if (failure != null) {
+            throw new IOException("Journal stopped after an earlier error: " + failure.getMessage(), failure);
+        }
+        if (output == null) {
+            throw new IOException("Journal is not open: " + file);
+        }
+    }
+
+    /**
+     * Stops the journal after a write or sync error. The entries which were not
+     * synced yet belong to operations which are rejected, so they are cut from
+     * the file, which keeps a replay from applying them.
+     *
+     * @param e the error
+     * @return the error, for the caller to throw
+     */
+    private IOException fail(IOException e) {
+        if (failure == null) {
+            failure = e;
+        }
+        if (output != null) {
+            try {
+                output.close();
+            } catch (IOException closeError) {
+                //Ignoring the error, since the file is cut below anyway
+            }
+            output = null;
+        }
+
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(syncedSize);
+            raf.getFD().sync();
+        } catch (IOException truncateError) {
+            System.err.println("Could not remove the unsynced entries of " + file + ": " + truncateError.getMessage());
+        }
+        size = syncedSize;
+        lastSequence = syncedSequence;
+        return e;
+    }
+
+    /**
+     * Reads the payload of the next entry and checks its checksum.
+     *
+     * @param input the stream to read from
+     * @return the payload of the entry, or null if the journal ends or the entry is damaged
+     * @throws IOException if the journal cannot be read
+     */
+    private byte[] readEntry(DataInputStream input) throws IOException {
+        try {
+            int length = input.readInt();
+            if (length < 9 || length > MAX_ENTRY_SIZE) {
+                return null;
+            }
+
+            byte[] payload = new byte[length];
+            input.readFully(payload);
+            int expected = input.readInt();
+
+            checksum.reset();
+            checksum.update(payload, 0, length);
+            return (int) checksum.getValue() == expected ? payload : null;
+        } catch (EOFException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Opens the journal file for appending.
+     *
+     * @throws IOException if the file cannot be opened
+     */
+    private void openOutput() throws IOException {
+        fileOutput = new FileOutputStream(file, true);
+        output = new DataOutputStream(new BufferedOutputStream(fileOutput, 1 << 12));
+    }
+}
@@ -0,0 +1,86 @@
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This class saves a portfolio in the background at a fixed interval.
+ *
+ * Instead of writing the file after every change, the saver checks the version
+ * of the portfolio on a background thread and saves it only when it changed since
+ * the last save. Any number of trades made between two checks are written by a
+ * single save, and the thread making the trades never waits for the disk.
+ */
+public class WriteBehindSaver {
+
+    private final Portfolio portfolio;
+    private final String filename;
+    private final long periodMillis;
+    private ScheduledExecutorService scheduler = null;
+    private long savedVersion;  //Version of the portfolio written by the last save
+
+    /**
+     * Constructs a new WriteBehindSaver for the given portfolio. The portfolio is
+     * taken as saved in its current state.
+     *
+     * @param portfolio the portfolio to save
+     * @param filename the name of the file to save the portfolio to
+     * @param periodMillis the time between two checks for changes, in milliseconds
+     */
+    public WriteBehindSaver(Portfolio portfolio, String filename, long periodMillis) {
+        this.portfolio = portfolio;
+        this.filename = filename;
+        this.periodMillis = periodMillis;
+        this.savedVersion = portfolio.getVersion();
+    }
+
+    /**
+     * Starts checking for changes on a background daemon thread.
+     */
+    public synchronized void start() {
+        if (scheduler != null) {
+            return;
+        }
+
+        scheduler = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "portfolio-write-behind");
+            thread.setDaemon(true);  //Not keeping the program alive for the saver
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(this::flush, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops the background thread and saves any change made since the last save.
+     */
+    public void stop() {
+        ScheduledExecutorService running;
+        synchronized (this) {
+            running = scheduler;
+            scheduler = null;
+        }
+
+        if (running != null) {
+            running.shutdown();
+            try {
+                running.awaitTermination(periodMillis + 60000, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        flush();
+    }
+
+    /**
+     * Saves the portfolio if it changed since the last save.
+     */
+    public synchronized void flush() {
+        long version = portfolio.getVersion();
+        if (version == savedVersion) {  //Case where nothing changed
+            return;
+        }
+
+        if (portfolio.saveInvestments(filename)) {
+            savedVersion = version;
+        }
+    }
+}
@@ -0,0 +1,193 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * This class checks that the cached searches of Portfolio never return a
+ * result computed before a buy, sell or update, and that SearchResultCache
+ * stays within its bounds.
+ *
+ * Every cached search is compared with a search read from a new cursor, which
+ * never uses the cache. Run it like the other tests, from the ePortfolio
+ * directory:
+ * <pre>
+ * javac -d out *.java
+ * javac -cp out -d out tests/*.java
+ * java -cp out SearchCacheTest
+ * </pre>
+ */
+public class SearchCacheTest {
+
+    private static final String[][] QUERIES = {
+        { "AAA", "", "", "" },
+        { "", "", "", "alpha" },
+        { "", "10", "20", "" },
+        { "", "", "", "" },
+    };
+
+    /**
+     * Runs the tests.
+     *
+     * @param args not used
+     */
+    public static void main(String[] args) {
+        Portfolio portfolio = new Portfolio();
+        portfolio.buy("Stock", "AAA", "Alpha One", 10, 15.0);
+        portfolio.buy("MutualFund", "BBB", "Beta Alpha", 20, 25.0);
+        portfolio.buy("Stock", "CCC", "Gamma", 30, 5.0);
+
+        checkCached(portfolio, "initial");
+
+        portfolio.buy("Stock", "DDD", "Alpha Two", 5, 12.0);
+        checkChanged(portfolio, "buying a new investment");
+        check(portfolio.searchOperation("", "", "", "alpha").length == 3, "new investment not found");
+
+        portfolio.buy("Stock", "AAA", "Alpha One", 5, 16.0);
+        checkChanged(portfolio, "buying more of an investment");
+
+        portfolio.sell("AAA", 3, 17.0);
+        checkChanged(portfolio, "selling part of an investment");
+        check(portfolio.searchInvestments("AAA", "", "", "").get(0).getQuantity() == 12, "sale not found");
+
+        portfolio.update("BBB", 18.0, "Beta Alpha");
+        checkChanged(portfolio, "updating a price into the range");
+        check(portfolio.searchInvestments("", "10", "20", "").size() == 3, "updated price not found");
+
+        portfolio.update("AAA", 50.0, "Alpha One");
+        checkChanged(portfolio, "updating a price out of the range");
+
+        portfolio.sell("DDD", 5, 13.0);
+        checkChanged(portfolio, "selling a whole investment");
+        check(portfolio.searchPrefix("", "", "", "alp", 10).size() == 2, "sold investment still found");
+
+        portfolio.applyTrades(List.of(TradeInstruction.buy("Stock", "EEE", "Alpha Three", 1, 11.0), TradeInstruction.sell("CCC", 30, 6.0)));
+        checkChanged(portfolio, "applying a batch");
+
+        testBounds();
+        System.out.println("SearchCacheTest passed");
+    }
+
+    /**
+     * Runs every query twice and checks that the second run is answered from
+     * the cache with the same result, which matches a search without the cache.
+     *
+     * @param portfolio the portfolio to search
+     * @param step the step of the test, shown in the error messages
+     */
+    private static void checkCached(Portfolio portfolio, String step) {
+        for (String[] query : QUERIES) {
+            search(portfolio, query, step);
+        }
+
+        long detailHits = portfolio.getSearchCache().getHits();
+        long investmentHits = portfolio.getInvestmentSearchCache().getHits();
+        for (String[] query : QUERIES) {
+            search(portfolio, query, step);
+        }
+        check(portfolio.getSearchCache().getHits() == detailHits + QUERIES.length, step + ": details not cached");
+        check(portfolio.getInvestmentSearchCache().getHits() == investmentHits + 2 * QUERIES.length, step + ": investments not cached");
+    }
+
+    /**
+     * Checks that the results cached before the latest change of the
+     * portfolio are dropped instead of returned, and caches the new ones.
+     *
+     * @param portfolio the portfolio which just changed
+     * @param step the change made, shown in the error messages
+     */
+    private static void checkChanged(Portfolio portfolio, String step) {
+        long detailInvalidations = portfolio.getSearchCache().getInvalidations() + portfolio.getSearchCache().size();
+        long investmentInvalidations = portfolio.getInvestmentSearchCache().getInvalidations() + portfolio.getInvestmentSearchCache().size();
+        long detailHits = portfolio.getSearchCache().getHits();
+        long investmentHits = portfolio.getInvestmentSearchCache().getHits();
+
+        //The first search after the change drops every result cached before it
+        search(portfolio, QUERIES[0], step);
+        check(portfolio.getSearchCache().size() == 1 && portfolio.getInvestmentSearchCache().size() == 2, step + ": older results kept");
+
+        for (String[] query : QUERIES) {
+            search(portfolio, query, step);
+        }
+        check(portfolio.getSearchCache().getHits() == detailHits + 1, step + ": details answered from the cache");
+        check(portfolio.getInvestmentSearchCache().getHits() == investmentHits + 2, step + ": investments answered from the cache");
+        check(portfolio.getSearchCache().getInvalidations() == detailInvalidations, step + ": details not invalidated");
+        check(portfolio.getInvestmentSearchCache().getInvalidations() == investmentInvalidations, step + ": investments not invalidated");
+
+        checkCached(portfolio, step);
+    }
+
+    /**
+     * Checks that a SearchResultCache keeps no result holding too many matches,
+     * drops the least recently used results to stay within its number of
+     * results and of matches, and ignores results from older generations.
+     */
+    private static void testBounds() {
+        SearchResultCache<String[]> cache = new SearchResultCache<>(8, 40, result -> result.length);
+
+        cache.put("large", 1, new String[11]);
+        check(cache.size() == 0, "result over a quarter of the matches cached");
+
+        for (String query : new String[] { "a", "b", "c", "d" }) {
+            cache.put(query, 1, new String[10]);
+        }
+        check(cache.size() == 4 && cache.get("a", 1) != null, "results within the bounds evicted");
+        cache.put("e", 1, new String[10]);
+        check(cache.size() == 4 && cache.get("b", 1) == null && cache.get("a", 1) != null && cache.getEvictions() == 1, "matches not bounded");
+
+        cache.put("old", 0, new String[1]);
+        check(cache.get("old", 0) == null && cache.size() == 4, "result from an older generation cached");
+        check(cache.get("a", 2) == null && cache.size() == 0 && cache.getInvalidations() == 4, "older results kept after a newer generation");
+
+        SearchResultCache<String[]> small = new SearchResultCache<>(2, 40, result -> result.length);
+        for (String query : new String[] { "x", "y", "z" }) {
+            small.put(query, 1, new String[1]);
+        }
+        check(small.size() == 2 && small.get("x", 1) == null, "number of results not bounded");
+    }
+
+    /**
+     * Runs one query through searchOperation, searchInvestments and
+     * searchPrefix, and checks each result against a new cursor.
+     *
+     * @param portfolio the portfolio to search
+     * @param query the symbol, lowest price, highest price and keywords of the search
+     * @param step the step of the test, shown in the error messages
+     */
+    private static void search(Portfolio portfolio, String[] query, String step) {
+        String name = step + " " + Arrays.toString(query);
+
+        List<String> expected = Arrays.asList(portfolio.openSearch(query[0], query[1], query[2], query[3]).nextDetails(Integer.MAX_VALUE));
+        List<String> details = Arrays.asList(portfolio.searchOperation(query[0], query[1], query[2], query[3]));
+        check(details.equals(expected.isEmpty() ? List.of("No investments found matching the given criteria.") : expected), name + ": searchOperation gave " + details);
+        check(detailsOf(portfolio.searchInvestments(query[0], query[1], query[2], query[3])).equals(expected), name + ": searchInvestments differs");
+
+        List<String> expectedPrefix = Arrays.asList(portfolio.openPrefixSearch(query[0], query[1], query[2], query[3]).nextDetails(2));
+        check(detailsOf(portfolio.searchPrefix(query[0], query[1], query[2], query[3], 2)).equals(expectedPrefix), name + ": searchPrefix differs");
+    }
+
+    /**
+     * Returns the details of the given investments.
+     *
+     * @param investments the investments to describe
+     * @return the details of every investment, in order
+     */
+    private static List<String> detailsOf(List<Investment> investments) {
+        List<String> details = new ArrayList<>();
+        for (Investment investment : investments) {
+            details.add(investment.printDetails());
+        }
+        return details;
+    }
+
+    /**
+     * Fails the test with the given message if the condition does not hold.
+     *
+     * @param condition the condition to check
+     * @param message the message describing the failure
+     */
+    private static void check(boolean condition, String message) {
+        if (condition == false) {
+            throw new AssertionError(message);
+        }
+    }
+}
@@ -0,0 +1,176 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * This class checks that reading a SearchCursor a page at a time finds the
+ * same investments, in the same order, as searchOperation.
+ *
+ * Run it like the other tests, from the ePortfolio directory:
+ * <pre>
+ * javac -d out *.java
+ * javac -cp out -d out tests/*.java
+ * java -cp out SearchCursorTest
+ * </pre>
+ */
+public class SearchCursorTest {
+
+    private static final String[] WORDS = { "global", "growth", "income", "tech", "energy", "bank", "fund", "trust" };
+
+    private static final int[] PAGE_SIZES = { 1, 3, 50, Integer.MAX_VALUE };
+
+    /**
+     * Runs the tests.
+     *
+     * @param args not used
+     */
+    public static void main(String[] args) {
+        Portfolio portfolio = createPortfolio(2000, new Random(42));
+
+        //Queries reaching the investments through the symbol, price and keyword indexes, and through a full scan
+        String[][] queries = {
+            { "", "", "", "" },
+            { "SYM17", "", "", "" },
+            { "sym17", "", "", "" },
+            { "SYM17", "", "", "tech" },
+            { "NONE", "", "", "" },
+            { "", "10", "12", "" },
+            { "", "1", "1000", "" },
+            { "", "", "", "tech" },
+            { "", "", "", "growth tech" },
+            { "", "", "", "tech growth tech" },
+            { "", "20", "40", "bank" },
+            { "", "", "", "missing" },
+        };
+
+        for (String[] query : queries) {
+            List<String> expected = Arrays.asList(portfolio.searchOperation(query[0], query[1], query[2], query[3]));
+            if (expected.size() == 1 && expected.get(0).startsWith("No investments found")) {
+                expected = new ArrayList<>();
+            }
+            String name = Arrays.toString(query);
+
+            for (int pageSize : PAGE_SIZES) {
+                check(readPages(portfolio.openSearch(query[0], query[1], query[2], query[3]), pageSize).equals(expected), name + " read " + pageSize + " at a time");
+            }
+
+            //Reaching every page by skipping the matches before it
+            for (int offset = 0; offset <= expected.size(); offset += 7) {
+                SearchCursor cursor = portfolio.openSearch(query[0], query[1], query[2], query[3]);
+                int skipped = cursor.skip(offset);
+                check(skipped == offset, name + " skipped " + skipped + " of " + offset);
+                List<String> page = Arrays.asList(cursor.nextDetails(5));
+                check(page.equals(expected.subList(offset, Math.min(offset + 5, expected.size()))), name + " page at " + offset);
+            }
+
+            //Iterating reads ahead, but returns the same investments
+            List<String> iterated = new ArrayList<>();
+            SearchCursor cursor = portfolio.openSearch(query[0], query[1], query[2], query[3]);
+            while (cursor.hasNext()) {
+                iterated.add(cursor.next().printDetails());
+            }
+            check(iterated.equals(expected), name + " iterated");
+            check(cursor.nextDetails(10).length == 0 && cursor.skip(10) == 0, name + " read past the end");
+        }
+
+        //A prefix search gives the same matches whatever the page size
+        String[][] prefixQueries = { { "SYM1", "", "", "" }, { "", "", "", "gro te" }, { "s", "5", "50", "b" } };
+        for (String[] query : prefixQueries) {
+            List<String> expected = readPages(portfolio.openPrefixSearch(query[0], query[1], query[2], query[3]), Integer.MAX_VALUE);
+            check(expected.isEmpty() == false, Arrays.toString(query) + " found nothing");
+            for (int pageSize : PAGE_SIZES) {
+                check(readPages(portfolio.openPrefixSearch(query[0], query[1], query[2], query[3]), pageSize).equals(expected), Arrays.toString(query) + " prefix read " + pageSize + " at a time");
+            }
+        }
+
+        testPriceRangeChanges();
+        System.out.println("SearchCursorTest passed");
+    }
+
+    /**
+     * Checks that a cursor reading a price range a page at a time finds the
+     * investments bought or moved into the range between two pages, and not the
+     * ones sold or moved out of it, although it keeps the range it sorted.
+     */
+    private static void testPriceRangeChanges() {
+        Portfolio portfolio = createPortfolio(400, new Random(7));
+        List<Investment> range = portfolio.searchInvestments("", "10", "12", "");
+        check(range.size() > 6, "price range too small: " + range.size());
+
+        SearchCursor cursor = portfolio.openSearch("", "10", "12", "");
+        List<String> read = new ArrayList<>(Arrays.asList(cursor.nextDetails(2)));
+        read.addAll(Arrays.asList(cursor.nextDetails(2)));  //Read from the range sorted for the first page
+
+        //The last investment of the list outside the range, which the cursor has not reached yet
+        List<Investment> all = portfolio.snapshotInvestments();
+        Investment outside = all.get(all.size() - 1);
+        for (int i = all.size() - 1; outside.getPrice() >= 10 && outside.getPrice() <= 12; i--) {
+            outside = all.get(i);
+        }
+
+        portfolio.sell(range.get(4).getSymbol(), range.get(4).getQuantity(), 11.0);
+        portfolio.update(range.get(5).getSymbol(), 99.0, range.get(5).getName());
+        portfolio.update(outside.getSymbol(), 11.5, outside.getName());
+        portfolio.buy("Stock", "NEW", "New Corp", 1, 10.5);
+
+        read.addAll(readPages(cursor, 3));
+        List<String> expected = Arrays.asList(portfolio.searchOperation("", "10", "12", ""));
+        check(read.equals(expected), "changes between pages: read " + read.size() + " of " + expected.size());
+        String movedIn = "Symbol: " + outside.getSymbol() + "\n";
+        check(read.get(read.size() - 1).startsWith("Symbol: NEW\n") && read.stream().anyMatch(details -> details.startsWith(movedIn)), "investments moved into the range not read");
+    }
+
+    /**
+     * Returns a portfolio of stocks and mutual funds with random prices and
+     * names made of a few common words. Some investments are sold again, so the
+     * indexes hold removed investments as well.
+     *
+     * @param count the number of investments to buy
+     * @param random the source of the prices and names
+     * @return the new portfolio
+     */
+    private static Portfolio createPortfolio(int count, Random random) {
+        Portfolio portfolio = new Portfolio();
+        for (int i = 0; i < count; i++) {
+            String name = WORDS[random.nextInt(WORDS.length)] + " " + WORDS[random.nextInt(WORDS.length)] + " " + i;
+            double price = 1 + random.nextInt(5000) / 100.0;
+            portfolio.buy(i % 3 == 0 ? "MutualFund" : "Stock", "SYM" + i, name, 1 + random.nextInt(100), price);
+        }
+        for (int i = 0; i < count; i += 11) {
+            portfolio.sell("SYM" + i, 1000, 1.0);
+            portfolio.update("SYM" + (i + 1), 1.0 + random.nextInt(50), portfolio.searchInvestments("SYM" + (i + 1), "", "", "").get(0).getName());
+        }
+        return portfolio;
+    }
+
+    /**
+     * Reads every match of the cursor, the given number at a time.
+     *
+     * @param cursor the cursor to read
+     * @param pageSize the number of matches asked for by each read
+     * @return the details of all the matches
+     */
+    private static List<String> readPages(SearchCursor cursor, int pageSize) {
+        List<String> details = new ArrayList<>();
+        while (true) {
+            String[] page = cursor.nextDetails(pageSize);
+            details.addAll(Arrays.asList(page));
+            if (page.length < pageSize) {
+                return details;
+            }
+        }
+    }
+
+    /**
+     * Fails the test with the given message if the condition does not hold.
+     *
+     * @param condition the condition to check
+     * @param message the message describing the failure
+     */
+    private static void check(boolean condition, String message) {
+        if (condition == false) {
+            throw new AssertionError(message);
+        }
+    }
+}
@@ -0,0 +1,232 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * This class checks Portfolio.applyTrades, that a group of trades which
+ * cannot be recorded in the journal changes nothing, and that trades too
+ * large to be held are rejected before they are recorded.
+ *
+ * The tests are plain programs, since the project is built without a test
+ * framework. From the ePortfolio directory:
+ * <pre>
+ * javac -d out *.java
+ * javac -cp out -d out tests/*.java
+ * java -cp out TradeBatchTest
+ * </pre>
+ * A failed check throws an AssertionError, so the program exits with a
+ * non-zero status.
+ */
+public class TradeBatchTest {
+
+    /**
+     * This class is a journal whose sync fails from a given call on, like a
+     * journal on a full disk.
+     */
+    private static final class FailingJournal extends TransactionJournal {
+        private final int failingSync;
+        private int syncs = 0;
+
+        /**
+         * Constructs a new FailingJournal.
+         *
+         * @param file the journal file
+         * @param failingSync the number of the first sync which fails, starting from 1
+         */
+        private FailingJournal(File file, int failingSync) {
+            super(file);
+            this.failingSync = failingSync;
+        }
+
+        @Override
+        public void sync(long sequence) throws IOException {
+            if (++syncs >= failingSync) {
+                throw new IOException("No space left on device");
+            }
+            super.sync(sequence);
+        }
+    }
+
+    /**
+     * Runs the tests.
+     *
+     * @param args not used
+     * @throws IOException if the temporary journal cannot be created
+     */
+    public static void main(String[] args) throws IOException {
+        testSameResultsAsSingleTrades();
+        testFailedGroupChangesNothing();
+        testOverflowRejected();
+        System.out.println("TradeBatchTest passed");
+    }
+
+    /**
+     * Checks that a batch gives the same results and investments as calling buy
+     * and sell for each trade.
+     */
+    private static void testSameResultsAsSingleTrades() {
+        List<TradeInstruction> trades = List.of(
+                TradeInstruction.buy("Stock", "AAA", "Alpha Corp", 10, 12.5),
+                TradeInstruction.buy("MutualFund", "BBB", "Beta Fund", 20, 8.0),
+                TradeInstruction.sell("aaa", 4, 13.0),
+                TradeInstruction.buy("MutualFund", "AAA", "Alpha Corp", 1, 14.0),
+                TradeInstruction.sell("BBB", 20, 9.0),
+                TradeInstruction.sell("CCC", 1, 1.0),
+                TradeInstruction.sell("AAA", 7, 15.0));
+
+        Portfolio batched = new Portfolio();
+        List<TradeResult> results = batched.applyTrades(trades);
+
+        Portfolio single = new Portfolio();
+        for (int i = 0; i < trades.size(); i++) {
+            TradeInstruction trade = trades.get(i);
+            TradeResult expected = trade.getSide() == TradeInstruction.Side.BUY
+                    ? single.buy(trade.getType(), trade.getSymbol(), trade.getName(), trade.getQuantity(), trade.getPrice())
+                    : single.sell(trade.getSymbol(), trade.getQuantity(), trade.getPrice());
+            check(expected.toString().equals(results.get(i).toString()), "trade " + i + ": " + results.get(i) + " instead of " + expected);
+        }
+        check(describe(batched).equals(describe(single)), "investments differ: " + describe(batched) + " instead of " + describe(single));
+        check(batched.calculateGain().equals(single.calculateGain()), "total gain differs");
+    }
+
+    /**
+     * Checks that when the journal cannot record the trades of a symbol, every
+     * trade of that symbol is rejected and its investment is left as it was,
+     * while the symbols recorded before are applied.
+     *
+     * @throws IOException if the temporary journal cannot be created
+     */
+    private static void testFailedGroupChangesNothing() throws IOException {
+        File directory = Files.createTempDirectory("trade-batch-test").toFile();
+        File file = new File(directory, "test.journal");
+        try {
+            Portfolio portfolio = new Portfolio();
+            portfolio.buy("Stock", "BBB", "Beta Corp", 10, 20.0);
+            String gainBefore = portfolio.calculateGain();
+            check(portfolio.openJournal(new FailingJournal(file, 2), "test"), "journal not opened");
+
+            //The trades of AAA are synced first, then the sync of the trades of BBB fails
+            List<TradeResult> results = portfolio.applyTrades(List.of(
+                    TradeInstruction.buy("Stock", "AAA", "Alpha Corp", 5, 10.0),
+                    TradeInstruction.buy("Stock", "BBB", "Beta Corp", 5, 30.0),
+                    TradeInstruction.sell("AAA", 2, 11.0),
+                    TradeInstruction.sell("BBB", 10, 40.0),
+                    TradeInstruction.buy("Stock", "BBB", "Beta Corp", 1, 50.0)));
+
+            check(results.get(0).getStatus() == TradeResult.Status.ADDED, "AAA buy: " + results.get(0));
+            check(results.get(2).getStatus() == TradeResult.Status.SOLD, "AAA sell: " + results.get(2));
+            for (int i : new int[] { 1, 3, 4 }) {
+                check(results.get(i).getStatus() == TradeResult.Status.NOT_RECORDED, "BBB trade " + i + ": " + results.get(i));
+                check(results.get(i).isApplied() == false, "BBB trade " + i + " counted as applied");
+            }
+
+            List<Investment> investments = portfolio.snapshotInvestments();
+            check(investments.size() == 2, investments.size() + " investments");
+            Investment beta = investments.get(0);
+            check(beta.getSymbol().equals("BBB") && beta.getQuantity() == 10 && beta.getPrice() == 20.0, "BBB changed: " + beta);
+            Investment alpha = investments.get(1);
+            check(alpha.getSymbol().equals("AAA") && alpha.getQuantity() == 3, "AAA not applied: " + alpha);
+
+            //Rejecting the whole AAA group leaves its gain in the total as well
+            String gainWithAlpha = portfolio.calculateGain();
+            check(gainBefore.equals(gainWithAlpha) == false, "AAA gain missing from the total");
+            results = portfolio.applyTrades(List.of(TradeInstruction.sell("AAA", 3, 99.0), TradeInstruction.buy("Stock", "AAA", "Alpha Corp", 1, 1.0)));
+            check(results.get(0).getStatus() == TradeResult.Status.NOT_RECORDED && results.get(1).getStatus() == TradeResult.Status.NOT_RECORDED, "AAA group applied: " + results);
+            check(describe(portfolio).equals(describe(investments)), "investments changed: " + describe(portfolio));
+            check(portfolio.calculateGain().equals(gainWithAlpha), "total gain changed to " + portfolio.calculateGain());
+            check(portfolio.searchOperation("AAA", "", "", "").length == 1, "AAA missing from the indexes");
+        } finally {
+            file.delete();
+            directory.delete();
+        }
+    }
+
+    /**
+     * Checks that trades whose amounts do not fit in micro-units are rejected
+     * with OVERFLOW and never recorded, and that a journal which already holds
+     * such a trade is still replayed, skipping it.
+     *
+     * @throws IOException if the temporary journals cannot be created
+     */
+    private static void testOverflowRejected() throws IOException {
+        File directory = Files.createTempDirectory("trade-overflow-test").toFile();
+        File file = new File(directory, "test.journal");
+        File written = new File(directory, "written.journal");
+        try {
+            Portfolio portfolio = new Portfolio();
+            check(portfolio.openJournal(new TransactionJournal(file), "test"), "journal not opened");
+            portfolio.buy("Stock", "AAA", "Alpha Corp", 10, 20.0);
+            String before = describe(portfolio);
+            long journalSize = file.length();
+
+            List<TradeResult> results = new ArrayList<>(List.of(
+                    portfolio.buy("Stock", "BIG", "Big Corp", 2_000_000_000, 5000.0),
+                    portfolio.buy("Stock", "AAA", "Alpha Corp", 2_000_000_000, 5000.0),
+                    portfolio.buy("Stock", "AAA", "Alpha Corp", 1, 1e300),
+                    portfolio.sell("AAA", 1, 1e13),
+                    portfolio.update("AAA", 1e12, "Alpha Corp")));
+            results.addAll(portfolio.applyTrades(List.of(
+                    TradeInstruction.buy("Stock", "AAA", "Alpha Corp", 1, 21.0),
+                    TradeInstruction.buy("Stock", "AAA", "Alpha Corp", 2_000_000_000, 5000.0))));
+            for (int i = 0; i < results.size(); i++) {
+                check(results.get(i).getStatus() == TradeResult.Status.OVERFLOW, "trade " + i + ": " + results.get(i));
+            }
+            check(describe(portfolio).equals(before), "investments changed: " + describe(portfolio));
+            check(file.length() == journalSize, "rejected trades recorded in the journal");
+
+            //A journal written before the trades were checked may still hold one
+            TransactionJournal writer = new TransactionJournal(written);
+            writer.replay(new Portfolio(), 0);
+            writer.appendBuy("Stock", "AAA", "Alpha Corp", 2_000_000_000, 5000.0);
+            writer.sync(writer.appendBuy("Stock", "BBB", "Beta Corp", 5, 10.0));
+            writer.close();
+
+            Portfolio recovered = new Portfolio();
+            check(recovered.openJournal(new TransactionJournal(written), "written"), "journal holding a trade too large not opened");
+            check(describe(recovered).startsWith("BBB 5 ") && recovered.snapshotInvestments().size() == 1, "journal not replayed: " + describe(recovered));
+        } finally {
+            file.delete();
+            written.delete();
+            directory.delete();
+        }
+    }
+
+    /**
+     * Describes the investments of a portfolio on one line.
+     *
+     * @param portfolio the portfolio to describe
+     * @return the symbol, quantity, price and book value of every investment
+     */
+    private static String describe(Portfolio portfolio) {
+        return describe(portfolio.snapshotInvestments());
+    }
+
+    /**
+     * Describes the given investments on one line.
+     *
+     * @param investments the investments to describe
+     * @return the symbol, quantity, price and book value of every investment
+     */
+    private static String describe(List<Investment> investments) {
+        StringBuilder description = new StringBuilder();
+        for (Investment investment : investments) {
+            description.append(investment.getSymbol()).append(' ').append(investment.getQuantity()).append(' ')
+                    .append(investment.getPrice()).append(' ').append(investment.getBookValue()).append("; ");
+        }
+        return description.toString();
+    }
+
+    /**
+     * Fails the test with the given message if the condition does not hold.
+     *
+     * @param condition the condition to check
+     * @param message the message describing the failure
+     */
+    private static void check(boolean condition, String message) {
+        if (condition == false) {
+            throw new AssertionError(message);
+        }
+    }
+}